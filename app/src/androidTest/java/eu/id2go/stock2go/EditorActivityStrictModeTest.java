@@ -0,0 +1,163 @@
+package eu.id2go.stock2go;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.EditText;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+import static android.support.test.espresso.Espresso.onView;
+import static android.support.test.espresso.action.ViewActions.click;
+import static android.support.test.espresso.action.ViewActions.replaceText;
+import static android.support.test.espresso.matcher.ViewMatchers.withId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens and saves stock items in the editor with a StrictMode policy that kills the app on any disk
+ * or network access of the main thread, so the test fails when the editor reads or writes there.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EditorActivityStrictModeTest {
+
+    private static final String NAME = "StrictMode test item";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public final ActivityTestRule<EditorActivity> mActivityRule =
+            new ActivityTestRule<>(EditorActivity.class, false, false);
+
+    private ContentResolver mResolver;
+    private Uri mStockItemUri;
+    private StrictMode.ThreadPolicy mOldPolicy;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(StockItemEntry.COLUMN_NAME, NAME);
+        values.put(StockItemEntry.COLUMN_BRAND, "Test brand");
+        values.put(StockItemEntry.COLUMN_STOCK_QTY, 5);
+        values.put(StockItemEntry.COLUMN_NAME_SUPPLIER, "Test supplier");
+        values.put(StockItemEntry.COLUMN_PHONE_SUPPLIER, "0123456789");
+        values.put(StockItemEntry.COLUMN_EMAIL_SUPPLIER, "test@supplier.eu");
+        values.put(StockItemEntry.COLUMN_SECTION, StockItemEntry.SECTION_DAIRY);
+        values.put(StockItemEntry.COLUMN_PRICE, 100);
+        values.put(StockItemEntry.COLUMN_IMAGE, "content://test/image");
+        mStockItemUri = mResolver.insert(StockItemEntry.CONTENT_URI, values);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mOldPolicy = StrictMode.getThreadPolicy();
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskReads()
+                        .detectDiskWrites()
+                        .detectNetwork()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(mOldPolicy);
+            }
+        });
+        if (mStockItemUri != null) {
+            mResolver.delete(mStockItemUri, null, null);
+        }
+    }
+
+    @Test
+    public void opensAndSavesExistingStockItemOffMainThread() {
+        Intent intent = new Intent(InstrumentationRegistry.getTargetContext(), EditorActivity.class);
+        intent.setData(mStockItemUri);
+        final EditorActivity activity = mActivityRule.launchActivity(intent);
+        assertTrue("The stock item is not shown", waitUntil(new Condition() {
+            @Override
+            public boolean isMet() {
+                EditText name = activity.findViewById(R.id.edit_stock_item_name);
+                return NAME.equals(name.getText().toString());
+            }
+        }));
+
+        onView(withId(R.id.edit_stock_item_price)).perform(replaceText("250"));
+        onView(withId(R.id.action_save)).perform(click());
+        assertTrue("The editor didn't exit after the save", waitUntil(new Condition() {
+            @Override
+            public boolean isMet() {
+                return activity.isFinishing();
+            }
+        }));
+
+        Cursor cursor = mResolver.query(mStockItemUri, new String[]{StockItemEntry.COLUMN_PRICE}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(250, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void opensNewStockItemOffMainThread() {
+        final EditorActivity activity = mActivityRule.launchActivity(
+                new Intent(InstrumentationRegistry.getTargetContext(), EditorActivity.class));
+
+        // Saving without any input shows a toast, writes nothing and keeps the editor open
+        onView(withId(R.id.action_save)).perform(click());
+        assertFalse("The editor exited", waitUntil(new Condition() {
+            @Override
+            public boolean isMet() {
+                return activity.isFinishing();
+            }
+        }));
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Check the condition on the main thread until it is met or the timeout passes
+     */
+    private static boolean waitUntil(final Condition condition) {
+        final boolean[] met = new boolean[1];
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (SystemClock.elapsedRealtime() < deadline) {
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    met[0] = condition.isMet();
+                }
+            });
+            if (met[0]) {
+                return true;
+            }
+            SystemClock.sleep(50);
+        }
+        return false;
+    }
+}
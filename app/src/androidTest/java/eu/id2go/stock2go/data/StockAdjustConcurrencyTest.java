@@ -0,0 +1,151 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.StockMovementEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sells one unit of a stock item from several threads at once through
+ * {@link StockItemEntry#METHOD_ADJUST_QUANTITY}, more units than there are, and checks that every
+ * unit is sold exactly once: the quantity never drops below 0 and the ledger has one sale per unit.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockAdjustConcurrencyTest {
+
+    private static final String LOG_TAG = StockAdjustConcurrencyTest.class.getSimpleName();
+
+    private static final int QUANTITY = 100;
+    private static final int THREADS = 8;
+
+    /**
+     * Together the threads try to sell twice the quantity
+     */
+    private static final int SALES_PER_THREAD = 2 * QUANTITY / THREADS;
+
+    private TestStockProvider mTestProvider;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+    }
+
+    @Test
+    public void sellsEveryUnitOnce() throws Exception {
+        final Uri item = mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI,
+                TestStockProvider.newStockItem("Sold out", QUANTITY));
+        final String id = String.valueOf(ContentUris.parseId(item));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<Integer>>> threads = new ArrayList<>();
+        long started;
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                threads.add(executor.submit(new Callable<List<Integer>>() {
+                    @Override
+                    public List<Integer> call() throws InterruptedException {
+                        Bundle extras = new Bundle();
+                        extras.putInt(StockItemEntry.EXTRA_DELTA, -1);
+                        List<Integer> quantities = new ArrayList<>();
+                        start.await();
+                        for (int i = 0; i < SALES_PER_THREAD; i++) {
+                            Bundle result = mTestProvider.mProvider.call(StockItemEntry.METHOD_ADJUST_QUANTITY,
+                                    id, extras);
+                            if (result != null) {
+                                quantities.add(result.getInt(StockItemEntry.COLUMN_STOCK_QTY));
+                            }
+                        }
+                        return quantities;
+                    }
+                }));
+            }
+            started = SystemClock.elapsedRealtime();
+            start.countDown();
+            for (Future<List<Integer>> thread : threads) {
+                thread.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = SystemClock.elapsedRealtime() - started;
+
+        // Every sale left a different quantity, from QUANTITY - 1 down to 0
+        Set<Integer> quantities = new HashSet<>();
+        for (Future<List<Integer>> thread : threads) {
+            for (int quantity : thread.get()) {
+                assertTrue("Sold below 0: " + quantity, quantity >= 0);
+                assertTrue("Quantity " + quantity + " twice", quantities.add(quantity));
+            }
+        }
+        assertEquals(QUANTITY, quantities.size());
+        assertEquals(0, readQuantity(item));
+        assertEquals(QUANTITY, countSales(ContentUris.parseId(item)));
+        Log.i(LOG_TAG, THREADS * SALES_PER_THREAD + " sales of " + QUANTITY + " units from " + THREADS
+                + " threads in " + elapsed + " ms");
+    }
+
+    private int readQuantity(Uri item) {
+        Cursor cursor = mTestProvider.mProvider.query(item, new String[]{StockItemEntry.COLUMN_STOCK_QTY},
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of sales in the history of the stock item, checking that each sold 1 unit
+     */
+    private int countSales(long id) {
+        Cursor cursor = mTestProvider.mProvider.query(ContentUris.withAppendedId(StockMovementEntry.CONTENT_URI, id),
+                StockMovementEntry.HISTORY_PROJECTION, null, null, null);
+        try {
+            int reasonColumn = cursor.getColumnIndexOrThrow(StockMovementEntry.COLUMN_REASON);
+            int deltaColumn = cursor.getColumnIndexOrThrow(StockMovementEntry.COLUMN_DELTA);
+            int countColumn = cursor.getColumnIndexOrThrow(StockMovementEntry.COLUMN_COUNT);
+            int sales = 0;
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(reasonColumn) == StockMovementEntry.REASON_SALE) {
+                    assertEquals(1, cursor.getInt(countColumn));
+                    assertEquals(-1, cursor.getInt(deltaColumn));
+                    sales++;
+                }
+            }
+            return sales;
+        } finally {
+            cursor.close();
+        }
+    }
+}
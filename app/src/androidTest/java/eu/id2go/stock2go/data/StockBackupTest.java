@@ -0,0 +1,156 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backs up and restores a large database through the provider and logs the timings. The size is
+ * 500 MB unless the instrumentation argument backupMegabytes says otherwise, ex:
+ * {@code -e backupMegabytes 50}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockBackupTest {
+
+    private static final String LOG_TAG = StockBackupTest.class.getSimpleName();
+
+    private static final int DEFAULT_MEGABYTES = 500;
+
+    /**
+     * Every stock item has a brand this long, random so the backup doesn't compress it away
+     */
+    private static final int BRAND_LENGTH = 4000;
+    private static final int BATCH_ROWS = 1000;
+
+    /**
+     * Longest a quantity change may wait while the backup runs
+     */
+    private static final long MAX_WRITE_MS = 2000;
+
+    private TestStockProvider mTestProvider;
+    private File mBackupFile;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+        mBackupFile = new File(mTestProvider.mContext.getCacheDir(), "StockBackupTest.s2gb");
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+        mBackupFile.delete();
+    }
+
+    @Test
+    public void backsUpWhileWritingAndRestoresLargeDatabase() throws Exception {
+        String argument = InstrumentationRegistry.getArguments().getString("backupMegabytes");
+        int megabytes = argument == null ? DEFAULT_MEGABYTES : Integer.parseInt(argument);
+        Uri item = mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI,
+                TestStockProvider.newStockItem("Counter", 1));
+        int rows = 1 + insertStockItems(megabytes * 1024L * 1024L / BRAND_LENGTH);
+        long databaseLength = mTestProvider.mContext.getDatabasePath("stock2go.db").length();
+
+        // Quantity changes keep going while the backup runs, none of them may wait long for it
+        final String id = String.valueOf(ContentUris.parseId(item));
+        final AtomicBoolean backingUp = new AtomicBoolean(true);
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicLong longestWriteMs = new AtomicLong();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle extras = new Bundle();
+                extras.putInt(StockItemEntry.EXTRA_DELTA, 1);
+                while (backingUp.get()) {
+                    long start = SystemClock.elapsedRealtime();
+                    mTestProvider.mProvider.call(StockItemEntry.METHOD_ADJUST_QUANTITY, id, extras);
+                    long writeMs = SystemClock.elapsedRealtime() - start;
+                    if (writeMs > longestWriteMs.get()) {
+                        longestWriteMs.set(writeMs);
+                    }
+                    writes.incrementAndGet();
+                    SystemClock.sleep(10);
+                }
+            }
+        });
+        String document = Uri.fromFile(mBackupFile).toString();
+        writer.start();
+        long start = SystemClock.elapsedRealtime();
+        Bundle backup;
+        try {
+            backup = mTestProvider.mProvider.call(StockContract.METHOD_BACKUP_DATABASE, document, null);
+        } finally {
+            backingUp.set(false);
+            writer.join();
+        }
+        long backupMs = SystemClock.elapsedRealtime() - start;
+        assertNotNull(backup);
+        assertTrue(writes.get() > 0);
+        assertTrue("A write waited " + longestWriteMs.get() + " ms", longestWriteMs.get() < MAX_WRITE_MS);
+
+        // Larger than one cursor window, so it is read before the restore closes the database
+        Cursor cursor = mTestProvider.mProvider.query(StockItemEntry.CONTENT_URI,
+                new String[]{StockItemEntry._ID, StockItemEntry.COLUMN_NAME}, null, null, null);
+        try {
+            start = SystemClock.elapsedRealtime();
+            assertNotNull(mTestProvider.mProvider.call(StockContract.METHOD_RESTORE_DATABASE, document, null));
+            long restoreMs = SystemClock.elapsedRealtime() - start;
+
+            assertTrue(cursor.moveToLast());
+            assertEquals(rows, cursor.getCount());
+            assertEquals(rows, mTestProvider.countStockItems());
+
+            Log.i(LOG_TAG, "Database of " + databaseLength / (1024 * 1024) + " MB with " + rows
+                    + " stock items: backup of " + mBackupFile.length() / (1024 * 1024) + " MB in "
+                    + backupMs + " ms with " + writes.get() + " writes meanwhile, the longest "
+                    + longestWriteMs.get() + " ms, restore in " + restoreMs + " ms");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Insert the given number of stock items, with random brands, and return the number inserted
+     */
+    private int insertStockItems(long count) {
+        Random random = new Random(24);
+        char[] brand = new char[BRAND_LENGTH];
+        int inserted = 0;
+        while (inserted < count) {
+            int batchRows = (int) Math.min(BATCH_ROWS, count - inserted);
+            ContentValues[] values = new ContentValues[batchRows];
+            for (int i = 0; i < batchRows; i++) {
+                for (int c = 0; c < brand.length; c++) {
+                    brand[c] = (char) ('a' + random.nextInt(26));
+                }
+                values[i] = TestStockProvider.newStockItem("Item " + (inserted + i), 1);
+                values[i].put(StockItemEntry.COLUMN_BRAND, new String(brand));
+            }
+            inserted += mTestProvider.mProvider.bulkInsert(StockItemEntry.CONTENT_URI, values);
+        }
+        return inserted;
+    }
+}
@@ -0,0 +1,306 @@
+package eu.id2go.stock2go.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.text.TextUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.StockMovementEntry;
+import eu.id2go.stock2go.data.StockContract.StockSummaryEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a database of version 1 with stock items in it to the current version, and checks that
+ * the stock items survive and the rebuilt indexes and triggers are used.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockDbMigrationTest {
+
+    private static final String DATABASE_NAME = "stock2go.db";
+
+    private Context mContext;
+    private StockDbHelper mDbHelper;
+
+    @Before
+    public void createVersion1Database() {
+        // A database of its own, the one of the app isn't touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test.");
+        mContext.deleteDatabase(DATABASE_NAME);
+        File file = mContext.getDatabasePath(DATABASE_NAME);
+        file.getParentFile().mkdirs();
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            // The schema of version 1, as StockDbHelper#onCreate creates it before migrating
+            db.execSQL("CREATE TABLE stock2go(_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                    + "brand TEXT NOT NULL, stockQuantity INTEGER NOT NULL DEFAULT 0, nameSupplier TEXT, "
+                    + "phoneSupplier TEXT NOT NULL, email TEXT NOT NULL, section INTEGER NOT NULL, "
+                    + "price INTEGER NOT NULL DEFAULT 0, image TEXT NOT NULL);");
+            insertVersion1Item(db, "Bread", "Bakker", 5, "Acme", "111", "sales@acme.eu",
+                    StockItemEntry.SECTION_BREAD, 250);
+            // Same supplier in another case, added last so its phone and e-mail are kept
+            insertVersion1Item(db, "Milk", "Farm", 0, "acme", "222", "orders@acme.eu",
+                    StockItemEntry.SECTION_DAIRY, 120);
+            insertVersion1Item(db, "Soap", "Clean", 3, null, "333", "info@soap.eu",
+                    StockItemEntry.SECTION_CLEANING, 400);
+            insertVersion1Item(db, "Tomato", "Garden", 9, "Veggie", "444", "veg@garden.eu",
+                    StockItemEntry.SECTION_VEGETABLES, 80);
+            // The deleted _ID stays in sqlite_sequence, it must not be handed out again
+            db.execSQL("DELETE FROM stock2go WHERE _id = 4;");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+
+        mDbHelper = new StockDbHelper(mContext);
+    }
+
+    @After
+    public void deleteDatabase() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeKeepsStockItems() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertEquals(StockDbHelper.getDatabaseVersion(), db.getVersion());
+
+        Cursor cursor = db.query(StockItemEntry.VIEW_WITH_SUPPLIER, StockItemEntry.PROJECTION_WITH_SUPPLIER,
+                null, null, null, null, StockItemEntry._ID);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToFirst();
+            assertItem(cursor, 1, "Bread", 5, "acme", "222", StockItemEntry.SECTION_BREAD, 250);
+            cursor.moveToNext();
+            assertItem(cursor, 2, "Milk", 0, "acme", "222", StockItemEntry.SECTION_DAIRY, 120);
+            cursor.moveToNext();
+            assertItem(cursor, 3, "Soap", 3, "", "333", StockItemEntry.SECTION_CLEANING, 400);
+        } finally {
+            cursor.close();
+        }
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME));
+
+        // Every stock item with a quantity starts its history with it
+        assertEquals(8, DatabaseUtils.longForQuery(db, "SELECT SUM(" + StockMovementEntry.COLUMN_DELTA
+                + ") FROM " + StockMovementEntry.TABLE_NAME, null));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, StockMovementEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void upgradeKeepsAutoincrementCounter() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertEquals(4, DatabaseUtils.longForQuery(db, "SELECT seq FROM sqlite_sequence WHERE name = ?",
+                new String[]{StockItemEntry.TABLE_NAME}));
+        assertEquals(5, insertItem(db, "Cheese", 1, StockItemEntry.SECTION_DAIRY, 600));
+    }
+
+    @Test
+    public void upgradeRebuildsSearchTriggers() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertTrue(triggerNames(db).containsAll(Arrays.asList("stock2go_fts_insert",
+                "stock2go_fts_update", "stock2go_fts_delete", "suppliers_fts_update")));
+        assertEquals(setOf(1, 2), search(db, "acme"));
+
+        long id = insertItem(db, "Cheese", 1, StockItemEntry.SECTION_DAIRY, 600);
+        assertEquals(setOf(1, 2, id), search(db, "acme"));
+        assertEquals(setOf(id), search(db, "chee*"));
+
+        // A renamed supplier is found under its new name, on every one of its stock items
+        db.execSQL("UPDATE " + SupplierEntry.TABLE_NAME + " SET " + SupplierEntry.COLUMN_NAME
+                + " = 'Globex' WHERE " + SupplierEntry.COLUMN_NAME + " = 'acme';");
+        assertEquals(setOf(1, 2, id), search(db, "globex"));
+        assertTrue(search(db, "acme").isEmpty());
+
+        db.delete(StockItemEntry.TABLE_NAME, StockItemEntry._ID + " = 1", null);
+        assertEquals(setOf(2, id), search(db, "globex"));
+    }
+
+    @Test
+    public void upgradeRebuildsSummaryTriggers() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertTrue(triggerNames(db).containsAll(Arrays.asList("stock_summary_insert",
+                "stock_summary_update", "stock_summary_delete")));
+        assertSummary(db, StockItemEntry.SECTION_BREAD, 1, 5, 1250);
+        assertSummary(db, StockItemEntry.SECTION_CLEANING, 1, 3, 1200);
+        // The deleted stock item was never counted
+        assertSummary(db, StockItemEntry.SECTION_VEGETABLES, 0, 0, 0);
+
+        db.execSQL("UPDATE " + StockItemEntry.TABLE_NAME + " SET " + StockItemEntry.COLUMN_STOCK_QTY
+                + " = 7 WHERE " + StockItemEntry._ID + " = 1;");
+        assertSummary(db, StockItemEntry.SECTION_BREAD, 1, 7, 1750);
+
+        insertItem(db, "Rye bread", 2, StockItemEntry.SECTION_BREAD, 300);
+        assertSummary(db, StockItemEntry.SECTION_BREAD, 2, 9, 2350);
+
+        db.delete(StockItemEntry.TABLE_NAME, StockItemEntry._ID + " = 3", null);
+        assertSummary(db, StockItemEntry.SECTION_CLEANING, 0, 0, 0);
+    }
+
+    @Test
+    public void catalogQueriesUseIndexes() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        assertPlanUses(db, "stock2go_section_idx", "SELECT " + StockItemEntry._ID + " FROM "
+                + StockItemEntry.TABLE_NAME + " WHERE " + StockItemEntry.COLUMN_SECTION + " = ?", "1");
+        assertPlanUses(db, "stock2go_supplier_id_idx", "SELECT " + StockItemEntry._ID + " FROM "
+                + StockItemEntry.TABLE_NAME + " WHERE " + StockItemEntry.COLUMN_SUPPLIER_ID + " = ?", "1");
+        assertPlanUses(db, "stock2go_stock_qty_idx", "SELECT " + StockItemEntry._ID + " FROM "
+                + StockItemEntry.TABLE_NAME + " WHERE " + StockItemEntry.COLUMN_STOCK_QTY + " < ?", "2");
+        // The list index of version 7 replaced the name index, it also serves the name sort
+        assertPlanUses(db, "stock2go_list_idx", "SELECT " + StockItemEntry._ID + ", "
+                + StockItemEntry.COLUMN_NAME + " FROM " + StockItemEntry.TABLE_NAME
+                + " ORDER BY " + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE");
+        assertPlanUses(db, "stock2go_low_stock_idx", "SELECT " + StockItemEntry._ID + " FROM "
+                + StockItemEntry.TABLE_NAME + " WHERE " + StockItemEntry.LOW_STOCK_SELECTION
+                + " ORDER BY " + StockItemEntry.LOW_STOCK_SORT_ORDER);
+        assertPlanUses(db, "stock_movements_item_idx", "SELECT * FROM " + StockMovementEntry.TABLE_NAME
+                + " WHERE " + StockMovementEntry.COLUMN_ITEM_ID + " = ? ORDER BY "
+                + StockMovementEntry.COLUMN_TIMESTAMP, "1");
+    }
+
+    @Test
+    public void listPagesReadOnlyTheListIndex() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String page = "SELECT " + TextUtils.join(", ", StockItemEntry.LIST_PROJECTION)
+                + " FROM " + StockItemEntry.TABLE_NAME;
+        String firstPage = page + " ORDER BY " + StockItemEntry.PAGE_SORT_ORDER + " LIMIT 100";
+        String nextPage = page + " WHERE " + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE >= ? AND ("
+                + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE > ? OR " + StockItemEntry._ID + " > ?)"
+                + " ORDER BY " + StockItemEntry.PAGE_SORT_ORDER + " LIMIT 100";
+
+        // Sorting the rows with equal names on _ID may take a temporary b-tree, the table isn't read
+        String plan = queryPlan(db, firstPage);
+        assertTrue(plan, plan.contains("USING COVERING INDEX stock2go_list_idx"));
+        plan = queryPlan(db, nextPage, "Bread", "Bread", "2");
+        assertTrue(plan, plan.contains("USING COVERING INDEX stock2go_list_idx"));
+    }
+
+    private static void insertVersion1Item(SQLiteDatabase db, String name, String brand, int quantity,
+                                           String supplier, String phone, String email, int section,
+                                           int price) {
+        db.execSQL("INSERT INTO stock2go(name, brand, stockQuantity, nameSupplier, phoneSupplier, email, "
+                        + "section, price, image) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);",
+                new Object[]{name, brand, quantity, supplier, phone, email, section, price, ""});
+    }
+
+    /**
+     * Insert a stock item of the first supplier, the way the provider does after the upgrade
+     */
+    private static long insertItem(SQLiteDatabase db, String name, int quantity, int section, int price) {
+        db.execSQL("INSERT INTO " + StockItemEntry.TABLE_NAME + "(" + StockItemEntry.COLUMN_NAME + ", "
+                        + StockItemEntry.COLUMN_BRAND + ", " + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                        + StockItemEntry.COLUMN_SUPPLIER_ID + ", " + StockItemEntry.COLUMN_SECTION + ", "
+                        + StockItemEntry.COLUMN_PRICE + ", " + StockItemEntry.COLUMN_IMAGE
+                        + ") VALUES (?, '', ?, (SELECT " + SupplierEntry._ID + " FROM "
+                        + SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry.COLUMN_NAME + " = 'acme'), ?, ?, '');",
+                new Object[]{name, quantity, section, price});
+        return DatabaseUtils.longForQuery(db, "SELECT last_insert_rowid()", null);
+    }
+
+    private static void assertItem(Cursor cursor, long id, String name, int quantity, String supplier,
+                                   String phone, int section, int price) {
+        assertEquals(id, cursor.getLong(cursor.getColumnIndexOrThrow(StockItemEntry._ID)));
+        assertEquals(name, cursor.getString(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_NAME)));
+        assertEquals(quantity, cursor.getInt(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_STOCK_QTY)));
+        assertEquals(supplier, cursor.getString(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_NAME_SUPPLIER)));
+        assertEquals(phone, cursor.getString(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_PHONE_SUPPLIER)));
+        assertEquals(section, cursor.getInt(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_SECTION)));
+        assertEquals(price, cursor.getInt(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_PRICE)));
+        assertEquals(0, cursor.getInt(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_REORDER_LEVEL)));
+    }
+
+    private static void assertSummary(SQLiteDatabase db, int section, long itemCount, long unitsOnHand,
+                                      long stockValue) {
+        Cursor cursor = db.query(StockSummaryEntry.TABLE_NAME, new String[]{StockSummaryEntry.COLUMN_ITEM_COUNT,
+                        StockSummaryEntry.COLUMN_UNITS_ON_HAND, StockSummaryEntry.COLUMN_STOCK_VALUE},
+                StockSummaryEntry._ID + " = ?", new String[]{String.valueOf(section)}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(itemCount, cursor.getLong(0));
+            assertEquals(unitsOnHand, cursor.getLong(1));
+            assertEquals(stockValue, cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Set<Long> search(SQLiteDatabase db, String match) {
+        Set<Long> ids = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT docid FROM " + StockItemEntry.FTS_TABLE_NAME + " WHERE "
+                + StockItemEntry.FTS_TABLE_NAME + " MATCH ?", new String[]{match});
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static Set<String> triggerNames(SQLiteDatabase db) {
+        Set<String> names = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger'", null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private static Set<Long> setOf(long... ids) {
+        Set<Long> set = new HashSet<>();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    /**
+     * Returns the details of the query plan of the query, one step per line
+     */
+    static String queryPlan(SQLiteDatabase db, String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            // The detail is the last column in every SQLite version
+            int detail = cursor.getColumnCount() - 1;
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    private static void assertPlanUses(SQLiteDatabase db, String index, String sql, String... args) {
+        String plan = queryPlan(db, sql, args);
+        assertTrue(sql + " doesn't use " + index + ":\n" + plan, plan.contains("INDEX " + index));
+        assertFalse(sql + " scans the table:\n" + plan, plan.matches("(?s).*SCAN (TABLE )?"
+                + StockItemEntry.TABLE_NAME + "\n.*"));
+    }
+}
@@ -0,0 +1,118 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the stock database runs in write-ahead logging mode, so a reader isn't blocked by
+ * a write transaction that is still open.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockDbWalTest {
+
+    private static final String LOG_TAG = StockDbWalTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "stock2go.db";
+
+    /**
+     * A read has to finish within this time while the write transaction is open
+     */
+    private static final long READ_TIMEOUT_MS = 2000;
+
+    private Context mContext;
+    private StockDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test.");
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new StockDbHelper(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void usesWriteAheadLog() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertTrue(db.isWriteAheadLoggingEnabled());
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+    }
+
+    @Test
+    public void readerIsNotBlockedByOpenWriteTransaction() throws Exception {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch commit = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    ContentValues supplier = new ContentValues();
+                    supplier.put(SupplierEntry.COLUMN_NAME, "Test supplier");
+                    supplier.put(SupplierEntry.COLUMN_PHONE, "0123456789");
+                    supplier.put(SupplierEntry.COLUMN_EMAIL, "test@supplier.eu");
+                    db.insertOrThrow(SupplierEntry.TABLE_NAME, null, supplier);
+                    written.countDown();
+                    commit.await();
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+        writer.start();
+
+        // The read runs on a thread of its own, so a blocked read fails the test instead of hanging it
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(written.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            long start = SystemClock.elapsedRealtime();
+            Future<Long> count = reader.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME);
+                }
+            });
+            // The reader sees the last commit, not the open transaction
+            assertEquals(0L, (long) count.get(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            Log.i(LOG_TAG, "Read during an open write transaction in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        } finally {
+            commit.countDown();
+            writer.join();
+            reader.shutdownNow();
+        }
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME));
+    }
+}
@@ -0,0 +1,141 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exports a catalog of a few thousand test stock items to a CSV file and reads the file back. The
+ * exporter reads through a resolver with the {@link TestStockProvider}, so the stock items of the
+ * app are left alone.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockExporterTest {
+
+    private static final String LOG_TAG = StockExporterTest.class.getSimpleName();
+
+    private static final int TEST_ROWS = 5000;
+    private static final String TEST_BRAND = "Export test brand";
+    private static final long EXPORT_TIMEOUT_S = 60;
+
+    private TestStockProvider mTestProvider;
+    private MockContentResolver mResolver;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+        mResolver = new MockContentResolver(mTestProvider.mContext);
+        mResolver.addProvider(StockContract.CONTENT_AUTHORITY, mTestProvider.mProvider);
+        mFile = new File(mTestProvider.mContext.getCacheDir(), "stock_exporter_test.csv");
+        ContentValues[] values = new ContentValues[TEST_ROWS];
+        for (int i = 0; i < TEST_ROWS; i++) {
+            values[i] = TestStockProvider.newStockItem("Export item " + i, 1 + i % 50);
+            values[i].put(StockItemEntry.COLUMN_BRAND, TEST_BRAND);
+        }
+        assertEquals(TEST_ROWS, mTestProvider.mProvider.bulkInsert(StockItemEntry.CONTENT_URI, values));
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+        mFile.delete();
+    }
+
+    @Test
+    public void exportsEveryStockItem() throws Exception {
+        int stockItems = mTestProvider.countStockItems();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] outcome = new long[2];
+        final StockExporter.Listener listener = new StockExporter.Listener() {
+            @Override
+            public void onExportProgress(long rowsWritten) {
+            }
+
+            @Override
+            public void onExportFinished(long rowsWritten) {
+                outcome[0] = 1;
+                outcome[1] = rowsWritten;
+                done.countDown();
+            }
+
+            @Override
+            public void onExportFailed(long rowsWritten) {
+                outcome[1] = rowsWritten;
+                done.countDown();
+            }
+        };
+        final StockExporter exporter = new StockExporter(mResolver);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                exporter.addListener(listener);
+            }
+        });
+        long start = SystemClock.elapsedRealtime();
+        try {
+            exporter.exportAsync(Uri.fromFile(mFile), StockExporter.FORMAT_CSV, false, StockExporter.ALL_SECTIONS);
+            assertTrue("The export didn't finish", done.await(EXPORT_TIMEOUT_S, TimeUnit.SECONDS));
+        } finally {
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    exporter.removeListener(listener);
+                }
+            });
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        assertEquals("The export failed", 1, outcome[0]);
+        assertEquals(stockItems, outcome[1]);
+        Log.i(LOG_TAG, "Exported " + stockItems + " rows in " + elapsed + " ms, "
+                + stockItems * 1000L / elapsed + " rows/s, " + mFile.length() + " bytes");
+
+        // Every row comes back
+        CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(mFile),
+                Charset.forName("UTF-8")), ',');
+        try {
+            List<String> fields = new ArrayList<>();
+            assertTrue(reader.readRecord(fields));
+            int columns = fields.size();
+            int brandColumn = fields.indexOf(StockItemEntry.COLUMN_BRAND);
+            assertEquals(StockItemEntry.COLUMN_NAME, fields.get(1));
+            int rows = 0;
+            int testRows = 0;
+            while (reader.readRecord(fields)) {
+                assertEquals(columns, fields.size());
+                rows++;
+                if (TEST_BRAND.equals(fields.get(brandColumn))) {
+                    testRows++;
+                }
+            }
+            assertEquals(stockItems, rows);
+            assertEquals(TEST_ROWS, testRows);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that queries of a single stock item are served from the item cache of the provider until
+ * the stock item changes, and compares the time of a cached lookup with a lookup in the database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockItemCacheTest {
+
+    private static final String LOG_TAG = StockItemCacheTest.class.getSimpleName();
+
+    private static final int ITEMS = 100;
+    private static final int LOOKUPS = 5000;
+
+    private static final String[] PROJECTION = {StockItemEntry.COLUMN_NAME, StockItemEntry.COLUMN_PRICE};
+
+    private TestStockProvider mTestProvider;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+    }
+
+    @Test
+    public void servesStockItemUntilItChanges() {
+        Uri item = mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI,
+                TestStockProvider.newStockItem("Milk", 1));
+        long hits = stats().getLong(StockItemEntry.EXTRA_CACHE_HITS);
+        long misses = stats().getLong(StockItemEntry.EXTRA_CACHE_MISSES);
+
+        // The first query reads the database, the second one the cache
+        assertEquals(100, queryPrice(item));
+        assertEquals(misses + 1, stats().getLong(StockItemEntry.EXTRA_CACHE_MISSES));
+        assertEquals(100, queryPrice(item));
+        assertEquals(hits + 1, stats().getLong(StockItemEntry.EXTRA_CACHE_HITS));
+
+        // An update drops the stock item from the cache, so the new price is read
+        ContentValues values = new ContentValues();
+        values.put(StockItemEntry.COLUMN_PRICE, 250);
+        assertEquals(1, mTestProvider.mProvider.update(item, values, null, null));
+        assertEquals(250, queryPrice(item));
+        assertEquals(misses + 2, stats().getLong(StockItemEntry.EXTRA_CACHE_MISSES));
+        assertEquals(250, queryPrice(item));
+        assertEquals(hits + 2, stats().getLong(StockItemEntry.EXTRA_CACHE_HITS));
+    }
+
+    @Test
+    public void cachedLookupsOutrunDatabaseLookups() {
+        long[] ids = new long[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            ids[i] = ContentUris.parseId(mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI,
+                    TestStockProvider.newStockItem("Item " + i, 1)));
+            // Cache the stock item
+            queryPrice(ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, ids[i]));
+        }
+        long hits = stats().getLong(StockItemEntry.EXTRA_CACHE_HITS);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            queryPrice(ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, ids[i % ITEMS]));
+        }
+        long cachedMs = Math.max(1, SystemClock.elapsedRealtime() - start);
+        assertEquals(hits + LOOKUPS, stats().getLong(StockItemEntry.EXTRA_CACHE_HITS));
+
+        // The same lookup by selection on the CONTENT_URI always reads the database
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            Cursor cursor = mTestProvider.mProvider.query(StockItemEntry.CONTENT_URI, PROJECTION,
+                    StockItemEntry._ID + "=?", new String[]{String.valueOf(ids[i % ITEMS])}, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+            } finally {
+                cursor.close();
+            }
+        }
+        long databaseMs = Math.max(1, SystemClock.elapsedRealtime() - start);
+        assertEquals(hits + LOOKUPS, stats().getLong(StockItemEntry.EXTRA_CACHE_HITS));
+
+        Log.i(LOG_TAG, LOOKUPS + " lookups: " + cachedMs + " ms from the cache, "
+                + databaseMs + " ms from the database");
+    }
+
+    private int queryPrice(Uri item) {
+        Cursor cursor = mTestProvider.mProvider.query(item, PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle stats() {
+        return mTestProvider.mProvider.call(StockItemEntry.METHOD_ITEM_CACHE_STATS, null, null);
+    }
+}
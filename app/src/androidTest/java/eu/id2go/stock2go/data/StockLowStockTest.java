@@ -0,0 +1,103 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the low stock URI returns only the stock items below their reorder level, sorted per
+ * supplier, and that its query reads the partial low stock index.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockLowStockTest {
+
+    private TestStockProvider mTestProvider;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+    }
+
+    @Test
+    public void returnsOnlyItemsBelowTheirReorderLevel() {
+        insert("Yoghurt", 2, 5, null);
+        Uri milk = insert("Milk", 5, 5, null);
+        insert("Bread", 10, 0, null);
+        insert("Cheese", 1, 2, null);
+        insert("Apples", 1, 3, "Other supplier");
+
+        // Per supplier in the order they were added, on name within a supplier
+        assertEquals(Arrays.asList("Cheese", "Yoghurt", "Apples"), lowStockNames());
+
+        // A quantity below the reorder level adds the stock item
+        ContentValues values = new ContentValues();
+        values.put(StockItemEntry.COLUMN_STOCK_QTY, 4);
+        assertEquals(1, mTestProvider.mProvider.update(milk, values, null, null));
+        assertEquals(Arrays.asList("Cheese", "Milk", "Yoghurt", "Apples"), lowStockNames());
+    }
+
+    @Test
+    public void lowStockQueryUsesIndex() {
+        StockDbHelper dbHelper = new StockDbHelper(mTestProvider.mContext);
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            String plan = StockDbMigrationTest.queryPlan(db, "SELECT " + StockItemEntry._ID + ", "
+                    + StockItemEntry.COLUMN_NAME + " FROM " + StockItemEntry.TABLE_NAME
+                    + " WHERE " + StockItemEntry.LOW_STOCK_SELECTION
+                    + " ORDER BY " + StockItemEntry.LOW_STOCK_SORT_ORDER);
+            assertTrue(plan, plan.contains("INDEX stock2go_low_stock_idx"));
+            // The index is in the order of the URI, nothing is sorted afterwards
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private Uri insert(String name, int quantity, int reorderLevel, String supplier) {
+        ContentValues values = TestStockProvider.newStockItem(name, quantity);
+        values.put(StockItemEntry.COLUMN_REORDER_LEVEL, reorderLevel);
+        if (supplier != null) {
+            values.put(StockItemEntry.COLUMN_NAME_SUPPLIER, supplier);
+        }
+        Uri uri = mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI, values);
+        assertTrue(ContentUris.parseId(uri) > 0);
+        return uri;
+    }
+
+    private List<String> lowStockNames() {
+        Cursor cursor = mTestProvider.mProvider.query(StockItemEntry.CONTENT_LOW_STOCK_URI,
+                new String[]{StockItemEntry._ID, StockItemEntry.COLUMN_NAME}, null, null, null);
+        try {
+            List<String> names = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(1));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+}
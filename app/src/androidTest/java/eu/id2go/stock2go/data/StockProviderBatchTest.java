@@ -0,0 +1,146 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.TestStockProvider.CountingObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that bulkInsert and applyBatch write a whole batch in one transaction with one
+ * notification, and compares the rows per second of a bulk insert with single inserts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockProviderBatchTest {
+
+    private static final String LOG_TAG = StockProviderBatchTest.class.getSimpleName();
+
+    private static final int BULK_ROWS = 50000;
+    private static final int SINGLE_ROWS = 1000;
+
+    /**
+     * Longer than the notification window of the provider
+     */
+    private static final long NOTIFICATION_WAIT_MS = 500;
+
+    private TestStockProvider mTestProvider;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+    }
+
+    @Test
+    public void applyBatchRollsBackOnInvalidRow() throws Exception {
+        ContentValues existing = TestStockProvider.newStockItem("Existing", 1);
+        long existingId = ContentUris.parseId(mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI, existing));
+        SystemClock.sleep(NOTIFICATION_WAIT_MS);
+        long emitted = notificationStats().getLong(StockItemEntry.EXTRA_NOTIFICATIONS_EMITTED);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(StockItemEntry.CONTENT_URI)
+                .withValues(TestStockProvider.newStockItem("First", 1)).build());
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, existingId))
+                .withValue(StockItemEntry.COLUMN_NAME, "Renamed").build());
+        ContentValues invalid = TestStockProvider.newStockItem("", 1);
+        operations.add(ContentProviderOperation.newInsert(StockItemEntry.CONTENT_URI).withValues(invalid).build());
+        try {
+            mTestProvider.mProvider.applyBatch(operations);
+            fail("A stock item without a name must be rejected");
+        } catch (IllegalArgumentException expected) {
+            // The whole batch is rolled back
+        }
+
+        assertEquals(1, mTestProvider.countStockItems());
+        Cursor cursor = mTestProvider.mProvider.query(
+                ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, existingId),
+                new String[]{StockItemEntry.COLUMN_NAME}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Existing", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+        SystemClock.sleep(NOTIFICATION_WAIT_MS);
+        assertEquals(emitted, notificationStats().getLong(StockItemEntry.EXTRA_NOTIFICATIONS_EMITTED));
+    }
+
+    @Test
+    public void bulkInsertRollsBackOnInvalidRow() {
+        ContentValues[] values = newStockItems(BULK_ROWS);
+        values[BULK_ROWS - 1].put(StockItemEntry.COLUMN_PRICE, -1);
+        try {
+            mTestProvider.mProvider.bulkInsert(StockItemEntry.CONTENT_URI, values);
+            fail("A negative price must be rejected");
+        } catch (IllegalArgumentException expected) {
+            // None of the rows before it is kept
+        }
+        assertEquals(0, mTestProvider.countStockItems());
+    }
+
+    @Test
+    public void bulkInsertNotifiesOnceAndOutrunsSingleInserts() {
+        CountingObserver observer = CountingObserver.register(mTestProvider.mContext, StockItemEntry.CONTENT_URI);
+        try {
+            ContentValues[] values = newStockItems(BULK_ROWS);
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(BULK_ROWS, mTestProvider.mProvider.bulkInsert(StockItemEntry.CONTENT_URI, values));
+            long bulkMs = Math.max(SystemClock.elapsedRealtime() - start, 1);
+            assertEquals(BULK_ROWS, mTestProvider.countStockItems());
+
+            SystemClock.sleep(NOTIFICATION_WAIT_MS);
+            assertEquals(1, observer.getCount());
+
+            // The path every row took before, one transaction and one notification per row
+            values = newStockItems(SINGLE_ROWS);
+            start = SystemClock.elapsedRealtime();
+            for (ContentValues row : values) {
+                mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI, row);
+            }
+            long singleMs = Math.max(SystemClock.elapsedRealtime() - start, 1);
+
+            long bulkRowsPerSecond = BULK_ROWS * 1000L / bulkMs;
+            long singleRowsPerSecond = SINGLE_ROWS * 1000L / singleMs;
+            Log.i(LOG_TAG, "bulkInsert: " + bulkRowsPerSecond + " rows/s, insert: "
+                    + singleRowsPerSecond + " rows/s");
+            assertTrue(bulkRowsPerSecond > singleRowsPerSecond);
+        } finally {
+            observer.unregister(mTestProvider.mContext);
+        }
+    }
+
+    private Bundle notificationStats() {
+        return mTestProvider.mProvider.call(StockItemEntry.METHOD_NOTIFICATION_STATS, null, null);
+    }
+
+    private static ContentValues[] newStockItems(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = TestStockProvider.newStockItem("Item " + i, 1 + i % 50);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,113 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that stock items only change the contact data of a supplier through its own URI, and that
+ * stock items can be updated and deleted by the supplier columns.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockProviderSupplierTest {
+
+    private static final String SELECTION_BY_SUPPLIER = StockItemEntry.COLUMN_NAME_SUPPLIER + "=?";
+
+    private TestStockProvider mTestProvider;
+
+    @Before
+    public void setUp() {
+        mTestProvider = new TestStockProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mTestProvider.destroy();
+    }
+
+    @Test
+    public void rejectsOtherContactDataOfExistingSupplier() {
+        long id = ContentUris.parseId(mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI,
+                TestStockProvider.newStockItem("Milk", 1)));
+        ContentValues values = TestStockProvider.newStockItem("Butter", 1);
+        values.put(StockItemEntry.COLUMN_PHONE_SUPPLIER, "9876543210");
+        try {
+            mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI, values);
+            fail("Another phone of an existing supplier must be rejected");
+        } catch (IllegalArgumentException expected) {
+            // The supplier keeps its phone
+        }
+        assertEquals("0123456789", supplierPhoneOf(id));
+
+        // Through the URI of the supplier the phone does change
+        ContentValues contact = new ContentValues();
+        contact.put(SupplierEntry.COLUMN_PHONE, "9876543210");
+        long supplierId = supplierIdOf(id);
+        assertEquals(1, mTestProvider.mProvider.update(
+                ContentUris.withAppendedId(SupplierEntry.CONTENT_URI, supplierId), contact, null, null));
+        assertEquals("9876543210", supplierPhoneOf(id));
+    }
+
+    @Test
+    public void updatesAndDeletesBySupplierColumns() {
+        mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI, TestStockProvider.newStockItem("Milk", 1));
+        ContentValues other = TestStockProvider.newStockItem("Bread", 1);
+        other.put(StockItemEntry.COLUMN_NAME_SUPPLIER, "Other supplier");
+        mTestProvider.mProvider.insert(StockItemEntry.CONTENT_URI, other);
+
+        ContentValues price = new ContentValues();
+        price.put(StockItemEntry.COLUMN_PRICE, 300);
+        assertEquals(1, mTestProvider.mProvider.update(StockItemEntry.CONTENT_URI, price,
+                SELECTION_BY_SUPPLIER, new String[]{"Test supplier"}));
+
+        assertEquals(1, mTestProvider.mProvider.delete(StockItemEntry.CONTENT_URI,
+                SELECTION_BY_SUPPLIER, new String[]{"Other supplier"}));
+        Cursor cursor = mTestProvider.mProvider.query(StockItemEntry.CONTENT_URI,
+                new String[]{StockItemEntry.COLUMN_NAME, StockItemEntry.COLUMN_PRICE}, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Milk", cursor.getString(0));
+            assertEquals(300, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long supplierIdOf(long stockItemId) {
+        Cursor cursor = mTestProvider.mProvider.query(
+                ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, stockItemId),
+                new String[]{StockItemEntry.COLUMN_SUPPLIER_ID}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String supplierPhoneOf(long stockItemId) {
+        Cursor cursor = mTestProvider.mProvider.query(
+                ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, stockItemId),
+                new String[]{StockItemEntry.COLUMN_PHONE_SUPPLIER}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
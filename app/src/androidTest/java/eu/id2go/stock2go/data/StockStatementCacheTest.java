@@ -0,0 +1,168 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes stock items through the statement cache and times 100,000 quantity updates through it
+ * against the same updates through SQLiteDatabase#update.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StockStatementCacheTest {
+
+    private static final String LOG_TAG = StockStatementCacheTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "stock2go.db";
+
+    private static final String[] COLUMNS = {
+            StockItemEntry._ID,
+            StockItemEntry.COLUMN_NAME,
+            StockItemEntry.COLUMN_BRAND,
+            StockItemEntry.COLUMN_STOCK_QTY,
+            StockItemEntry.COLUMN_SUPPLIER_ID,
+            StockItemEntry.COLUMN_SECTION,
+            StockItemEntry.COLUMN_PRICE,
+            StockItemEntry.COLUMN_IMAGE,
+            StockItemEntry.COLUMN_REORDER_LEVEL
+    };
+
+    private static final int UPDATES = 100000;
+
+    /**
+     * Updates per transaction, so the timings are about the statements rather than the commits
+     */
+    private static final int BATCH_UPDATES = 1000;
+
+    private static final String WHERE_ID = StockItemEntry._ID + "=?";
+
+    private Context mContext;
+    private StockDbHelper mDbHelper;
+    private StockStatementCache mCache;
+    private long mSupplierId;
+
+    @Before
+    public void setUp() {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test.");
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new StockDbHelper(mContext);
+        mCache = new StockStatementCache(StockItemEntry.TABLE_NAME, COLUMNS);
+        ContentValues supplier = new ContentValues();
+        supplier.put(SupplierEntry.COLUMN_NAME, "Test supplier");
+        supplier.put(SupplierEntry.COLUMN_PHONE, "0123456789");
+        supplier.put(SupplierEntry.COLUMN_EMAIL, "test@supplier.eu");
+        mSupplierId = mDbHelper.getWritableDatabase().insert(SupplierEntry.TABLE_NAME, null, supplier);
+        assertTrue(mSupplierId != -1);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insertsAndUpdatesLikeTheDatabase() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long id = mCache.insert(db, newStockItem("Milk"));
+        assertTrue(id != -1);
+        // A column the table doesn't have fails like SQLiteDatabase#insert
+        ContentValues invalid = newStockItem("Invalid");
+        invalid.put("noSuchColumn", 1);
+        assertEquals(-1, mCache.insert(db, invalid));
+
+        ContentValues price = new ContentValues();
+        price.put(StockItemEntry.COLUMN_PRICE, 250);
+        assertEquals(1, mCache.update(db, price, WHERE_ID, new String[]{String.valueOf(id)}));
+        ContentValues quantity = new ContentValues();
+        quantity.put(StockItemEntry.COLUMN_STOCK_QTY, 7);
+        assertEquals(1, mCache.update(db, quantity, WHERE_ID, new String[]{String.valueOf(id)}));
+        assertEquals(0, mCache.update(db, quantity, WHERE_ID, new String[]{String.valueOf(id + 1)}));
+
+        Cursor cursor = db.query(StockItemEntry.TABLE_NAME, COLUMNS, WHERE_ID,
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Milk", cursor.getString(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_NAME)));
+            assertEquals(250, cursor.getInt(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_PRICE)));
+            assertEquals(7, cursor.getInt(cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_STOCK_QTY)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void timesQuantityUpdates() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long id = db.insert(StockItemEntry.TABLE_NAME, null, newStockItem("Counter"));
+        String[] whereArgs = {String.valueOf(id)};
+
+        // Warm up both paths, the first run also compiles the statements
+        updateQuantities(db, BATCH_UPDATES, whereArgs, false);
+        updateQuantities(db, BATCH_UPDATES, whereArgs, true);
+
+        long start = SystemClock.elapsedRealtime();
+        updateQuantities(db, UPDATES, whereArgs, false);
+        long databaseMs = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        updateQuantities(db, UPDATES, whereArgs, true);
+        long cachedMs = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(UPDATES - 1, DatabaseUtils.longForQuery(db, "SELECT " + StockItemEntry.COLUMN_STOCK_QTY
+                + " FROM " + StockItemEntry.TABLE_NAME + " WHERE " + WHERE_ID, whereArgs));
+        Log.i(LOG_TAG, UPDATES + " quantity updates: " + databaseMs + " ms through SQLiteDatabase#update, "
+                + cachedMs + " ms through the statement cache");
+    }
+
+    /**
+     * Set the quantity of the stock item to 0 up to count - 1, BATCH_UPDATES in a transaction
+     */
+    private void updateQuantities(SQLiteDatabase db, int count, String[] whereArgs, boolean cached) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < count; i += BATCH_UPDATES) {
+            db.beginTransaction();
+            try {
+                for (int quantity = i; quantity < Math.min(count, i + BATCH_UPDATES); quantity++) {
+                    values.put(StockItemEntry.COLUMN_STOCK_QTY, quantity);
+                    int rows = cached ? mCache.update(db, values, WHERE_ID, whereArgs)
+                            : db.update(StockItemEntry.TABLE_NAME, values, WHERE_ID, whereArgs);
+                    assertEquals(1, rows);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private ContentValues newStockItem(String name) {
+        ContentValues values = new ContentValues();
+        values.put(StockItemEntry.COLUMN_NAME, name);
+        values.put(StockItemEntry.COLUMN_BRAND, "Test brand");
+        values.put(StockItemEntry.COLUMN_STOCK_QTY, 1);
+        values.put(StockItemEntry.COLUMN_SUPPLIER_ID, mSupplierId);
+        values.put(StockItemEntry.COLUMN_SECTION, StockItemEntry.SECTION_DAIRY);
+        values.put(StockItemEntry.COLUMN_PRICE, 100);
+        values.put(StockItemEntry.COLUMN_IMAGE, "content://test/image");
+        return values;
+    }
+}
@@ -0,0 +1,111 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.test.RenamingDelegatingContext;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+/**
+ * A {@link StockProvider} on a database of its own, so the instrumented tests don't touch the
+ * stock items of the app. Its notifications still go to the ContentResolver of the app.
+ */
+final class TestStockProvider {
+
+    private static final String DATABASE_NAME = "stock2go.db";
+
+    final Context mContext;
+    final StockProvider mProvider;
+
+    TestStockProvider() {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test.");
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new StockProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = StockContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+    }
+
+    /**
+     * Close and delete the database
+     */
+    void destroy() {
+        mProvider.shutdown();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Returns the number of stock items in the database
+     */
+    int countStockItems() {
+        Cursor cursor = mProvider.query(StockItemEntry.CONTENT_URI,
+                new String[]{StockItemEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the values of a valid new stock item of the test supplier
+     */
+    static ContentValues newStockItem(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(StockItemEntry.COLUMN_NAME, name);
+        values.put(StockItemEntry.COLUMN_BRAND, "Test brand");
+        values.put(StockItemEntry.COLUMN_STOCK_QTY, quantity);
+        values.put(StockItemEntry.COLUMN_NAME_SUPPLIER, "Test supplier");
+        values.put(StockItemEntry.COLUMN_PHONE_SUPPLIER, "0123456789");
+        values.put(StockItemEntry.COLUMN_EMAIL_SUPPLIER, "test@supplier.eu");
+        values.put(StockItemEntry.COLUMN_SECTION, StockItemEntry.SECTION_DAIRY);
+        values.put(StockItemEntry.COLUMN_PRICE, 100);
+        values.put(StockItemEntry.COLUMN_IMAGE, "content://test/image");
+        return values;
+    }
+
+    /**
+     * Counts the change notifications of a URI, on a thread of its own
+     */
+    static final class CountingObserver extends ContentObserver {
+
+        private final HandlerThread mThread;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        static CountingObserver register(Context context, Uri uri) {
+            HandlerThread thread = new HandlerThread("CountingObserver");
+            thread.start();
+            CountingObserver observer = new CountingObserver(thread);
+            context.getContentResolver().registerContentObserver(uri, false, observer);
+            return observer;
+        }
+
+        private CountingObserver(HandlerThread thread) {
+            super(new Handler(thread.getLooper()));
+            mThread = thread;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mCount.incrementAndGet();
+        }
+
+        int getCount() {
+            return mCount.get();
+        }
+
+        void unregister(Context context) {
+            context.getContentResolver().unregisterContentObserver(this);
+            mThread.quit();
+        }
+    }
+}
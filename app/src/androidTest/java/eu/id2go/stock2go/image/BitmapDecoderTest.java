@@ -0,0 +1,227 @@
+package eu.id2go.stock2go.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.media.ExifInterface;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes a photo-sized JPEG, left half red and right half blue, at the size it is shown at and
+ * checks the sample size and the EXIF orientation of the decoded bitmap. Times the decode of a
+ * 12 megapixel camera JPEG taken in portrait against the two streams the editor used to open.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapDecoderTest {
+
+    private static final String LOG_TAG = BitmapDecoderTest.class.getSimpleName();
+
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1200;
+
+    /**
+     * A 12 megapixel camera photo, stored sideways with an EXIF orientation
+     */
+    private static final int CAMERA_WIDTH = 4000;
+    private static final int CAMERA_HEIGHT = 3000;
+    private static final int CAMERA_DECODES = 5;
+
+    /**
+     * The image view of the editor on a 1080p phone in portrait
+     */
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1440;
+
+    private Context mContext;
+    private File mImage;
+    private ExecutorService mExecutor;
+    private BitmapDecoder mDecoder;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mImage = new File(mContext.getCacheDir(), "bitmap_decoder_test.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setColor(Color.RED);
+        canvas.drawRect(0, 0, WIDTH / 2, HEIGHT, paint);
+        paint.setColor(Color.BLUE);
+        canvas.drawRect(WIDTH / 2, 0, WIDTH, HEIGHT, paint);
+        OutputStream output = new FileOutputStream(mImage);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, output);
+        } finally {
+            output.close();
+        }
+        bitmap.recycle();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mDecoder = new BitmapDecoder(mContext.getContentResolver(), new BitmapPool(0), mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mImage.delete();
+    }
+
+    @Test
+    public void calculatesLargestPowerOfTwoSampleSize() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(WIDTH, HEIGHT, WIDTH, HEIGHT));
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(WIDTH, HEIGHT, 400, 300));
+        // Both sides stay at least as large as requested
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(WIDTH, HEIGHT, 400, 500));
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(WIDTH, HEIGHT, 0, 0));
+    }
+
+    @Test
+    public void decodesSubsampled() {
+        long start = SystemClock.elapsedRealtime();
+        Bitmap bitmap = mDecoder.decode(Uri.fromFile(mImage), 400, 300);
+        Log.i(LOG_TAG, "Decoded " + WIDTH + "x" + HEIGHT + " at 400x300 in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        assertNotNull(bitmap);
+        assertEquals(400, bitmap.getWidth());
+        assertEquals(300, bitmap.getHeight());
+        assertRed(bitmap.getPixel(100, 150));
+        assertBlue(bitmap.getPixel(300, 150));
+    }
+
+    @Test
+    public void turnsImageUpright() throws IOException {
+        ExifInterface exif = new ExifInterface(mImage.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.saveAttributes();
+
+        // Shown in portrait, so the sideways image is compared with the rotated size
+        long start = SystemClock.elapsedRealtime();
+        Bitmap bitmap = mDecoder.decode(Uri.fromFile(mImage), 300, 400);
+        Log.i(LOG_TAG, "Decoded and rotated " + WIDTH + "x" + HEIGHT + " at 300x400 in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        assertNotNull(bitmap);
+        assertEquals(300, bitmap.getWidth());
+        assertEquals(400, bitmap.getHeight());
+        // Turned clockwise, the left half is on top
+        assertRed(bitmap.getPixel(150, 100));
+        assertBlue(bitmap.getPixel(150, 300));
+    }
+
+    @Test
+    public void timesLargeCameraJpegDecodes() throws IOException {
+        File photo = new File(mContext.getCacheDir(), "bitmap_decoder_test_camera.jpg");
+        try {
+            writeCameraJpeg(photo);
+            Uri uri = Uri.fromFile(photo);
+
+            // Alternate the two, so neither profits from a warmer file cache
+            long oneStreamMs = 0;
+            long twoStreamsMs = 0;
+            for (int i = 0; i < CAMERA_DECODES; i++) {
+                long start = SystemClock.elapsedRealtime();
+                Bitmap bitmap = mDecoder.decode(uri, VIEW_WIDTH, VIEW_HEIGHT);
+                oneStreamMs += SystemClock.elapsedRealtime() - start;
+                assertNotNull(bitmap);
+                // Subsampled by 2 and turned upright
+                assertEquals(CAMERA_HEIGHT / 2, bitmap.getWidth());
+                assertEquals(CAMERA_WIDTH / 2, bitmap.getHeight());
+                bitmap.recycle();
+
+                start = SystemClock.elapsedRealtime();
+                bitmap = decodeWithTwoStreams(uri, VIEW_WIDTH, VIEW_HEIGHT);
+                twoStreamsMs += SystemClock.elapsedRealtime() - start;
+                assertNotNull(bitmap);
+                // Still sideways, the old path ignored the EXIF orientation
+                assertEquals(CAMERA_WIDTH / 2, bitmap.getWidth());
+                bitmap.recycle();
+            }
+            Log.i(LOG_TAG, "Decoded " + CAMERA_WIDTH + "x" + CAMERA_HEIGHT + " JPEG of " + photo.length() / 1024
+                    + " KB at " + VIEW_WIDTH + "x" + VIEW_HEIGHT + " in " + oneStreamMs / CAMERA_DECODES
+                    + " ms from one stream with the EXIF rotation, " + twoStreamsMs / CAMERA_DECODES
+                    + " ms from two streams without");
+        } finally {
+            photo.delete();
+        }
+    }
+
+    /**
+     * Write a photo-like JPEG, a gradient with noise so it doesn't compress away, taken in
+     * portrait: stored sideways with EXIF orientation 90
+     */
+    private static void writeCameraJpeg(File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(CAMERA_WIDTH, CAMERA_HEIGHT, Bitmap.Config.ARGB_8888);
+        Random random = new Random(15);
+        int[] row = new int[CAMERA_WIDTH];
+        for (int y = 0; y < CAMERA_HEIGHT; y++) {
+            for (int x = 0; x < CAMERA_WIDTH; x++) {
+                row[x] = Color.rgb(x * 255 / CAMERA_WIDTH, y * 255 / CAMERA_HEIGHT, random.nextInt(64));
+            }
+            bitmap.setPixels(row, 0, CAMERA_WIDTH, 0, y, CAMERA_WIDTH, 1);
+        }
+        OutputStream output = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        } finally {
+            output.close();
+            bitmap.recycle();
+        }
+        ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.saveAttributes();
+    }
+
+    /**
+     * The decode the editor did before BitmapDecoder: the bounds from one stream, the pixels from
+     * a second one, subsampled by the smaller ratio of the image to the view and not rotated
+     */
+    private Bitmap decodeWithTwoStreams(Uri uri, int width, int height) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream input = mContext.getContentResolver().openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = Math.min(options.outWidth / width, options.outHeight / height);
+        input = mContext.getContentResolver().openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void assertRed(int pixel) {
+        assertTrue(Integer.toHexString(pixel), Color.red(pixel) > 200 && Color.blue(pixel) < 60);
+    }
+
+    private static void assertBlue(int pixel) {
+        assertTrue(Integer.toHexString(pixel), Color.blue(pixel) > 200 && Color.red(pixel) < 60);
+    }
+}
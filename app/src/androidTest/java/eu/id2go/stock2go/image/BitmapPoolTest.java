@@ -0,0 +1,175 @@
+package eu.id2go.stock2go.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that decodes reuse the bitmaps in the pool, counted by its hits, and compares the time,
+ * the garbage collections and the allocations of a decode with and without a pooled bitmap. The
+ * decodes stand in for the thumbnails of the rows scrolled into the catalog list, a scroll of the
+ * list itself would read the stock items of the app.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapPoolTest {
+
+    private static final String LOG_TAG = BitmapPoolTest.class.getSimpleName();
+
+    private static final long POOL_BYTES = 4 * 1024 * 1024;
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 300;
+    private static final int DECODES = 50;
+
+    private Context mContext;
+    private File mImage;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mImage = new File(mContext.getCacheDir(), "bitmap_pool_test.png");
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GREEN);
+        OutputStream output = new FileOutputStream(mImage);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, output);
+        } finally {
+            output.close();
+        }
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mImage.delete();
+    }
+
+    @Test
+    public void takesPooledBitmapOnce() {
+        BitmapPool pool = new BitmapPool(POOL_BYTES);
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = WIDTH;
+        options.outHeight = HEIGHT;
+        pool.addInBitmapOptions(options);
+        assertSame(bitmap, options.inBitmap);
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getMissCount());
+
+        // It left the pool with the first decode
+        pool.addInBitmapOptions(options);
+        assertNull(options.inBitmap);
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void decodesIntoPooledBitmaps() {
+        Uri uri = Uri.fromFile(mImage);
+        BitmapPool pool = new BitmapPool(POOL_BYTES);
+        BitmapDecoder decoder = new BitmapDecoder(mContext.getContentResolver(), pool, mExecutor);
+        Bitmap bitmap = decoder.decode(uri, WIDTH, HEIGHT);
+        assertNotNull(bitmap);
+        assertEquals(0, pool.getHitCount());
+
+        RuntimeStats pooledStats = RuntimeStats.start();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < DECODES; i++) {
+            pool.put(bitmap);
+            Bitmap decoded = decoder.decode(uri, WIDTH, HEIGHT);
+            assertSame(bitmap, decoded);
+        }
+        long pooledMs = SystemClock.elapsedRealtime() - start;
+        pooledStats.stop();
+        assertEquals(DECODES, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        // A pool without room recycles every bitmap, every decode allocates
+        BitmapPool noPool = new BitmapPool(0);
+        decoder = new BitmapDecoder(mContext.getContentResolver(), noPool, mExecutor);
+        RuntimeStats allocatingStats = RuntimeStats.start();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < DECODES; i++) {
+            noPool.put(bitmap);
+            bitmap = decoder.decode(uri, WIDTH, HEIGHT);
+        }
+        long allocatingMs = SystemClock.elapsedRealtime() - start;
+        allocatingStats.stop();
+        assertEquals(0, noPool.getHitCount());
+        assertEquals(DECODES, noPool.getMissCount());
+
+        Log.i(LOG_TAG, DECODES + " decodes of " + WIDTH + "x" + HEIGHT + ": " + pooledMs
+                + " ms reusing pooled bitmaps, " + pooledStats + "; " + allocatingMs + " ms allocating, "
+                + allocatingStats);
+    }
+
+    /**
+     * The garbage collections and the allocations on the Java heap of the app between start() and
+     * stop(). Since Android 8.0 the pixels of a bitmap are allocated outside the Java heap, so only
+     * the garbage collections still show them. The collections are counted since Android 6.0.
+     */
+    private static final class RuntimeStats {
+
+        private long mGcCount;
+        private long mAllocations;
+        private long mAllocatedBytes;
+
+        static RuntimeStats start() {
+            RuntimeStats stats = new RuntimeStats();
+            stats.mGcCount = -getGcCount();
+            Debug.resetGlobalAllocCount();
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            return stats;
+        }
+
+        void stop() {
+            Debug.stopAllocCounting();
+            mAllocations = Debug.getGlobalAllocCount();
+            mAllocatedBytes = Debug.getGlobalAllocSize();
+            mGcCount += getGcCount();
+        }
+
+        private static long getGcCount() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return 0;
+            }
+            String gcCount = Debug.getRuntimeStat("art.gc.gc-count");
+            return gcCount == null ? 0 : Long.parseLong(gcCount);
+        }
+
+        @Override
+        public String toString() {
+            return mGcCount + " garbage collections, " + mAllocations + " allocations of "
+                    + mAllocatedBytes / 1024 + " KB";
+        }
+    }
+}
@@ -16,27 +16,49 @@
 
 package eu.id2go.stock2go;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.AsyncQueryHandler;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+
+import eu.id2go.stock2go.data.StockBackup;
 import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockCsvImporter;
+import eu.id2go.stock2go.data.StockExporter;
+import eu.id2go.stock2go.data.StockRepository;
+import eu.id2go.stock2go.data.StockWriteQueue;
+import eu.id2go.stock2go.image.ImageLoader;
 
 
 /**
@@ -46,8 +68,222 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
     private static final int STOCK_LOADER = 0;
 
+    /**
+     * Loader for the search results, restarted for every search so a stale query is cancelled
+     */
+    private static final int SEARCH_LOADER = 1;
+
+    /**
+     * Wait this many milliseconds after the last keystroke before searching,
+     * and show at most SEARCH_LIMIT results
+     */
+    private static final long SEARCH_DELAY_MS = 250;
+    private static final int SEARCH_LIMIT = 200;
+    private static final String ARG_SEARCH_TEXT = "searchText";
+
+    /**
+     * Load the catalog one page at a time while the user scrolls, instead of all rows at once.
+     * Every page has its own loader, with the id FIRST_PAGE_LOADER + the number of the page.
+     */
+    private static final boolean PAGED_LIST_MODE = true;
+    private static final int FIRST_PAGE_LOADER = 100;
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Keys of the loader arguments with the name and _ID of the last row of the previous page
+     */
+    private static final String ARG_AFTER_NAME = "afterName";
+    private static final String ARG_AFTER_ID = "afterId";
+
+    /**
+     * Keep the list up to date by re-fetching only the stock items that changed and patching their rows,
+     * instead of reloading the whole list. The list loaders then only reload for structural changes.
+     */
+    private static final boolean INCREMENTAL_REFRESH_MODE = true;
+
+    /**
+     * Show the catalog in a RecyclerView with {@link StockRecyclerAdapter}, which rebinds only the
+     * rows that changed, instead of the ListView with {@link StockCursorAdapter}. Switch it off to
+     * compare the frame times of both.
+     */
+    private static final boolean RECYCLER_VIEW_MODE = true;
+
+    /**
+     * The columns of the stock2go table shown in the list. The provider reads them from the list
+     * index alone, without the supplier columns.
+     */
+    private static final String[] CATALOG_PROJECTION = StockItemEntry.LIST_PROJECTION;
+
+    /**
+     * Request code of the picker for the CSV file to import
+     */
+    private static final int PICK_CSV_REQUEST = 0;
+
+    /**
+     * Request codes of the picker for the document to export to, one per format
+     */
+    private static final int CREATE_CSV_REQUEST = 1;
+    private static final int CREATE_JSON_REQUEST = 2;
+
+    /**
+     * Request codes of the pickers for the document to back up the database to and to restore it from
+     */
+    private static final int CREATE_BACKUP_REQUEST = 3;
+    private static final int PICK_BACKUP_REQUEST = 4;
+
     StockCursorAdapter mCursorAdapter;
 
+    private ListView mStockItemListView;
+
+    /**
+     * The list in recycler view mode
+     */
+    private StockRecyclerAdapter mRecyclerAdapter;
+    private RecyclerView mStockItemRecyclerView;
+
+    /**
+     * Re-fetches changed stock items on a background thread
+     */
+    private AsyncQueryHandler mRowQueryHandler;
+
+    /**
+     * Observes the URIs of the single stock items in incremental refresh mode
+     */
+    private final ContentObserver mRowObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // Structural changes reach the list loaders through the structure URI
+            if (uri != null && StockItemEntry.isStockItemUri(uri)) {
+                mRowQueryHandler.startQuery(0, ContentUris.parseId(uri), uri, CATALOG_PROJECTION,
+                        null, null, null);
+            }
+        }
+    };
+
+    /**
+     * Shows the sales queued from the buy buttons, their committed quantities and their failures
+     */
+    private final StockWriteQueue.Listener mWriteListener = new StockWriteQueue.Listener() {
+        @Override
+        public void onQuantityQueued(long id) {
+            rebindVisibleRow(id);
+        }
+
+        @Override
+        public void onQuantityCommitted(long id, long quantity) {
+            ContentValues values = new ContentValues();
+            values.put(StockItemEntry.COLUMN_STOCK_QTY, quantity);
+            patchVisibleRow(id, values);
+        }
+
+        @Override
+        public void onQuantityFailed(long id) {
+            // The item is gone or sold out, the row shows the quantity without the sale again
+            Toast.makeText(CatalogActivity.this, R.string.toast_error_adding_item_to_cart, Toast.LENGTH_LONG).show();
+            rebindVisibleRow(id);
+        }
+    };
+
+    /**
+     * Shows the progress of a CSV import in the app bar, and its outcome
+     */
+    private final StockCsvImporter.Listener mImportListener = new StockCsvImporter.Listener() {
+        @Override
+        public void onImportProgress(long rowsRead, long rowsImported) {
+            setProgressSubtitle(getString(R.string.import_progress, rowsRead, rowsImported));
+        }
+
+        @Override
+        public void onImportRowError(long line, String message) {
+            Log.w("CatalogActivity", "Import rejected line " + line + ": " + message);
+        }
+
+        @Override
+        public void onImportFinished(long rowsImported, long rowsRejected) {
+            setProgressSubtitle(null);
+            Toast.makeText(CatalogActivity.this, getString(R.string.toast_import_finished, rowsImported, rowsRejected),
+                    Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        public void onImportFailed(long rowsImported) {
+            setProgressSubtitle(null);
+            Toast.makeText(CatalogActivity.this, getString(R.string.toast_error_import, rowsImported),
+                    Toast.LENGTH_LONG).show();
+        }
+    };
+
+    /**
+     * Shows the progress of an export in the app bar, and its outcome
+     */
+    private final StockExporter.Listener mExportListener = new StockExporter.Listener() {
+        @Override
+        public void onExportProgress(long rowsWritten) {
+            setProgressSubtitle(getString(R.string.export_progress, rowsWritten));
+        }
+
+        @Override
+        public void onExportFinished(long rowsWritten) {
+            setProgressSubtitle(null);
+            Toast.makeText(CatalogActivity.this, getString(R.string.toast_export_finished, rowsWritten),
+                    Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        public void onExportFailed(long rowsWritten) {
+            setProgressSubtitle(null);
+            Toast.makeText(CatalogActivity.this, R.string.toast_error_export, Toast.LENGTH_LONG).show();
+        }
+    };
+
+    /**
+     * Whether the next export is compressed, toggled in the options menu
+     */
+    private boolean mExportGzip;
+
+    /**
+     * The cursors of the pages loaded so far, owned by their loaders
+     */
+    private final ArrayList<Cursor> mPages = new ArrayList<>();
+
+    /**
+     * The loader arguments of the page following each loaded page, read from the page when it was
+     * loaded. They stay valid after the loader of the page has been reset.
+     */
+    private final ArrayList<Bundle> mNextPageArgs = new ArrayList<>();
+
+    /**
+     * Whether the next page is being loaded, and whether there is a next page at all
+     */
+    private boolean mLoadingPage;
+    private boolean mHasMorePages;
+
+    /**
+     * The cursor of the whole catalog when not in paged mode, owned by its loader
+     */
+    private Cursor mCatalogCursor;
+
+    /**
+     * Whether the list shows search results instead of the catalog, and the pending search
+     */
+    private boolean mSearching;
+    private String mSearchText;
+    private final Handler mSearchHandler = new Handler();
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Bundle args = new Bundle();
+            args.putString(ARG_SEARCH_TEXT, mSearchText);
+            // Restarting the loader cancels the search that may still be running
+            getLoaderManager().restartLoader(SEARCH_LOADER, args, CatalogActivity.this);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -65,20 +301,85 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
         // Find the ListView which will be populated with the stockItem data
         ListView stockItemListView = findViewById(R.id.list);
+        mStockItemListView = stockItemListView;
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        stockItemListView.setEmptyView(emptyView);
+        if (RECYCLER_VIEW_MODE) {
+            setupRecyclerView();
+        } else {
+            // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
+            View emptyView = findViewById(R.id.empty_view);
+            stockItemListView.setEmptyView(emptyView);
+        }
 
         // Setup an Adapter to create a list item for each row of stockItem data in the Cursor.
         // There is no stockItem data yet (until the loader finishes) so pass in null for the Cursor.
         mCursorAdapter = new StockCursorAdapter(this, null);
         stockItemListView.setAdapter(mCursorAdapter);
 
-        /*
-         * Initializes the CursorLoader. The STOCK_Loader value is eventually passed to onCreateLoader().
-         */
-        getLoaderManager().initLoader(STOCK_LOADER, null, this);
+        // A row scrolled out of view no longer needs its image, its bitmap can be reused
+        stockItemListView.setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                ImageView image = view.findViewById(R.id.list_item_image_view);
+                if (image != null) {
+                    ImageLoader.get(CatalogActivity.this).release(image);
+                }
+            }
+        });
+
+        mRowQueryHandler = new AsyncQueryHandler(getContentResolver()) {
+            @Override
+            protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                if (cursor == null) {
+                    return;
+                }
+                try {
+                    if (cursor.moveToFirst()) {
+                        ContentValues values = new ContentValues();
+                        DatabaseUtils.cursorRowToContentValues(cursor, values);
+                        patchVisibleRow((Long) cookie, values);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+
+        StockWriteQueue.get(this).addListener(mWriteListener);
+        StockCsvImporter.get(this).addListener(mImportListener);
+        StockExporter.get(this).addListener(mExportListener);
+
+        if (INCREMENTAL_REFRESH_MODE) {
+            // Observe the stock item URIs below the CONTENT_URI for as long as the list exists,
+            // so changes made while another activity is in front are patched too
+            getContentResolver().registerContentObserver(StockItemEntry.CONTENT_URI, true, mRowObserver);
+        }
+
+        if (PAGED_LIST_MODE) {
+            // Start with the first page, the next pages are loaded when the user scrolls near the end
+            mLoadingPage = true;
+            getLoaderManager().initLoader(FIRST_PAGE_LOADER, null, this);
+            // The recycler view loads the next page from its own scroll listener
+            stockItemListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                }
+
+                @Override
+                public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                     int totalItemCount) {
+                    if (!mSearching
+                            && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 4) {
+                        loadNextPage();
+                    }
+                }
+            });
+        } else {
+            /*
+             * Initializes the CursorLoader. The STOCK_Loader value is eventually passed to onCreateLoader().
+             */
+            getLoaderManager().initLoader(STOCK_LOADER, null, this);
+        }
 
         // Setup item click listener
         stockItemListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -106,6 +407,232 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
 
 
+    /**
+     * Show the list in a RecyclerView instead of the ListView. It gets the same empty view, item
+     * clicks and paging as the ListView.
+     */
+    private void setupRecyclerView() {
+        mStockItemListView.setVisibility(View.GONE);
+        final View emptyView = findViewById(R.id.empty_view);
+        mStockItemRecyclerView = findViewById(R.id.recycler);
+        mStockItemRecyclerView.setVisibility(View.VISIBLE);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        mStockItemRecyclerView.setLayoutManager(layoutManager);
+
+        mRecyclerAdapter = new StockRecyclerAdapter(this, new StockRecyclerAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(long id) {
+                // Open the {@link EditorActivity} for the clicked stockItem, as the ListView does
+                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+                intent.setData(ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, id));
+                startActivity(intent);
+            }
+        });
+        mRecyclerAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                // Only show the empty view when the list has 0 items
+                emptyView.setVisibility(mRecyclerAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onChanged();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onChanged();
+            }
+        });
+        mStockItemRecyclerView.setAdapter(mRecyclerAdapter);
+
+        if (PAGED_LIST_MODE) {
+            mStockItemRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                    if (!mSearching && layoutManager.findLastVisibleItemPosition()
+                            >= mRecyclerAdapter.getItemCount() - PAGE_SIZE / 4) {
+                        loadNextPage();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Show the given cursor in the list of the current mode
+     */
+    private void swapListCursor(Cursor cursor) {
+        if (RECYCLER_VIEW_MODE) {
+            mRecyclerAdapter.swapCursor(cursor);
+        } else {
+            mCursorAdapter.swapCursor(cursor);
+        }
+    }
+
+    /**
+     * Show the re-fetched values of a changed stock item, and rebind its row if it is visible.
+     * The other rows and the cursor stay as they are.
+     */
+    private void patchVisibleRow(long id, ContentValues values) {
+        if (RECYCLER_VIEW_MODE) {
+            mRecyclerAdapter.patchRow(id, values);
+            return;
+        }
+        mCursorAdapter.patchRow(id, values);
+        rebindVisibleRow(id);
+    }
+
+    /**
+     * Rebind the row of a stock item if it is visible, ex: to show its pending quantity
+     */
+    private void rebindVisibleRow(long id) {
+        if (RECYCLER_VIEW_MODE) {
+            mRecyclerAdapter.rebindRow(id);
+            return;
+        }
+        int firstPosition = mStockItemListView.getFirstVisiblePosition();
+        for (int i = 0; i < mStockItemListView.getChildCount(); i++) {
+            int position = firstPosition + i;
+            if (position < mCursorAdapter.getCount() && mCursorAdapter.getItemId(position) == id) {
+                mCursorAdapter.getView(position, mStockItemListView.getChildAt(i), mStockItemListView);
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Drop a search that is still waiting for the user to stop typing
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        if (INCREMENTAL_REFRESH_MODE) {
+            getContentResolver().unregisterContentObserver(mRowObserver);
+        }
+        StockWriteQueue.get(this).removeListener(mWriteListener);
+        StockCsvImporter.get(this).removeListener(mImportListener);
+        StockExporter.get(this).removeListener(mExportListener);
+        super.onDestroy();
+    }
+
+    /**
+     * Start loading the page after the last loaded page, unless it is already loading or
+     * the last page has been loaded.
+     */
+    private void loadNextPage() {
+        if (mLoadingPage || !mHasMorePages || mPages.isEmpty()) {
+            return;
+        }
+        mLoadingPage = true;
+        int page = mPages.size();
+        getLoaderManager().initLoader(FIRST_PAGE_LOADER + page, mNextPageArgs.get(page - 1), this);
+    }
+
+    /**
+     * Returns the loader arguments for the page following the given page. Call it when the page
+     * is delivered, before it is shown in the list.
+     */
+    private static Bundle pageArgs(Cursor previousPage) {
+        Bundle args = new Bundle();
+        if (previousPage.moveToLast()) {
+            args.putString(ARG_AFTER_NAME,
+                    previousPage.getString(previousPage.getColumnIndexOrThrow(StockItemEntry.COLUMN_NAME)));
+            args.putLong(ARG_AFTER_ID,
+                    previousPage.getLong(previousPage.getColumnIndexOrThrow(StockItemEntry._ID)));
+        }
+        return args;
+    }
+
+    /**
+     * Store a page that was loaded or reloaded and show all pages loaded so far in the list.
+     */
+    private void onPageLoaded(int page, Cursor data) {
+        if (data == null) {
+            // The query failed, stop paging instead of loading the next page after nothing
+            mHasMorePages = false;
+            mLoadingPage = false;
+            return;
+        }
+        Bundle nextPageArgs = pageArgs(data);
+        boolean reloaded = page < mPages.size();
+        if (reloaded) {
+            mPages.set(page, data);
+            mNextPageArgs.set(page, nextPageArgs);
+        } else {
+            mPages.add(data);
+            mNextPageArgs.add(nextPageArgs);
+        }
+
+        if (data.getCount() < PAGE_SIZE) {
+            // This is the last page, drop the pages that came after it before it shrunk
+            for (int next = mPages.size() - 1; next > page; next--) {
+                getLoaderManager().destroyLoader(FIRST_PAGE_LOADER + next);
+                mPages.remove(next);
+                mNextPageArgs.remove(next);
+            }
+            mHasMorePages = false;
+            mLoadingPage = false;
+        } else if (page == mPages.size() - 1) {
+            mHasMorePages = true;
+            mLoadingPage = false;
+        } else if (reloaded) {
+            // The last row of this page may have changed, so the next page has to follow the new one
+            getLoaderManager().restartLoader(FIRST_PAGE_LOADER + page + 1, nextPageArgs, this);
+        }
+
+        showPages();
+    }
+
+    /**
+     * Search for the given text once the user stops typing for SEARCH_DELAY_MS.
+     * An empty text ends the search and shows the catalog again.
+     */
+    private void search(String text) {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        if (TextUtils.isEmpty(text.trim())) {
+            if (mSearching) {
+                mSearching = false;
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+                showCatalog();
+            }
+            return;
+        }
+        mSearching = true;
+        mSearchText = text;
+        mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+    }
+
+    /**
+     * Show the catalog in the list, either the pages loaded so far or the whole catalog
+     */
+    private void showCatalog() {
+        if (PAGED_LIST_MODE) {
+            showPages();
+        } else {
+            swapListCursor(mCatalogCursor);
+        }
+    }
+
+    /**
+     * Show the pages loaded so far as one list. The loaders own the page cursors,
+     * the MergeCursor only puts them after each other.
+     */
+    private void showPages() {
+        if (mSearching) {
+            return;
+        }
+        ArrayList<Cursor> loadedPages = new ArrayList<>();
+        for (Cursor page : mPages) {
+            if (page != null) {
+                loadedPages.add(page);
+            }
+        }
+        if (loadedPages.isEmpty()) {
+            swapListCursor(null);
+        } else {
+            swapListCursor(new MergeCursor(loadedPages.toArray(new Cursor[loadedPages.size()])));
+        }
+    }
+
     /**
      * Helper method to insert hardcoded stockItem dummy data into the database. For use as sample data and debugging purposes only.
      */
@@ -131,16 +658,19 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // this is set to "null", then the framework will not insert a row when
         // there are no values).
         // The third argument is the ContentValues object containing the info for Toto.
-        Uri newUri = getContentResolver().insert(StockItemEntry.CONTENT_URI, values);
-
-        // Show a toast message of either success saving or error saving
-        if (newUri == null) {
-            // If the row ID is -1, then saving resulted in an error
-            Toast.makeText(this, getString(R.string.toast_error_inserting_dummy_stock_item_data), Toast.LENGTH_LONG).show();
-        } else {
-            // Otherwise saving was successful and a toast displays showing a row ID
-            Toast.makeText(this, getString(R.string.toast_success_inserting_dummy_stock_item_data), Toast.LENGTH_LONG).show();
-        }
+        StockRepository.get(this).insert(StockItemEntry.CONTENT_URI, values, new StockRepository.Callback<Uri>() {
+            @Override
+            public void onComplete(Uri newUri) {
+                // Show a toast message of either success saving or error saving
+                if (newUri == null) {
+                    // If the row ID is -1, then saving resulted in an error
+                    Toast.makeText(CatalogActivity.this, getString(R.string.toast_error_inserting_dummy_stock_item_data), Toast.LENGTH_LONG).show();
+                } else {
+                    // Otherwise saving was successful and a toast displays showing a row ID
+                    Toast.makeText(CatalogActivity.this, getString(R.string.toast_success_inserting_dummy_stock_item_data), Toast.LENGTH_LONG).show();
+                }
+            }
+        });
     }
 
     @Override
@@ -148,6 +678,32 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        // Creating a document to export to needs the Storage Access Framework
+        if (Build.VERSION.SDK_INT < 19) {
+            menu.findItem(R.id.action_export_csv).setVisible(false);
+            menu.findItem(R.id.action_export_json).setVisible(false);
+            menu.findItem(R.id.action_export_gzip).setVisible(false);
+            menu.findItem(R.id.action_backup_database).setVisible(false);
+            menu.findItem(R.id.action_restore_database).setVisible(false);
+        }
+        menu.findItem(R.id.action_export_gzip).setChecked(mExportGzip);
+
+        // Search as the user types
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
         return true;
     }
 
@@ -163,28 +719,187 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_delete_all_entries:
                 deleteAllStockItem();
                 return true;
+            // Respond to a click on the "Import CSV" menu option
+            case R.id.action_import_csv:
+                openCsvSelector();
+                return true;
+            // Respond to a click on the "Export CSV" or "Export JSON" menu option
+            case R.id.action_export_csv:
+                createExportDocument(CREATE_CSV_REQUEST);
+                return true;
+            case R.id.action_export_json:
+                createExportDocument(CREATE_JSON_REQUEST);
+                return true;
+            case R.id.action_export_gzip:
+                mExportGzip = !item.isChecked();
+                item.setChecked(mExportGzip);
+                return true;
+            // Respond to a click on the "Back up" or "Restore backup" menu option
+            case R.id.action_backup_database:
+                createBackupDocument();
+                return true;
+            case R.id.action_restore_database:
+                openBackupSelector();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     /**
-     * Helper method to delete all stock2go in the database for Developer database testing purposes only!
+     * Let the user pick a CSV file to import the stock items of
      */
-    private void deleteAllStockItem() {
-        int rowsDeleted = getContentResolver().delete(StockItemEntry.CONTENT_URI, null, null);
-        if (rowsDeleted == 0) {
-            // If no rows were affected, then there was an error deleting the Table in the database.
-            Log.v("CatalogActivity", rowsDeleted + getString(R.string.error_deleting_all_entries));
+    private void openCsvSelector() {
+        Intent intent;
+        if (Build.VERSION.SDK_INT < 19) {
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.setType("text/*");
+        } else {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            // CSV files are shared with several MIME types
+            intent.setType("*/*");
+            intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"text/csv",
+                    "text/comma-separated-values", "text/plain", "application/vnd.ms-excel"});
+        }
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.action_import_csv)), PICK_CSV_REQUEST);
+    }
 
-            Toast.makeText(this, getString(R.string.error_deleting_all_entries),
-                    Toast.LENGTH_SHORT).show();
+    /**
+     * Let the user create the document to export the stock items to. Only called on API 19 and
+     * later, the export options are hidden before.
+     */
+    private void createExportDocument(int requestCode) {
+        boolean json = requestCode == CREATE_JSON_REQUEST;
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        String name = json ? "stock2go.json" : "stock2go.csv";
+        if (mExportGzip) {
+            intent.setType("application/gzip");
+            name += ".gz";
         } else {
-            // Otherwise, deletion was successful
-            Log.v("CatalogActivity", rowsDeleted + getString(R.string.confirmation_deletion_all_entries));
+            intent.setType(json ? "application/json" : "text/csv");
+        }
+        intent.putExtra(Intent.EXTRA_TITLE, name);
+        startActivityForResult(intent, requestCode);
+    }
+
+    /**
+     * Let the user create the document to back up the database to. Only called on API 19 and
+     * later, like the export.
+     */
+    private void createBackupDocument() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("application/octet-stream");
+        intent.putExtra(Intent.EXTRA_TITLE, "stock2go.backup");
+        startActivityForResult(intent, CREATE_BACKUP_REQUEST);
+    }
 
-            Toast.makeText(this, getString(R.string.confirmation_deletion_all_entries) + mCursorAdapter.getCount(), Toast.LENGTH_LONG).show();
+    /**
+     * Let the user pick a backup to restore
+     */
+    private void openBackupSelector() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        startActivityForResult(intent, PICK_BACKUP_REQUEST);
+    }
+
+    /**
+     * Ask before the backup replaces every stock item, then restore it in the background
+     */
+    private void confirmRestore(final Uri backup) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.restore_confirmation);
+        builder.setPositiveButton(R.string.action_restore_database, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                setProgressSubtitle(getString(R.string.restore_progress));
+                StockBackup.get(CatalogActivity.this).restoreAsync(backup, new StockRepository.Callback<Boolean>() {
+                    @Override
+                    public void onComplete(Boolean restored) {
+                        // The provider notifies every list, they reload from the restored database
+                        setProgressSubtitle(null);
+                        Toast.makeText(CatalogActivity.this, restored ? R.string.toast_restore_finished
+                                : R.string.toast_error_restore, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent resultData) {
+        if (requestCode == CREATE_BACKUP_REQUEST && resultCode == RESULT_OK && resultData != null
+                && resultData.getData() != null) {
+            setProgressSubtitle(getString(R.string.backup_progress));
+            StockBackup.get(this).backupAsync(resultData.getData(), new StockRepository.Callback<Long>() {
+                @Override
+                public void onComplete(Long databaseLength) {
+                    setProgressSubtitle(null);
+                    Toast.makeText(CatalogActivity.this, databaseLength != null ? R.string.toast_backup_finished
+                            : R.string.toast_error_backup, Toast.LENGTH_LONG).show();
+                }
+            });
+            return;
+        }
+        if (requestCode == PICK_BACKUP_REQUEST && resultCode == RESULT_OK && resultData != null
+                && resultData.getData() != null) {
+            confirmRestore(resultData.getData());
+            return;
         }
+        if ((requestCode == CREATE_CSV_REQUEST || requestCode == CREATE_JSON_REQUEST)
+                && resultCode == RESULT_OK && resultData != null && resultData.getData() != null) {
+            // The stock items are read and written page by page in the background
+            setProgressSubtitle(getString(R.string.export_progress, 0));
+            StockExporter.get(this).exportAsync(resultData.getData(),
+                    requestCode == CREATE_JSON_REQUEST ? StockExporter.FORMAT_JSON : StockExporter.FORMAT_CSV,
+                    mExportGzip, StockExporter.ALL_SECTIONS);
+            return;
+        }
+        if (requestCode == PICK_CSV_REQUEST && resultCode == RESULT_OK && resultData != null
+                && resultData.getData() != null) {
+            // The rows are read and inserted in the background, the list shows every committed batch
+            setProgressSubtitle(getString(R.string.import_progress, 0, 0));
+            StockCsvImporter.get(this).importAsync(resultData.getData());
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, resultData);
+    }
 
+    /**
+     * Show the progress of an import, export, backup or restore below the title, or nothing
+     */
+    private void setProgressSubtitle(String subtitle) {
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(subtitle);
+        }
+    }
+
+    /**
+     * Helper method to delete all stock2go in the database for Developer database testing purposes only!
+     */
+    private void deleteAllStockItem() {
+        StockRepository.get(this).delete(StockItemEntry.CONTENT_URI, new StockRepository.Callback<Integer>() {
+            @Override
+            public void onComplete(Integer rowsDeleted) {
+                if (rowsDeleted == 0) {
+                    // If no rows were affected, then there was an error deleting the Table in the database.
+                    Log.v("CatalogActivity", rowsDeleted + getString(R.string.error_deleting_all_entries));
+
+                    Toast.makeText(CatalogActivity.this, getString(R.string.error_deleting_all_entries),
+                            Toast.LENGTH_SHORT).show();
+                } else {
+                    // Otherwise, deletion was successful
+                    Log.v("CatalogActivity", rowsDeleted + getString(R.string.confirmation_deletion_all_entries));
+
+                    Toast.makeText(CatalogActivity.this, getString(R.string.confirmation_deletion_all_entries)
+                            + (RECYCLER_VIEW_MODE ? mRecyclerAdapter.getItemCount() : mCursorAdapter.getCount()), Toast.LENGTH_LONG).show();
+                }
+            }
+        });
     }
 
     /**
@@ -197,22 +912,39 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // Define the range of columns from the database to be used
-        String[] projection = {
-                StockItemEntry._ID,
-                StockItemEntry.COLUMN_NAME,
-                StockItemEntry.COLUMN_BRAND,
-                StockItemEntry.COLUMN_STOCK_QTY,
-                StockItemEntry.COLUMN_NAME_SUPPLIER,
-                StockItemEntry.COLUMN_PHONE_SUPPLIER,
-                StockItemEntry.COLUMN_EMAIL_SUPPLIER,
-                StockItemEntry.COLUMN_SECTION,
-                StockItemEntry.COLUMN_PRICE,
-                StockItemEntry.COLUMN_IMAGE};
+        String[] projection = CATALOG_PROJECTION;
+
+        if (id == SEARCH_LOADER) {
+            return new CursorLoader(this,
+                    StockItemEntry.buildSearchUri(args.getString(ARG_SEARCH_TEXT), SEARCH_LIMIT),
+                    projection, null, null, null);
+        }
+
+        if (id >= FIRST_PAGE_LOADER) {
+            // Query a single page, following the last row of the previous page if there is one
+            Uri pageUri;
+            if (args != null && args.containsKey(ARG_AFTER_NAME)) {
+                pageUri = StockItemEntry.buildPageUri(PAGE_SIZE,
+                        args.getString(ARG_AFTER_NAME), args.getLong(ARG_AFTER_ID));
+            } else {
+                pageUri = StockItemEntry.buildPageUri(PAGE_SIZE, null, 0);
+            }
+            if (INCREMENTAL_REFRESH_MODE) {
+                pageUri = StockItemEntry.observeStructure(pageUri);
+            }
+            return new CursorLoader(this, pageUri, projection, null, null,
+                    StockItemEntry.PAGE_SORT_ORDER);
+        }
+
+        Uri catalogUri = StockItemEntry.CONTENT_URI;
+        if (INCREMENTAL_REFRESH_MODE) {
+            catalogUri = StockItemEntry.observeStructure(catalogUri);
+        }
 
         // Perform a query on the provider using the ContentResolver.
         // Use the {@link StockItemEntry#CONTENT_URI} to access the stockItem data.
         return new CursorLoader(this,
-                StockItemEntry.CONTENT_URI,    // The Content URI of the stock2go Table of the db to query
+                catalogUri,    // The Content URI of the stock2go Table of the db to query
                 projection,               // The above range of columns to return for each row
                 null,            // The column for the WHERE query
                 null,         // Selection criteria
@@ -256,11 +988,27 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 
+        if (loader.getId() >= FIRST_PAGE_LOADER) {
+            onPageLoaded(loader.getId() - FIRST_PAGE_LOADER, data);
+            return;
+        }
+
+        if (loader.getId() == SEARCH_LOADER) {
+            // A search that ended while it was loading is not shown anymore
+            if (mSearching) {
+                swapListCursor(data);
+            }
+            return;
+        }
+
         /*
          * Moves the query results into the adapter, causing the ListView fronting this adapter to
          * re-display the updated data
          */
-        mCursorAdapter.swapCursor(data);
+        mCatalogCursor = data;
+        if (!mSearching) {
+            swapListCursor(data);
+        }
     }
 
     /**
@@ -273,11 +1021,31 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
 
+        if (loader.getId() >= FIRST_PAGE_LOADER) {
+            // Forget the cursor of this page, it is about to be closed
+            int page = loader.getId() - FIRST_PAGE_LOADER;
+            if (page < mPages.size()) {
+                mPages.set(page, null);
+            }
+            showPages();
+            return;
+        }
+
+        if (loader.getId() == SEARCH_LOADER) {
+            if (mSearching) {
+                swapListCursor(null);
+            }
+            return;
+        }
+
         /*
          * Clears out the adapter's reference to the Cursor.
          * This prevents memory leaks.
          */
-        mCursorAdapter.swapCursor(null);
+        mCatalogCursor = null;
+        if (!mSearching) {
+            swapListCursor(null);
+        }
     }
 }
 
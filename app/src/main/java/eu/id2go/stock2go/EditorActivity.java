@@ -18,16 +18,12 @@ package eu.id2go.stock2go;
 import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -43,18 +39,20 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
-import android.widget.CursorAdapter;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.concurrent.Future;
 
 import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
+import eu.id2go.stock2go.data.StockRepository;
+import eu.id2go.stock2go.image.BitmapDecoder;
+import eu.id2go.stock2go.image.ImageLoader;
+import eu.id2go.stock2go.image.ImageStore;
 
 import static eu.id2go.stock2go.data.StockProvider.LOG_TAG;
 
@@ -63,12 +61,7 @@ import static eu.id2go.stock2go.data.StockProvider.LOG_TAG;
 /**
  * Allows user to create a new stock item or edit an existing one.
  */
-public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
-
-    /**
-     * Identifier for the stock data loader
-     */
-    private static final int EXISTING_STOCK_LOADER = 0;
+public class EditorActivity extends AppCompatActivity {
 
     /**
      * Identifier for read access
@@ -90,10 +83,47 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     /**
      * Instance variable
-     * Content URI for the existing image loader
+     * Content URI of the picked image, null until an image is picked. It is stored in the
+     * {@link ImageStore} when the stock item is saved.
      */
     private Uri imageUri;
 
+    /**
+     * The image of the existing stock item as stored by the provider: a key of the
+     * {@link ImageStore}, or the URI of an image saved before the store existed
+     */
+    private String mImageKey;
+
+    /**
+     * The pending decode of a picked image, or null
+     */
+    private Future<?> mImageDecode;
+
+    /**
+     * The pending ingestion of the picked image on save, or null
+     */
+    private Future<?> mImageIngest;
+
+    /**
+     * The pending load of the existing stock item, or null
+     */
+    private Future<?> mPendingLoad;
+
+    /**
+     * Kinds of {@link PendingWrite}
+     */
+    private static final int WRITE_INSERT = 0;
+    private static final int WRITE_UPDATE = 1;
+    private static final int WRITE_DELETE = 2;
+
+    /**
+     * The save or delete that is being written, or null. Kept across configuration changes, so the
+     * recreated editor gets its result and doesn't write the stock item again. Cancelled when the
+     * editor is left for good, so its callback doesn't show a toast or finish a destroyed activity.
+     * A write that already started still commits.
+     */
+    private PendingWrite<?> mPendingWrite;
+
     /**
      * EditText field to enter the stock item name
      */
@@ -109,6 +139,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private EditText mStockQtyEditText;
 
+    /**
+     * EditText field to enter the stock quantity below which the stock item has to be reordered
+     */
+    private EditText mReorderLevelEditText;
+
     /**
      * EditText field to enter the Name of the Supplier
      */
@@ -119,6 +154,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private EditText mPhoneSupplierEditText;
 
+    /**
+     * The _ID of the supplier of the existing stock item, or -1 for a new stock item
+     */
+    private long mSupplierId = -1;
+
     /**
      * EditText field to enter the e-mail address of the Supplier
      */
@@ -204,8 +244,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // Otherwise this is an existing stock item, so change app bar to say "Edit StockItem"
             setTitle(getString(R.string.editor_activity_title_edit_existing_stock_item));
 
-            // Initialize a loader to read the stock item data from the database & display current values in editor
-            getLoaderManager().initLoader(EXISTING_STOCK_LOADER, null, this);
+            // Read the stock item data from the database off the main thread & display current values in editor
+            loadStockItem();
         }
 
 
@@ -213,6 +253,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText = findViewById(R.id.edit_stock_item_name);
         mBrandEditText = findViewById(R.id.edit_stock_item_brand);
         mStockQtyEditText = findViewById(R.id.edit_stock_item_Qty);
+        mReorderLevelEditText = findViewById(R.id.edit_stock_item_reorder_level);
         mNameSupplierEditText = findViewById(R.id.edit_stock_item_Supplier);
         mPhoneSupplierEditText = findViewById(R.id.edit_stock_item_supplier_phone);
         mEmailSupplierEditText = findViewById(R.id.edit_stock_item_supplier_email);
@@ -231,6 +272,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setOnTouchListener(mTouchListener);
         mBrandEditText.setOnTouchListener(mTouchListener);
         mStockQtyEditText.setOnTouchListener(mTouchListener);
+        mReorderLevelEditText.setOnTouchListener(mTouchListener);
         mNameSupplierEditText.setOnTouchListener(mTouchListener);
         mPhoneSupplierEditText.setOnTouchListener(mTouchListener);
         mEmailSupplierEditText.setOnTouchListener(mTouchListener);
@@ -275,6 +317,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
 
         setupSpinner();
+
+        // A save or delete started before a configuration change delivers its result here
+        mPendingWrite = (PendingWrite<?>) getLastCustomNonConfigurationInstance();
+        if (mPendingWrite != null) {
+            mPendingWrite.attach(this);
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mPendingWrite;
     }
 
 
@@ -343,9 +396,14 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     // name, brand, section, price
 
     /**
-     * Get user input from editor and save stock item into database.
+     * Get user input from editor and save stock item into database, then exit the activity.
+     * The write runs in the background, the activity exits once it has been committed.
      */
     private void saveStockItem() {
+        if (mPendingWrite != null) {
+            // Already saving
+            return;
+        }
 
         // Read input from EditText fields
         // To avoid polluted output from string use trim() to eliminate leading or trailing white space
@@ -353,14 +411,15 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String nameString = mNameEditText.getText().toString().trim();
         String brandString = mBrandEditText.getText().toString().trim();
         String stockQtyString = mStockQtyEditText.getText().toString().trim();
+        String reorderLevelString = mReorderLevelEditText.getText().toString().trim();
         String nameSupplier = mNameSupplierEditText.getText().toString().trim();
         String phoneSupplier = mPhoneSupplierEditText.getText().toString().trim();
         String emailSupplier = mEmailSupplierEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
 
         String imageUriString;
-        if (imageUri != null) {
-            imageUriString = imageUri.toString();
+        if (mImageKey != null) {
+            imageUriString = mImageKey;
         } else {
             imageUriString = "";
         }
@@ -381,54 +440,94 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             if (!TextUtils.isEmpty(priceString)) {
                 price = Integer.parseInt(priceString);
             }
+            // The reorder level is optional, 0 never reorders the stock item
+            int reorderLevel = 0;
+            if (!TextUtils.isEmpty(reorderLevelString)) {
+                reorderLevel = Integer.parseInt(reorderLevelString);
+            }
 
             //  Create a ContentValues object using key value pairs where the key is the name column and the value is the name from the EditText field
             ContentValues values = new ContentValues();
             values.put(StockItemEntry.COLUMN_NAME, nameString);
             values.put(StockItemEntry.COLUMN_BRAND, brandString);
             values.put(StockItemEntry.COLUMN_STOCK_QTY, stockQtyString);
+            // The repository refers to an existing supplier with this name by its _ID and updates its contact
             values.put(StockItemEntry.COLUMN_NAME_SUPPLIER, nameSupplier);
             values.put(StockItemEntry.COLUMN_PHONE_SUPPLIER, phoneSupplier);
             values.put(StockItemEntry.COLUMN_EMAIL_SUPPLIER, emailSupplier);
             values.put(StockItemEntry.COLUMN_SECTION, mSection);
             values.put(StockItemEntry.COLUMN_PRICE, price);
+            values.put(StockItemEntry.COLUMN_REORDER_LEVEL, reorderLevel);
             values.put(StockItemEntry.COLUMN_IMAGE, imageUriString);
 
+            // The provider would reject the stock item, let the user correct the field instead
+            int invalidField = findInvalidField(values, mCurrentStockItemUri == null);
+            if (invalidField != 0) {
+                Toast.makeText(this, getString(invalidField), Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             // Determine if this is a new or existing stock item by checking if mCurrentStockItemUri is null or not
             if (mCurrentStockItemUri == null) {
                 // This is a NEW stock item, so insert a new stock item into the provider,
                 // returning the content URI for the new stock item.
-                Uri newUri = getContentResolver().insert(StockItemEntry.CONTENT_URI, values);
-
-                // Show a toast message depending on whether or not the insertion was successful.
-                if (newUri == null) {
-                    // If the new content URI is null, then there was an error with insertion.
-                    Toast.makeText(this, getString(R.string.toast_error_editor_inserting_stock_item_data), Toast.LENGTH_SHORT).show();
-                } else {
-                    // Otherwise, the insertion was successful and we can display a toast.
-                    Toast.makeText(this, getString(R.string.toast_success_editor_inserting_stock_item_data), Toast.LENGTH_SHORT).show();
-                }
+                PendingWrite<Uri> insert = new PendingWrite<>(this, WRITE_INSERT);
+                insert.mFuture = StockRepository.get(this).saveStockItem(null, values, insert);
+                mPendingWrite = insert;
             } else {
                 // Otherwise this is an EXISTING stock item, so update the stock item with content URI: mCurrentStockItemUri
                 // and pass in the new ContentValues. Pass in null for the selection and selection args
                 // because mCurrentStockItemUri will already identify the correct row in the database that
                 // we want to modify.
-                int rowsAffected = getContentResolver().update(mCurrentStockItemUri, values, null, null);
-                // Show a toast message depending on whether or not the update was successful.
-                if (rowsAffected == 0) {
-                    // If no rows were affected, then there was an error with the update.
-                    Toast.makeText(this, getString(R.string.toast_error_editor_updating_stock_item_data),
-                            Toast.LENGTH_SHORT).show();
-                } else {
-                    // Otherwise, the update was successful and we can display a toast.
-                    Toast.makeText(this, getString(R.string.toast_success_editor_updating_stock_item_data),
-                            Toast.LENGTH_SHORT).show();
-                }
+                PendingWrite<Uri> update = new PendingWrite<>(this, WRITE_UPDATE);
+                update.mFuture = StockRepository.get(this).saveStockItem(mCurrentStockItemUri, values, update);
+                mPendingWrite = update;
             }
         }
     }
 
+    /**
+     * Returns the message for the first field of the stock item the provider would reject, or 0
+     * when it can be saved. The provider runs on the thread of the {@link StockRepository}, where it
+     * can't tell the user which field is wrong.
+     *
+     * @param newStockItem true for an insert, which requires a quantity above 0
+     */
+    private static int findInvalidField(ContentValues values, boolean newStockItem) {
+        if (TextUtils.isEmpty(values.getAsString(StockItemEntry.COLUMN_NAME))) {
+            return R.string.toast_insert_stock_item_name;
+        }
+        if (TextUtils.isEmpty(values.getAsString(StockItemEntry.COLUMN_BRAND))) {
+            return R.string.toast_insert_stock_item_brand;
+        }
+        Integer stockQty = values.getAsInteger(StockItemEntry.COLUMN_STOCK_QTY);
+        if (stockQty != null && stockQty < (newStockItem ? 1 : 0)) {
+            return R.string.toast_insert_stock_item_stock_qty;
+        }
+        if (TextUtils.isEmpty(values.getAsString(StockItemEntry.COLUMN_NAME_SUPPLIER))) {
+            return R.string.toast_insert_stock_item_name_supplier;
+        }
+        if (TextUtils.isEmpty(values.getAsString(StockItemEntry.COLUMN_PHONE_SUPPLIER))) {
+            return R.string.toast_insert_stock_item_supplier_phone;
+        }
+        if (TextUtils.isEmpty(values.getAsString(StockItemEntry.COLUMN_EMAIL_SUPPLIER))) {
+            return R.string.toast_insert_stock_item_supplier_email;
+        }
+        if (!StockItemEntry.isValidSection(values.getAsInteger(StockItemEntry.COLUMN_SECTION))) {
+            return R.string.toast_insert_stock_item_valid_section_required;
+        }
+        if (values.getAsInteger(StockItemEntry.COLUMN_PRICE) < 0) {
+            return R.string.toast_insert_stock_item_price_required;
+        }
+        if (TextUtils.isEmpty(values.getAsString(StockItemEntry.COLUMN_IMAGE))) {
+            return R.string.toast_image_required;
+        }
+        if (values.getAsInteger(StockItemEntry.COLUMN_REORDER_LEVEL) < 0) {
+            return R.string.toast_insert_stock_item_reorder_level;
+        }
+        return 0;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -457,10 +556,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save entries to database
+                if (imageUri != null) {
+                    // Store the picked image first, the stock item is saved with its key
+                    ingestImageAndSave();
+                    return true;
+                }
+                // Save entries to database, the activity exits once they are saved
                 saveStockItem();
-                // exit activity
-                finish();
                 return true;
 
             // Respond showing a dialog with phone & e-mail
@@ -506,6 +608,59 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Cancel the pending background work, except a save or delete that the editor recreated after
+     * a configuration change takes over, and give the bitmap of the stock item image back to the
+     * pool of the ImageLoader
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mImageDecode != null) {
+            mImageDecode.cancel(false);
+        }
+        if (mImageIngest != null) {
+            mImageIngest.cancel(false);
+        }
+        if (mPendingLoad != null) {
+            mPendingLoad.cancel(false);
+        }
+        if (mPendingWrite != null) {
+            if (isChangingConfigurations()) {
+                // Retained for the recreated editor
+                mPendingWrite.detach();
+            } else {
+                mPendingWrite.mFuture.cancel(false);
+            }
+        }
+        ImageLoader.get(this).release(mStockItemImageView);
+    }
+
+    /**
+     * Copy the picked image into the {@link ImageStore} off the main thread, then save the stock
+     * item with the key of the stored image and exit the activity
+     */
+    private void ingestImageAndSave() {
+        if (mImageIngest != null || mPendingWrite != null) {
+            // Already saving
+            return;
+        }
+        mImageIngest = ImageStore.get(this).ingestAsync(imageUri, new ImageStore.Callback() {
+            @Override
+            public void onIngested(String key) {
+                mImageIngest = null;
+                if (key == null) {
+                    Toast.makeText(EditorActivity.this, getString(R.string.toast_error_editor_storing_image),
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                imageUri = null;
+                mImageKey = key;
+                saveStockItem();
+            }
+        });
+    }
+
     @Override
     public void onBackPressed() {
         // If the stock item hasn't changed, continue with handling back button press
@@ -553,7 +708,30 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mStockQtyEditText.setText(String.valueOf(changedValue + 1));
     }
 
+    /**
+     * Load the current contact data of the supplier off the main thread, then ask how to order
+     */
     private void showOrderConfirmationDialog() {
+        if (mSupplierId == -1) {
+            showOrderConfirmationDialog(null);
+            return;
+        }
+        StockRepository.get(this).load(ContentUris.withAppendedId(SupplierEntry.CONTENT_URI, mSupplierId),
+                new String[]{SupplierEntry.COLUMN_PHONE, SupplierEntry.COLUMN_EMAIL},
+                new StockRepository.Callback<ContentValues>() {
+                    @Override
+                    public void onComplete(ContentValues supplier) {
+                        if (!isFinishing()) {
+                            showOrderConfirmationDialog(supplier);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @param supplier the phone and e-mail of the supplier, or null when the supplier isn't known
+     */
+    private void showOrderConfirmationDialog(final ContentValues supplier) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setMessage(getString(R.string.action_order_confirmation));
         builder.setPositiveButton(R.string.phone, new DialogInterface.OnClickListener() {
@@ -561,7 +739,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             public void onClick(DialogInterface dialog, int which) {
                 // Intent to make a phone call
                 Intent intent = new Intent(Intent.ACTION_DIAL);
-                intent.setData(Uri.parse("tel:" + mPhoneSupplierEditText.getText().toString().trim()));
+                intent.setData(Uri.parse("tel:" + getSupplierContact(supplier, SupplierEntry.COLUMN_PHONE,
+                        mPhoneSupplierEditText)));
                 if (intent.resolveActivity(getPackageManager()) != null) {
                     startActivity(intent);
                 }
@@ -573,7 +752,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 // Intent to write an e-mail
                 Intent intent = new Intent(Intent.ACTION_SENDTO);
                 intent.setType("text/plain");
-                intent.setData(Uri.parse("mailto:" + mEmailSupplierEditText.getText().toString().trim()));
+                intent.setData(Uri.parse("mailto:" + getSupplierContact(supplier, SupplierEntry.COLUMN_EMAIL,
+                        mEmailSupplierEditText)));
                 intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.recurring_order_title)
                         + " " + mNameEditText.getText().toString().trim() + ", " +
                         getString(R.string.recurring_order_title_brand) + " " +
@@ -592,6 +772,22 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         alertDialog.show();
     }
 
+    /**
+     * Returns the phone or e-mail of the supplier of this stock item as stored in the suppliers table,
+     * so an order goes to the current contact data of the supplier. Falls back to the text in the
+     * given field when the supplier isn't known.
+     *
+     * @param supplier  the contact data loaded from the suppliers table, or null
+     * @param column    SupplierEntry.COLUMN_PHONE or SupplierEntry.COLUMN_EMAIL
+     * @param editText  the field of the editor showing the same contact data
+     */
+    private static String getSupplierContact(ContentValues supplier, String column, EditText editText) {
+        if (supplier != null && supplier.getAsString(column) != null) {
+            return supplier.getAsString(column);
+        }
+        return editText.getText().toString().trim();
+    }
+
     public void tryToOpenImageSelector() {
         if (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.READ_EXTERNAL_STORAGE)
@@ -647,9 +843,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 Log.i(LOG_TAG, "Uri: " + imageUri.toString());
 
 //                mTextView.setText(mUri.toString());
-                mStockItemImageView.setImageBitmap(getBitmapFromUri(imageUri));
-//                mStockItemImageView.setImageURI(imageUri);
-                mStockItemImageView.invalidate();
+                // Decode the picked image off the main thread, at the size of the image view
+                ImageLoader imageLoader = ImageLoader.get(this);
+                imageLoader.cancel(mStockItemImageView);
+                if (mImageDecode != null) {
+                    mImageDecode.cancel(false);
+                }
+                mImageDecode = imageLoader.getDecoder().decodeAsync(imageUri,
+                        mStockItemImageView.getWidth(), mStockItemImageView.getHeight(),
+                        new BitmapDecoder.Callback() {
+                            @Override
+                            public void onDecoded(Bitmap bitmap) {
+                                mImageDecode = null;
+                                ImageLoader.get(EditorActivity.this).setImageBitmap(mStockItemImageView, bitmap);
+                            }
+                        });
 
             }
 
@@ -657,234 +865,104 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
 
-    public Bitmap getBitmapFromUri(Uri uri) {
-
-        if (uri == null || uri.toString().isEmpty())
-            return null;
-
-        // Get the dimensions of the View
-        int targetW = mStockItemImageView.getWidth();
-        int targetH = mStockItemImageView.getHeight();
-
-        InputStream input = null;
-        try {
-            input = this.getContentResolver().openInputStream(uri);
-
-            // Get the dimensions of the bitmap
-            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-            bmOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(input, null, bmOptions);
-            input.close();
-
-            int photoW = bmOptions.outWidth;
-            int photoH = bmOptions.outHeight;
-
-            // Determine how much to scale down the image
-            int scaleFactor = Math.min(photoW / targetW, photoH / targetH);
-
-            // Decode the image file into a Bitmap sized to fill the View
-            bmOptions.inJustDecodeBounds = false;
-            bmOptions.inSampleSize = scaleFactor;
-            bmOptions.inPurgeable = true;
-
-            input = this.getContentResolver().openInputStream(uri);
-            Bitmap bitmap = BitmapFactory.decodeStream(input, null, bmOptions);
-            input.close();
-            return bitmap;
-
-        } catch (FileNotFoundException fne) {
-            Log.e(LOG_TAG, "Failed to load image.", fne);
-            return null;
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Failed to load image.", e);
-            return null;
-        } finally {
-            try {
-                input.close();
-            } catch (IOException ioe) {
-
-            }
-        }
-    }
-
     /**
-     * Instantiate and return a new Loader for the given ID.
-     *
-     * @param id   The ID whose loader is to be created.
-     * @param args Any arguments supplied by the caller.
-     * @return Return a new Loader instance that is ready to start loading.
+     * Load the stock item and its supplier through the {@link StockRepository}, then show them
      */
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define the range of columns from the database to be used
-        String[] projection = {
-                StockItemEntry._ID,
-                StockItemEntry.COLUMN_NAME,
-                StockItemEntry.COLUMN_BRAND,
-                StockItemEntry.COLUMN_STOCK_QTY,
-                StockItemEntry.COLUMN_NAME_SUPPLIER,
-                StockItemEntry.COLUMN_PHONE_SUPPLIER,
-                StockItemEntry.COLUMN_EMAIL_SUPPLIER,
-                StockItemEntry.COLUMN_SECTION,
-                StockItemEntry.COLUMN_PRICE,
-                StockItemEntry.COLUMN_IMAGE};
-
-        // Perform a query on the provider using the ContentResolver.
-        // Use the {@link StockItemEntry#CONTENT_URI} to access the stock item data.
-        return new CursorLoader(this,
-                mCurrentStockItemUri,    // The Content URI of the stock2go Table of the db to query
-                projection,               // The above range of columns to return for each row
-                null,            // The column for the WHERE query
-                null,         // Selection criteria
-                null);           // The sort order for the returned rows
+    private void loadStockItem() {
+        mPendingLoad = StockRepository.get(this).load(mCurrentStockItemUri, StockItemEntry.PROJECTION_WITH_SUPPLIER,
+                new StockRepository.Callback<ContentValues>() {
+                    @Override
+                    public void onComplete(ContentValues stockItem) {
+                        mPendingLoad = null;
+                        // Exit early if there is no such stock item
+                        if (stockItem != null) {
+                            showStockItem(stockItem);
+                        }
+                    }
+                });
     }
 
     /**
-     * Called when a previously created loader has finished its load.
-     * <p>This function is guaranteed to be called prior to the release of
-     * the last data that was supplied for this Loader.  At this point
-     * you should remove all use of the old data (since it will be released
-     * soon), but should not do your own release of the data since its Loader
-     * owns it and will take care of that.  The Loader will take care of
-     * management of its data so you don't have to.  In particular:
-     * <p>
-     * <ul>
-     * <li> <p>The Loader will monitor for changes to the data, and report
-     * them to you through new calls here.  You should not monitor the
-     * data yourself.  For example, if the data is a {@link Cursor}
-     * and you place it in a {@link CursorAdapter}, use
-     * the {@link CursorAdapter#CursorAdapter (Context, * Cursor, int)} constructor <em>without</em> passing
-     * in either {@link CursorAdapter#FLAG_AUTO_REQUERY}
-     * or {@link CursorAdapter#FLAG_REGISTER_CONTENT_OBSERVER}
-     * (that is, use 0 for the flags argument).  This prevents the CursorAdapter
-     * from doing its own observing of the Cursor, which is not needed since
-     * when a change happens you will get a new Cursor throw another call
-     * here.
-     * <li> The Loader will release the data once it knows the application
-     * is no longer using it.  For example, if the data is
-     * a {@link Cursor} from a {@link CursorLoader},
-     * you should not call close() on it yourself.  If the Cursor is being placed in a
-     * {@link CursorAdapter}, you should use the
-     * {@link CursorAdapter#swapCursor(Cursor)}
-     * method so that the old Cursor is not closed.
-     * </ul>
+     * Display the current values of the stock item in the editor
      *
-     * @param loader The Loader that has finished.
-     * @param cursor The data generated by the Loader.
+     * @param stockItem the columns of {@link StockItemEntry#PROJECTION_WITH_SUPPLIER}
      */
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        // Exit early if the cursor == null or there is < 1 row
-        if (cursor == null || cursor.getCount() < 1) {
-            return;
-        }
+    private void showStockItem(ContentValues stockItem) {
+        // Extract out the value of each column
+        String name = stockItem.getAsString(StockItemEntry.COLUMN_NAME);
+        String brand = stockItem.getAsString(StockItemEntry.COLUMN_BRAND);
+        int stockQty = stockItem.getAsInteger(StockItemEntry.COLUMN_STOCK_QTY);
+        int reorderLevel = stockItem.getAsInteger(StockItemEntry.COLUMN_REORDER_LEVEL);
+        Long supplierId = stockItem.getAsLong(StockItemEntry.COLUMN_SUPPLIER_ID);
+        mSupplierId = supplierId != null ? supplierId : -1;
+        String nameSupplier = stockItem.getAsString(StockItemEntry.COLUMN_NAME_SUPPLIER);
+        String phoneSupplier = stockItem.getAsString(StockItemEntry.COLUMN_PHONE_SUPPLIER);
+        String emailSupplier = stockItem.getAsString(StockItemEntry.COLUMN_EMAIL_SUPPLIER);
+        int section = stockItem.getAsInteger(StockItemEntry.COLUMN_SECTION);
+        int price = stockItem.getAsInteger(StockItemEntry.COLUMN_PRICE);
+        String stockItemImage = stockItem.getAsString(StockItemEntry.COLUMN_IMAGE);
+
+
+        mNameEditText.setText(name);
+        mBrandEditText.setText(brand);
+        mStockQtyEditText.setText(Integer.toString(stockQty));
+        mReorderLevelEditText.setText(Integer.toString(reorderLevel));
+        mNameSupplierEditText.setText(nameSupplier);
+        mPhoneSupplierEditText.setText(phoneSupplier);
+        mEmailSupplierEditText.setText(emailSupplier);
+        mPriceEditText.setText(Integer.toString(price));
+
+        // This image key ensures that the string loading the image
+        // from the CatalogActivity into the EditorActivity is not empty!
+        mImageKey = stockItemImage;
+
+        ImageLoader.get(this).load(ImageStore.get(this).uriFor(mImageKey, ImageStore.VARIANT_DISPLAY),
+                mStockItemImageView, R.drawable.image_placeholder);
+
+        // Section is a dropdown spinner, so ma the constant value from the database
+        // into one of the dropdown options (0 == Unknown, 1 == FRUIT, 2 == VEGETABLES).
+        // Then call setSelection() so that option is displayed on screen as the current selection.
+        // unknown, bread, cleaning materials, cosmetics, dairy products, dressings and sauces,
+        // electrical, frozen food, fruit, kitchen utensils, vegetables)
+        switch (section) {
+
+            case StockItemEntry.SECTION_BREAD:
+                mSectionSpinner.setSelection(1);
+                break;
+            case StockItemEntry.SECTION_CLEANING:
+                mSectionSpinner.setSelection(2);
+                break;
+            case StockItemEntry.SECTION_COSMETICS:
+                mSectionSpinner.setSelection(3);
+                break;
+            case StockItemEntry.SECTION_DAIRY:
+                mSectionSpinner.setSelection(4);
+                break;
+            case StockItemEntry.SECTION_DRESSINGS_SAUCES:
+                mSectionSpinner.setSelection(5);
+                break;
+            case StockItemEntry.SECTION_ELECTRICAL:
+                mSectionSpinner.setSelection(6);
+                break;
+            case StockItemEntry.SECTION_FROZEN:
+                mSectionSpinner.setSelection(7);
+                break;
+            case StockItemEntry.SECTION_FRUIT:
+                mSectionSpinner.setSelection(8);
+                break;
+            case StockItemEntry.SECTION_KITCHEN_UTENSILS:
+                mSectionSpinner.setSelection(9);
+                break;
+            case StockItemEntry.SECTION_VEGETABLES:
+                mSectionSpinner.setSelection(10);
+                break;
+            default: // This is the situation that the spinner is in by default
+                mSectionSpinner.setSelection(0);
+                break;
 
-        // Proceed moving to the first row of the cursor & reading its data
-        // (This should be the only row in the cursor)
-        if (cursor.moveToFirst()) {
-            // Find the columns of the stock table attributes (the header)
-            int nameColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_NAME);
-            int brandColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_BRAND);
-            int stockQtyColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_STOCK_QTY);
-            int nameSupplierColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_NAME_SUPPLIER);
-            int phoneSupplierColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_PHONE_SUPPLIER);
-            int emailSupplierColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_EMAIL_SUPPLIER);
-            int sectionColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_SECTION);
-            int priceColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_PRICE);
-            int imageColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_IMAGE);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String brand = cursor.getString(brandColumnIndex);
-            int stockQty = cursor.getInt(stockQtyColumnIndex);
-            String nameSupplier = cursor.getString(nameSupplierColumnIndex);
-            String phoneSupplier = cursor.getString(phoneSupplierColumnIndex);
-            String emailSupplier = cursor.getString(emailSupplierColumnIndex);
-            int section = cursor.getInt(sectionColumnIndex);
-            int price = cursor.getInt(priceColumnIndex);
-            String stockItemImage = cursor.getString(imageColumnIndex);
-
-
-            mNameEditText.setText(name);
-            mBrandEditText.setText(brand);
-            mStockQtyEditText.setText(Integer.toString(stockQty));
-            mNameSupplierEditText.setText(nameSupplier);
-            mPhoneSupplierEditText.setText(phoneSupplier);
-            mEmailSupplierEditText.setText(emailSupplier);
-            mPriceEditText.setText(Integer.toString(price));
-
-            // This imageUri ensures that the string loading the image
-            // from the CatalogActivity into the EditorActivity is not empty!
-            imageUri = Uri.parse(stockItemImage);
-
-            mStockItemImageView.setImageURI(Uri.parse(stockItemImage));
-
-            // Section is a dropdown spinner, so ma the constant value from the database
-            // into one of the dropdown options (0 == Unknown, 1 == FRUIT, 2 == VEGETABLES).
-            // Then call setSelection() so that option is displayed on screen as the current selection.
-            // unknown, bread, cleaning materials, cosmetics, dairy products, dressings and sauces,
-            // electrical, frozen food, fruit, kitchen utensils, vegetables)
-            switch (section) {
-
-                case StockItemEntry.SECTION_BREAD:
-                    mSectionSpinner.setSelection(1);
-                    break;
-                case StockItemEntry.SECTION_CLEANING:
-                    mSectionSpinner.setSelection(2);
-                    break;
-                case StockItemEntry.SECTION_COSMETICS:
-                    mSectionSpinner.setSelection(3);
-                    break;
-                case StockItemEntry.SECTION_DAIRY:
-                    mSectionSpinner.setSelection(4);
-                    break;
-                case StockItemEntry.SECTION_DRESSINGS_SAUCES:
-                    mSectionSpinner.setSelection(5);
-                    break;
-                case StockItemEntry.SECTION_ELECTRICAL:
-                    mSectionSpinner.setSelection(6);
-                    break;
-                case StockItemEntry.SECTION_FROZEN:
-                    mSectionSpinner.setSelection(7);
-                    break;
-                case StockItemEntry.SECTION_FRUIT:
-                    mSectionSpinner.setSelection(8);
-                    break;
-                case StockItemEntry.SECTION_KITCHEN_UTENSILS:
-                    mSectionSpinner.setSelection(9);
-                    break;
-                case StockItemEntry.SECTION_VEGETABLES:
-                    mSectionSpinner.setSelection(10);
-                    break;
-                default: // This is the situation that the spinner is in by default
-                    mSectionSpinner.setSelection(0);
-                    break;
-
-            }
         }
     }
 
-    /**
-     * Called when a previously created loader is being reset, and thus
-     * making its data unavailable.  The application should at this point
-     * remove any references it has to the Loader's data.
-     *
-     * @param loader The Loader that is being reset.
-     */
-    @Override
-    public void onLoaderReset(android.content.Loader<Cursor> loader) {
-        // If the loader is invalidated, clear out all the data from the input fields.
-        mNameEditText.setText("");
-        mBrandEditText.setText("");
-        mStockQtyEditText.setText("");
-        mNameSupplierEditText.setText("");
-        mPhoneSupplierEditText.setText("");
-        mEmailSupplierEditText.setText("");
-        mPriceEditText.setText("");
-        mStockItemImageView.setImageURI(Uri.parse("")); // By default, set ImageUri to empty string
-        mSectionSpinner.setSelection(0); // By default, set section to "Unknown"
-    }
-
     /**
      * Show a dialog that warns the user there are unsaved changes that will be lost
      * if they continue leaving the editor.
@@ -944,23 +1022,100 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      * Perform the deletion of the stock item in the database.
      */
     private void deleteStockItem() {
-        if (mCurrentStockItemUri != null) {
-            // Call on ContentResolver to delete selected row of stock item data.
-            // Passing null for where & args as the mCurrentStockItemUri is configured to handle these
-            int rowsDeleted = getContentResolver().delete(mCurrentStockItemUri, null, null);
-            // In case of failure
-            if (rowsDeleted == 0) {
+        if (mCurrentStockItemUri == null) {
+            // Close the activity
+            finish();
+            return;
+        }
+        if (mPendingWrite != null) {
+            return;
+        }
+        // Delete selected row of stock item data in the background, then close the activity.
+        PendingWrite<Integer> delete = new PendingWrite<>(this, WRITE_DELETE);
+        delete.mFuture = StockRepository.get(this).delete(mCurrentStockItemUri, delete);
+        mPendingWrite = delete;
+    }
+
+    /**
+     * Show the result of the save or delete that has been written, and close the activity unless
+     * a save failed, so the input isn't lost
+     */
+    private void onWriteComplete(PendingWrite<?> write) {
+        mPendingWrite = null;
+        switch (write.mWrite) {
+            case WRITE_INSERT:
+                // Show a toast message depending on whether or not the insertion was successful.
+                if (write.mResult == null) {
+                    // If the new content URI is null, then there was an error with insertion.
+                    Toast.makeText(this, getString(R.string.toast_error_editor_inserting_stock_item_data), Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                // Otherwise, the insertion was successful and we can display a toast.
+                Toast.makeText(this, getString(R.string.toast_success_editor_inserting_stock_item_data), Toast.LENGTH_SHORT).show();
+                break;
+            case WRITE_UPDATE:
+                // Show a toast message depending on whether or not the update was successful.
+                if (write.mResult == null) {
+                    // If no rows were affected, then there was an error with the update.
+                    Toast.makeText(this, getString(R.string.toast_error_editor_updating_stock_item_data),
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                // Otherwise, the update was successful and we can display a toast.
+                Toast.makeText(this, getString(R.string.toast_success_editor_updating_stock_item_data),
+                        Toast.LENGTH_SHORT).show();
+                break;
+            default:
                 // Show message depending of success or failure of deleting
-                Toast.makeText(EditorActivity.this, R.string.editor_delete_stock_item_failed, Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete instruction was successful.
-                // Show toast success
-                Toast.makeText(EditorActivity.this, R.string.editor_delete_stock_item_successful, Toast.LENGTH_SHORT).show();
+                if ((Integer) write.mResult == 0) {
+                    Toast.makeText(this, R.string.editor_delete_stock_item_failed, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(this, R.string.editor_delete_stock_item_successful, Toast.LENGTH_SHORT).show();
+                }
+        }
+        // exit activity
+        finish();
+    }
 
+    /**
+     * A save or delete written by the {@link StockRepository}. It hands its result to the editor it
+     * is attached to, or keeps it until an editor recreated after a configuration change attaches.
+     */
+    private static final class PendingWrite<T> implements StockRepository.Callback<T> {
+
+        /**
+         * One of the WRITE_* kinds
+         */
+        final int mWrite;
+        Future<?> mFuture;
+        T mResult;
+        private EditorActivity mEditor;
+        private boolean mComplete;
+
+        PendingWrite(EditorActivity editor, int write) {
+            mEditor = editor;
+            mWrite = write;
+        }
+
+        @Override
+        public void onComplete(T result) {
+            mResult = result;
+            mComplete = true;
+            if (mEditor != null) {
+                mEditor.onWriteComplete(this);
             }
         }
-        // Close the activity
-        finish();
+
+        void attach(EditorActivity editor) {
+            mEditor = editor;
+            if (mComplete) {
+                editor.onWriteComplete(this);
+            }
+        }
+
+        void detach() {
+            mEditor = null;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package eu.id2go.stock2go;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+import eu.id2go.stock2go.data.StockRepository;
+import eu.id2go.stock2go.image.ImageLoader;
+import eu.id2go.stock2go.image.ImageStore;
+
+/**
+ * The application of Stock2Go. Debug builds log every disk read or write on the main thread and
+ * every cursor or database that isn't closed, the database is only accessed from background
+ * threads: through loaders, the StockRepository and the StockWriteQueue.
+ * Every start compacts the stock movements that have become older than the retention period,
+ * in the background. When none have, this reads only the oldest movement. The image loader and
+ * the image store read their directories when they are created, so they are created in the
+ * background as well, and the image store then deletes the stored images no stock item uses.
+ */
+public class StockApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        if (BuildConfig.DEBUG) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+        super.onCreate();
+        StockRepository.get(this).compactMovements(null);
+        ImageLoader.createAsync(this);
+        ImageStore.createAsync(this);
+    }
+}
@@ -1,11 +1,10 @@
 package eu.id2go.stock2go;
 
 
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -16,6 +15,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockWriteQueue;
+import eu.id2go.stock2go.image.ImageLoader;
+import eu.id2go.stock2go.image.ImageStore;
 
 /**
  * {@link StockCursorAdapter} is an adapter for a list or grid view
@@ -34,6 +36,35 @@ public class StockCursorAdapter extends CursorAdapter {
         super(context, c, 0 /* flags */);
     }
 
+    /**
+     * Rows that were re-fetched after their stock item changed, by _ID. Their values are shown
+     * instead of the (older) values in the cursor, until a new cursor is swapped in.
+     */
+    private final LongSparseArray<ContentValues> mPatchedRows = new LongSparseArray<>();
+
+    /**
+     * Show the given values for the stock item with the given _ID instead of the values in the cursor.
+     * The values of earlier patches of the row are kept for the columns missing from the new values.
+     * Call getView() for the row afterwards to rebind it.
+     */
+    public void patchRow(long id, ContentValues values) {
+        ContentValues patchedRow = mPatchedRows.get(id);
+        if (patchedRow == null) {
+            mPatchedRows.put(id, new ContentValues(values));
+        } else {
+            patchedRow.putAll(values);
+        }
+    }
+
+    /**
+     * Swap in a new cursor. Its rows are up to date, so the patched rows are dropped.
+     */
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        mPatchedRows.clear();
+        return super.swapCursor(newCursor);
+    }
+
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
@@ -72,55 +103,63 @@ public class StockCursorAdapter extends CursorAdapter {
         final int id = cursor.getInt(cursor.getColumnIndex(StockItemEntry._ID));
         int nameColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_NAME);
         int priceColumnIndex = cursor.getColumnIndex(StockItemEntry.COLUMN_PRICE);
-        final int stockItemQty = cursor.getInt(cursor.getColumnIndex(StockItemEntry.COLUMN_STOCK_QTY));
+        int stockItemQty = cursor.getInt(cursor.getColumnIndex(StockItemEntry.COLUMN_STOCK_QTY));
 
         // Read the stock item attributes from the Cursor for the current stock
         String stockItemName = cursor.getString(nameColumnIndex);
         String stockItemPrice = cursor.getString(priceColumnIndex);
-        // final String stockItemQty = cursor.getString(qtyColumnIndex);
-
-
-        image.setImageURI(Uri.parse(cursor.getString(cursor.getColumnIndex(StockItemEntry.COLUMN_IMAGE))));
+        String stockItemImage = cursor.getString(cursor.getColumnIndex(StockItemEntry.COLUMN_IMAGE));
 
+        ContentValues patchedRow = mPatchedRows.get(id);
+        if (patchedRow != null) {
+            // The stock item changed after the cursor was loaded, show the re-fetched values
+            if (patchedRow.containsKey(StockItemEntry.COLUMN_STOCK_QTY)) {
+                stockItemQty = patchedRow.getAsInteger(StockItemEntry.COLUMN_STOCK_QTY);
+            }
+            if (patchedRow.containsKey(StockItemEntry.COLUMN_NAME)) {
+                stockItemName = patchedRow.getAsString(StockItemEntry.COLUMN_NAME);
+            }
+            if (patchedRow.containsKey(StockItemEntry.COLUMN_PRICE)) {
+                stockItemPrice = patchedRow.getAsString(StockItemEntry.COLUMN_PRICE);
+            }
+            if (patchedRow.containsKey(StockItemEntry.COLUMN_IMAGE)) {
+                stockItemImage = patchedRow.getAsString(StockItemEntry.COLUMN_IMAGE);
+            }
+        }
+        // Show the quantity including the sales that are still being written
+        final int shownQty = stockItemQty + StockWriteQueue.get(context).getPendingDelta(id);
 
+        // Load the stored thumbnail in the background, a recycled row cancels its old load
+        ImageLoader.get(context).load(ImageStore.get(context).uriFor(stockItemImage, ImageStore.VARIANT_THUMBNAIL),
+                image, R.drawable.image_placeholder);
 
         // Populate or update TextViews with extracted stock item properties
         nameTextView.setText(stockItemName);
         priceTextView.setText(String.valueOf(stockItemPrice));
-        quantityTextView.setText(String.valueOf(stockItemQty));
+        quantityTextView.setText(String.valueOf(shownQty));
 
 
         buyItemBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                Uri mCurrentStockItemUri = ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, id);
-                addToCart(context, mCurrentStockItemUri, stockItemQty);
+                addToCart(context, id, shownQty);
 
             }
         });
 
     }
 
-    private void addToCart(Context context, Uri uri, int stockItemQty) {
+    /**
+     * Take one of the stock item out of stock, when there is any left
+     *
+     * @param stockItemQty the quantity shown, including the sales that are still being written
+     */
+    static void addToCart(Context context, long id, int stockItemQty) {
         if (stockItemQty > 0) {
-            int newAvailableQuantityValue = stockItemQty - 1;
-
-            ContentValues values = new ContentValues();
-            values.put(StockItemEntry.COLUMN_STOCK_QTY, newAvailableQuantityValue);
-
-
-            int rowsAffected = context.getContentResolver().update(uri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(context, (R.string.toast_error_adding_item_to_cart), Toast.LENGTH_LONG).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(context, (R.string.toast_success_adding_item_to_cart), Toast.LENGTH_SHORT).show();
-
-            }
-
+            // Queue the sale, the write queue shows it right away and merges quick repeated taps
+            // into one write off the main thread. A failed write is reported by its listener.
+            StockWriteQueue.get(context).adjustQuantity(id, -1);
+            Toast.makeText(context, (R.string.toast_success_adding_item_to_cart), Toast.LENGTH_SHORT).show();
         }
     }
 }
\ No newline at end of file
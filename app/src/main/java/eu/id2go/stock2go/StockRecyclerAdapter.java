@@ -0,0 +1,388 @@
+package eu.id2go.stock2go;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.StaleDataException;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockWriteQueue;
+import eu.id2go.stock2go.image.ImageLoader;
+import eu.id2go.stock2go.image.ImageStore;
+
+/**
+ * {@link StockRecyclerAdapter} is the RecyclerView counterpart of {@link StockCursorAdapter}.
+ * A swapped in cursor is read once into a list of rows on a background thread, resolving its column
+ * indices once, and the difference with the rows shown so far is computed there as well. Only the
+ * rows that were added, removed or changed are rebound, so a single quantity change animates a
+ * single row.
+ */
+public class StockRecyclerAdapter extends RecyclerView.Adapter<StockRecyclerAdapter.ViewHolder> {
+
+    /**
+     * Receives the clicks on the rows
+     */
+    public interface OnItemClickListener {
+        /**
+         * @param id the _ID of the clicked stock item
+         */
+        void onItemClick(long id);
+    }
+
+    /**
+     * Reads the swapped in cursors and computes the differences between the old and new rows,
+     * one swap at a time
+     */
+    private static final ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final OnItemClickListener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The rows shown. Never changed in place, a background diff may still be reading it.
+     */
+    private List<StockRow> mRows = Collections.emptyList();
+
+    /**
+     * Counts the swaps, so the diff of a cursor that has been swapped out again is dropped
+     */
+    private int mGeneration;
+
+    /**
+     * Rows that were re-fetched after their stock item changed, by _ID, since the rows of the last
+     * swapped in cursor were shown. A cursor may have been loaded before the change, so they are
+     * applied to its rows as well.
+     */
+    private final LongSparseArray<ContentValues> mPatchedRows = new LongSparseArray<>();
+
+    /**
+     * Constructs a new {@link StockRecyclerAdapter}.
+     *
+     * @param context  The context
+     * @param listener Receives the clicks on the rows
+     */
+    public StockRecyclerAdapter(Context context, OnItemClickListener listener) {
+        mContext = context;
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the rows of a new cursor. The cursor is read in the background and the rows shown change
+     * once their difference is computed. It is owned by its loader, which closes it only after a
+     * newer one has been swapped in; the rows of a closed cursor are never shown.
+     *
+     * @param cursor the stock items to show, or null to show none
+     */
+    public void swapCursor(final Cursor cursor) {
+        final List<StockRow> oldRows = mRows;
+        final int generation = ++mGeneration;
+        if (cursor == null) {
+            mRows = Collections.emptyList();
+            mPatchedRows.clear();
+            notifyDataSetChanged();
+            return;
+        }
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<StockRow> newRows;
+                try {
+                    newRows = readRows(cursor);
+                } catch (IllegalStateException | StaleDataException e) {
+                    // The cursor was closed, the newer cursor that replaced it is read next
+                    return;
+                }
+                // Nothing to compare when either list is empty
+                final DiffUtil.DiffResult result = oldRows.isEmpty() || newRows.isEmpty()
+                        ? null : DiffUtil.calculateDiff(new RowDiff(oldRows, newRows), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        showRows(newRows, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the rows read from the last swapped in cursor with the rows patched in the meantime
+     *
+     * @param result the difference with the rows shown so far, or null to rebind all rows
+     */
+    private void showRows(List<StockRow> newRows, DiffUtil.DiffResult result) {
+        List<StockRow> rows = newRows;
+        List<Integer> patchedPositions = new ArrayList<>();
+        for (int i = 0; i < mPatchedRows.size(); i++) {
+            long id = mPatchedRows.keyAt(i);
+            for (int position = 0; position < rows.size(); position++) {
+                if (rows.get(position).mId == id) {
+                    if (rows == newRows) {
+                        rows = new ArrayList<>(newRows);
+                    }
+                    rows.set(position, StockRow.fromValues(id, mPatchedRows.valueAt(i), rows.get(position)));
+                    patchedPositions.add(position);
+                    break;
+                }
+            }
+        }
+        mPatchedRows.clear();
+
+        mRows = rows;
+        if (result == null) {
+            notifyDataSetChanged();
+            return;
+        }
+        result.dispatchUpdatesTo(this);
+        // The difference was computed without the patches
+        for (int position : patchedPositions) {
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Show the given values for the stock item with the given _ID instead of the values in the
+     * cursor, and rebind its row. The values of earlier patches of the row are kept for the columns
+     * missing from the new values. A cursor swapped in later gets the patch as well, until its
+     * rows are shown.
+     */
+    public void patchRow(long id, ContentValues values) {
+        ContentValues patchedRow = mPatchedRows.get(id);
+        if (patchedRow == null) {
+            mPatchedRows.put(id, new ContentValues(values));
+        } else {
+            patchedRow.putAll(values);
+        }
+
+        int position = positionOf(id);
+        if (position != RecyclerView.NO_POSITION) {
+            List<StockRow> rows = new ArrayList<>(mRows);
+            rows.set(position, StockRow.fromValues(id, values, mRows.get(position)));
+            mRows = rows;
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Rebind the row of the stock item with the given _ID, ex: when its pending quantity changed
+     */
+    public void rebindRow(long id) {
+        int position = positionOf(id);
+        if (position != RecyclerView.NO_POSITION) {
+            notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Returns the position of the stock item with the given _ID, or NO_POSITION when it isn't shown
+     */
+    private int positionOf(long id) {
+        for (int position = 0; position < mRows.size(); position++) {
+            if (mRows.get(position).mId == id) {
+                return position;
+            }
+        }
+        return RecyclerView.NO_POSITION;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRows.get(position).mId;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        StockRow row = mRows.get(position);
+
+        // Load the stored thumbnail in the background, a recycled row cancels its old load
+        ImageLoader.get(mContext).load(ImageStore.get(mContext).uriFor(row.mImage, ImageStore.VARIANT_THUMBNAIL),
+                holder.mImage, R.drawable.image_placeholder);
+
+        holder.mNameTextView.setText(row.mName);
+        holder.mPriceTextView.setText(String.valueOf(row.mPrice));
+        // Show the quantity including the sales that are still being written
+        holder.mQuantityTextView.setText(String.valueOf(shownQuantity(row)));
+    }
+
+    /**
+     * A row scrolled out of view no longer needs its image, its bitmap can be reused
+     */
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        ImageLoader.get(mContext).release(holder.mImage);
+    }
+
+    private int shownQuantity(StockRow row) {
+        return row.mQuantity + StockWriteQueue.get(mContext).getPendingDelta(row.mId);
+    }
+
+    /**
+     * Read the rows of the cursor, resolving the column indices once
+     */
+    private static List<StockRow> readRows(Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            return Collections.emptyList();
+        }
+        int idColumnIndex = cursor.getColumnIndexOrThrow(StockItemEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_NAME);
+        int priceColumnIndex = cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_PRICE);
+        int qtyColumnIndex = cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_STOCK_QTY);
+        int imageColumnIndex = cursor.getColumnIndexOrThrow(StockItemEntry.COLUMN_IMAGE);
+
+        List<StockRow> rows = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            rows.add(new StockRow(cursor.getLong(idColumnIndex), cursor.getString(nameColumnIndex),
+                    cursor.getString(priceColumnIndex), cursor.getInt(qtyColumnIndex),
+                    cursor.getString(imageColumnIndex)));
+        }
+        return rows;
+    }
+
+    /**
+     * The views of a list item, found once when it is inflated
+     */
+    public class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView mNameTextView;
+        final TextView mPriceTextView;
+        final TextView mQuantityTextView;
+        final ImageView mImage;
+
+        ViewHolder(View view) {
+            super(view);
+            mNameTextView = view.findViewById(R.id.name);
+            mPriceTextView = view.findViewById(R.id.price);
+            mQuantityTextView = view.findViewById(R.id.quantity);
+            mImage = view.findViewById(R.id.list_item_image_view);
+            ImageButton buyItemBtn = view.findViewById(R.id.buy_btn);
+
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        mListener.onItemClick(mRows.get(position).mId);
+                    }
+                }
+            });
+            buyItemBtn.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        StockRow row = mRows.get(position);
+                        StockCursorAdapter.addToCart(mContext, row.mId, shownQuantity(row));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The values of a stock item shown in its row
+     */
+    private static final class StockRow {
+
+        final long mId;
+        final String mName;
+        final String mPrice;
+        final int mQuantity;
+        final String mImage;
+
+        StockRow(long id, String name, String price, int quantity, String image) {
+            mId = id;
+            mName = name;
+            mPrice = price;
+            mQuantity = quantity;
+            mImage = image;
+        }
+
+        /**
+         * Returns the row with the re-fetched values, keeping the old values of missing columns
+         */
+        static StockRow fromValues(long id, ContentValues values, StockRow old) {
+            Integer quantity = values.getAsInteger(StockItemEntry.COLUMN_STOCK_QTY);
+            return new StockRow(id,
+                    values.containsKey(StockItemEntry.COLUMN_NAME) ? values.getAsString(StockItemEntry.COLUMN_NAME) : old.mName,
+                    values.containsKey(StockItemEntry.COLUMN_PRICE) ? values.getAsString(StockItemEntry.COLUMN_PRICE) : old.mPrice,
+                    quantity != null ? quantity : old.mQuantity,
+                    values.containsKey(StockItemEntry.COLUMN_IMAGE) ? values.getAsString(StockItemEntry.COLUMN_IMAGE) : old.mImage);
+        }
+
+        boolean hasSameContents(StockRow other) {
+            return mQuantity == other.mQuantity
+                    && TextUtils.equals(mName, other.mName)
+                    && TextUtils.equals(mPrice, other.mPrice)
+                    && TextUtils.equals(mImage, other.mImage);
+        }
+    }
+
+    /**
+     * Compares the rows by _ID, and the rows of the same stock item by the values they show
+     */
+    private static final class RowDiff extends DiffUtil.Callback {
+
+        private final List<StockRow> mOldRows;
+        private final List<StockRow> mNewRows;
+
+        RowDiff(List<StockRow> oldRows, List<StockRow> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).mId == mNewRows.get(newItemPosition).mId;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).hasSameContents(mNewRows.get(newItemPosition));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package eu.id2go.stock2go.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads the records of a CSV file (RFC 4180) one at a time from a stream. Fields may be quoted,
+ * a quoted field may hold separators, line breaks and doubled quotes. Lines may end with LF or CRLF.
+ * Only the current record is held in memory, so a file of any size is read in constant memory.
+ */
+final class CsvReader implements Closeable {
+
+    private static final char QUOTE = '"';
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Reader mReader;
+    private final char mSeparator;
+    private final char[] mBuffer = new char[8192];
+    private int mPosition;
+    private int mLimit;
+
+    /**
+     * A character read ahead after a CR, -2 when there is none
+     */
+    private int mPushedBack = -2;
+
+    private final StringBuilder mField = new StringBuilder();
+
+    /**
+     * Number of line breaks read so far, and the line the last record started on (1 based)
+     */
+    private long mLine;
+    private long mRecordLine;
+
+    CsvReader(Reader reader, char separator) {
+        mReader = reader;
+        mSeparator = separator;
+    }
+
+    /**
+     * Read the next record into the given list, replacing its contents
+     *
+     * @return false at the end of the file
+     * @throws IOException when the file can't be read or ends inside a quoted field
+     */
+    boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = read();
+        if (mLine == 0 && mRecordLine == 0 && c == BYTE_ORDER_MARK) {
+            c = read();
+        }
+        if (c == -1) {
+            return false;
+        }
+        mRecordLine = mLine + 1;
+        mField.setLength(0);
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field in the record on line " + mRecordLine);
+                }
+                if (c == QUOTE) {
+                    int next = read();
+                    if (next != QUOTE) {
+                        // The closing quote, the character after it is read as unquoted
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                } else if (c == '\n') {
+                    mLine++;
+                }
+                mField.append((char) c);
+            } else if (c == QUOTE && mField.length() == 0) {
+                quoted = true;
+            } else if (c == mSeparator) {
+                fields.add(mField.toString());
+                mField.setLength(0);
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r') {
+                    int next = read();
+                    if (next != '\n') {
+                        mPushedBack = next;
+                    }
+                }
+                if (c != -1) {
+                    mLine++;
+                }
+                fields.add(mField.toString());
+                return true;
+            } else {
+                mField.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * Returns the line the last record read started on, 1 for the first line of the file
+     */
+    long getRecordLine() {
+        return mRecordLine;
+    }
+
+    private int read() throws IOException {
+        if (mPushedBack != -2) {
+            int c = mPushedBack;
+            mPushedBack = -2;
+            return c;
+        }
+        if (mPosition == mLimit) {
+            mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+            mPosition = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPosition++];
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
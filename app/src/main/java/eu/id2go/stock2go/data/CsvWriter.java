@@ -0,0 +1,74 @@
+package eu.id2go.stock2go.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes CSV records (RFC 4180) to a stream, one field at a time, in the format {@link CsvReader}
+ * reads. A field is quoted only when it holds a separator, a quote or a line break.
+ */
+final class CsvWriter implements Closeable {
+
+    private static final char QUOTE = '"';
+
+    private final Writer mWriter;
+    private final char mSeparator;
+    private boolean mFirstField = true;
+
+    /**
+     * @param writer should be buffered, the fields are written in small pieces
+     */
+    CsvWriter(Writer writer, char separator) {
+        mWriter = writer;
+        mSeparator = separator;
+    }
+
+    /**
+     * Write the next field of the current record, null is written as an empty field
+     */
+    void writeField(String field) throws IOException {
+        if (!mFirstField) {
+            mWriter.write(mSeparator);
+        }
+        mFirstField = false;
+        if (field == null || !needsQuotes(field)) {
+            if (field != null) {
+                mWriter.write(field);
+            }
+            return;
+        }
+        mWriter.write(QUOTE);
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == QUOTE) {
+                mWriter.write(QUOTE);
+            }
+            mWriter.write(c);
+        }
+        mWriter.write(QUOTE);
+    }
+
+    /**
+     * End the current record, the next field starts a new one
+     */
+    void endRecord() throws IOException {
+        mWriter.write("\r\n");
+        mFirstField = true;
+    }
+
+    private boolean needsQuotes(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == mSeparator || c == QUOTE || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+}
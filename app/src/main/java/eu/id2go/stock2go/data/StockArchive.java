@@ -0,0 +1,233 @@
+package eu.id2go.stock2go.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes backups of the database. A backup is a header followed by the database file,
+ * gzip compressed:
+ * <pre>
+ *     int    MAGIC
+ *     int    FORMAT_VERSION
+ *     int    the database version of the app that wrote it
+ *     long   the length of the database file
+ *     byte[] the SHA-256 digest of the database file
+ * </pre>
+ * The header comes first, so a restore checks the length and the digest while it decompresses the
+ * database, without a second pass. A restore only replaces the database with a file that has the
+ * right digest, passes the SQLite quick check and isn't newer than the app.
+ * The images of the stock items aren't part of a backup, only their paths.
+ */
+final class StockArchive {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockArchive.class.getSimpleName();
+
+    /**
+     * "S2GB", the first 4 bytes of every backup
+     */
+    private static final int MAGIC = 0x53324742;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StockArchive() {
+    }
+
+    /**
+     * Write a backup of the database to the stream and close it
+     *
+     * @param snapshot a scratch file for the consistent copy of the database, deleted afterwards
+     * @return the length of the backed up database file
+     */
+    static long backup(StockDbHelper dbHelper, File snapshot, OutputStream output) throws IOException {
+        try {
+            long start = SystemClock.elapsedRealtime();
+            dbHelper.snapshot(snapshot);
+            long snapshotDone = SystemClock.elapsedRealtime();
+
+            MessageDigest digest = newDigest();
+            long length = 0;
+            InputStream input = new FileInputStream(snapshot);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                    length += count;
+                }
+            } finally {
+                input.close();
+            }
+            long digestDone = SystemClock.elapsedRealtime();
+
+            OutputStream buffered = new BufferedOutputStream(output, BUFFER_SIZE);
+            DataOutputStream header = new DataOutputStream(buffered);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.writeInt(StockDbHelper.getDatabaseVersion());
+            header.writeLong(length);
+            header.write(digest.digest());
+            // Compressing at the fastest level, the database pages compress well at any level
+            GZIPOutputStream gzip = new GZIPOutputStream(buffered, BUFFER_SIZE) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+            input = new FileInputStream(snapshot);
+            try {
+                copy(input, gzip);
+            } finally {
+                input.close();
+            }
+            gzip.close();
+            output = null;
+
+            long end = SystemClock.elapsedRealtime();
+            Log.i(LOG_TAG, "Backed up " + length + " bytes: snapshot " + (snapshotDone - start)
+                    + " ms, digest " + (digestDone - snapshotDone) + " ms, compression "
+                    + (end - digestDone) + " ms");
+            return length;
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            if (!snapshot.delete() && snapshot.exists()) {
+                Log.w(LOG_TAG, "Can't delete " + snapshot);
+            }
+        }
+    }
+
+    /**
+     * Read a backup from the stream, close it, and replace the database by the backed up one
+     *
+     * @throws IOException when the stream isn't a backup, is damaged or comes from a newer app,
+     *                     the database is not changed then
+     */
+    static void restore(StockDbHelper dbHelper, InputStream input) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        File restoreFile = dbHelper.getRestoreFile();
+        try {
+            DataInputStream header = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a backup");
+            }
+            int formatVersion = header.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unknown backup format " + formatVersion);
+            }
+            int databaseVersion = header.readInt();
+            if (databaseVersion < 1 || databaseVersion > StockDbHelper.getDatabaseVersion()) {
+                throw new IOException("The backup has database version " + databaseVersion
+                        + ", this app reads up to " + StockDbHelper.getDatabaseVersion());
+            }
+            long length = header.readLong();
+            byte[] expectedDigest = new byte[DIGEST_LENGTH];
+            header.readFully(expectedDigest);
+
+            MessageDigest digest = newDigest();
+            long written;
+            InputStream database = new DigestInputStream(new GZIPInputStream(header, BUFFER_SIZE), digest);
+            FileOutputStream output = new FileOutputStream(restoreFile);
+            try {
+                written = copy(database, output);
+                output.flush();
+                // On disk before the rename makes it the database
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            if (written != length || !MessageDigest.isEqual(expectedDigest, digest.digest())) {
+                throw new IOException("The backup is damaged");
+            }
+            long decompressDone = SystemClock.elapsedRealtime();
+
+            verify(restoreFile);
+            long verifyDone = SystemClock.elapsedRealtime();
+
+            dbHelper.replaceDatabase(restoreFile);
+            Log.i(LOG_TAG, "Restored " + length + " bytes: decompression " + (decompressDone - start)
+                    + " ms, check " + (verifyDone - decompressDone) + " ms, swap "
+                    + (SystemClock.elapsedRealtime() - verifyDone) + " ms");
+        } finally {
+            input.close();
+            // Left over when the backup was rejected
+            if (!restoreFile.delete() && restoreFile.exists()) {
+                Log.w(LOG_TAG, "Can't delete " + restoreFile);
+            }
+        }
+    }
+
+    /**
+     * Open the restored database on its own and check its structure and version. An older version
+     * is fine, {@link StockDbHelper#onUpgrade} migrates it when the database is opened again.
+     */
+    private static void verify(File restoreFile) throws IOException {
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(restoreFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        } catch (RuntimeException e) {
+            throw new IOException("The backup isn't a database", e);
+        }
+        try {
+            String check = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+            if (!"ok".equals(check)) {
+                throw new IOException("The backed up database is damaged: " + check);
+            }
+            int version = db.getVersion();
+            if (version < 1 || version > StockDbHelper.getDatabaseVersion()) {
+                throw new IOException("The backed up database has version " + version
+                        + ", this app reads up to " + StockDbHelper.getDatabaseVersion());
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("The backed up database can't be read", e);
+        } finally {
+            db.close();
+            new File(restoreFile.getPath() + "-journal").delete();
+        }
+    }
+
+    private static long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android version has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Backs up the database to a document, ex: one created with the Storage Access Framework, and
+ * restores it from one, through {@link StockContract#METHOD_BACKUP_DATABASE} and
+ * {@link StockContract#METHOD_RESTORE_DATABASE}. A backup runs while the app keeps reading and
+ * writing stock items, a restore replaces every stock item, supplier and movement at once.
+ */
+public final class StockBackup {
+
+    /**
+     * Tag for the thread and the log messages
+     */
+    private static final String LOG_TAG = StockBackup.class.getSimpleName();
+
+    private static StockBackup sInstance;
+
+    private final ContentResolver mResolver;
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * One backup or restore runs at a time, in the order of the calls
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG);
+        }
+    });
+
+    /**
+     * Returns the backup of the app
+     */
+    public static synchronized StockBackup get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockBackup(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StockBackup(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Write a backup of the database to the document at the given URI on a background thread
+     *
+     * @param destination the document to write, its content is replaced
+     * @param callback    receives the length of the backed up database, or null when the backup failed
+     */
+    public Future<?> backupAsync(final Uri destination, final StockRepository.Callback<Long> callback) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = mResolver.call(StockContract.BASE_CONTENT_URI,
+                        StockContract.METHOD_BACKUP_DATABASE, destination.toString(), null);
+                postResult(callback, result == null ? null : result.getLong(StockContract.EXTRA_DATABASE_LENGTH));
+            }
+        });
+    }
+
+    /**
+     * Replace the database by the backup in the document at the given URI on a background thread.
+     * The backup isn't restored while a file is imported or quantity changes wait to be written,
+     * they would end up half in the replaced database and half in the restored one.
+     *
+     * @param source   a document written by {@link #backupAsync}
+     * @param callback receives whether the database was replaced, it is unchanged when not
+     */
+    public Future<?> restoreAsync(final Uri source, final StockRepository.Callback<Boolean> callback) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (StockCsvImporter.get(mContext).isImporting()
+                        || StockWriteQueue.get(mContext).hasPendingWrites()) {
+                    Log.w(LOG_TAG, "Not restoring " + source + " while stock items are being written");
+                    postResult(callback, false);
+                    return;
+                }
+                Bundle result = mResolver.call(StockContract.BASE_CONTENT_URI,
+                        StockContract.METHOD_RESTORE_DATABASE, source.toString(), null);
+                postResult(callback, result != null);
+            }
+        });
+    }
+
+    private <T> void postResult(final StockRepository.Callback<T> callback, final T result) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,180 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Coalesces the change notifications of {@link StockProvider}.
+ * Every write used to call ContentResolver#notifyChange right away, so a burst of writes made the
+ * CursorLoader of the catalog requery once per row. Notifications are now collected for a short
+ * window, and then every distinct URI is notified once. Inside a scope (ex: a batch transaction)
+ * the notifications of the calling thread are held until the scope ends, and dropped when the
+ * scope is rolled back.
+ */
+class StockChangeNotifier {
+
+    private final ContentResolver mResolver;
+
+    /**
+     * Number of milliseconds notifications are collected before they are sent, 0 to send right away
+     */
+    private final long mWindowMs;
+
+    /**
+     * Sends the pending notifications at the end of the window, off the thread that wrote
+     */
+    private final Handler mHandler;
+
+    /**
+     * The URIs to notify at the end of the current window
+     */
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<>();
+
+    /**
+     * The URIs held by the scope of the calling thread, and how deep the scopes are nested
+     */
+    private final ThreadLocal<LinkedHashSet<Uri>> mScopeUris = new ThreadLocal<>();
+    private final ThreadLocal<Integer> mScopeDepth = new ThreadLocal<>();
+
+    /**
+     * Number of notifications sent to the ContentResolver, and number of notifications that
+     * were merged into another one or dropped by a rolled back scope
+     */
+    private long mEmitted;
+    private long mSuppressed;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Construct a new notifier
+     *
+     * @param resolver to send the notifications to
+     * @param windowMs number of milliseconds to collect notifications, 0 to send them right away
+     */
+    StockChangeNotifier(ContentResolver resolver, long windowMs) {
+        mResolver = resolver;
+        mWindowMs = windowMs;
+        HandlerThread thread = new HandlerThread(StockChangeNotifier.class.getSimpleName());
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Notify the listeners of the given URI that its data has changed, at the end of the window
+     * or of the scope of the calling thread.
+     */
+    void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> scopeUris = mScopeUris.get();
+        if (scopeUris != null) {
+            if (!scopeUris.add(uri)) {
+                countSuppressed(1);
+            }
+            return;
+        }
+        ArrayList<Uri> uris = new ArrayList<>(1);
+        uris.add(uri);
+        schedule(uris);
+    }
+
+    /**
+     * Hold the notifications of the calling thread until the matching call to {@link #endScope}.
+     * Scopes can be nested, only the outermost scope sends the notifications.
+     */
+    void beginScope() {
+        Integer depth = mScopeDepth.get();
+        if (depth == null || depth == 0) {
+            mScopeUris.set(new LinkedHashSet<Uri>());
+            mScopeDepth.set(1);
+        } else {
+            mScopeDepth.set(depth + 1);
+        }
+    }
+
+    /**
+     * End the scope started by {@link #beginScope}.
+     *
+     * @param committed true to send the held notifications, false when the changes were rolled back
+     */
+    void endScope(boolean committed) {
+        int depth = mScopeDepth.get() - 1;
+        mScopeDepth.set(depth);
+        if (depth > 0) {
+            return;
+        }
+        LinkedHashSet<Uri> scopeUris = mScopeUris.get();
+        mScopeUris.set(null);
+        if (committed) {
+            schedule(new ArrayList<>(scopeUris));
+        } else {
+            countSuppressed(scopeUris.size());
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent to the ContentResolver
+     */
+    synchronized long getEmittedCount() {
+        return mEmitted;
+    }
+
+    /**
+     * Returns the number of notifications that were merged into another one or dropped
+     */
+    synchronized long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    /**
+     * Add the URIs to the pending notifications and start the window if it isn't running yet
+     */
+    private void schedule(ArrayList<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            boolean windowRunning = !mPending.isEmpty();
+            for (Uri uri : uris) {
+                if (!mPending.add(uri)) {
+                    mSuppressed++;
+                }
+            }
+            if (windowRunning) {
+                return;
+            }
+        }
+        if (mWindowMs > 0) {
+            mHandler.postDelayed(mFlush, mWindowMs);
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Send one notification for every pending URI
+     */
+    private void flush() {
+        ArrayList<Uri> uris;
+        synchronized (this) {
+            uris = new ArrayList<>(mPending);
+            mPending.clear();
+            mEmitted += uris.size();
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    private synchronized void countSuppressed(int count) {
+        mSuppressed += count;
+    }
+}
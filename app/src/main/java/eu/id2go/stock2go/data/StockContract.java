@@ -18,6 +18,7 @@ package eu.id2go.stock2go.data;
 import android.content.ContentResolver;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 /**
  * @Contracts exist of 3 parts:
@@ -58,6 +59,57 @@ public final class StockContract {
      */
     public static final String PATH_STOCK = "stock2go";
 
+    /**
+     * Path appended to the stock2go content URI to search the stock items, ex:
+     * content://eu.id2go.stock2go/stock2go/search?q=knife
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path of the URI that is notified when the list of stock items changes: when items are inserted
+     * or deleted, renamed, or when several items are updated at once. It is not notified when a single
+     * stock item is updated in place, only that item's own URI is.
+     */
+    public static final String PATH_STRUCTURE = "stock2go_structure";
+
+    /**
+     * Path for the per section stock summary, ex: content://eu.id2go.stock2go/summary
+     */
+    public static final String PATH_SUMMARY = "summary";
+
+    /**
+     * Path appended to the stock2go content URI for the stock items that have to be reordered, ex:
+     * content://eu.id2go.stock2go/stock2go/low_stock
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    /**
+     * Path for the suppliers of the stock items, ex: content://eu.id2go.stock2go/suppliers
+     */
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    /**
+     * Path for the quantity history of a stock item, ex: content://eu.id2go.stock2go/stock_movements/3
+     */
+    public static final String PATH_MOVEMENTS = "stock_movements";
+
+    /**
+     * Name of the provider method that writes a compressed, checksummed backup of the whole database
+     * while the app keeps working. Call it on the {@link #BASE_CONTENT_URI} with the URI of the
+     * document to write as argument. The returned Bundle holds the length of the backed up database
+     * as a long under {@link #EXTRA_DATABASE_LENGTH}, it is null when the backup failed.
+     */
+    public static final String METHOD_BACKUP_DATABASE = "backupDatabase";
+    public static final String EXTRA_DATABASE_LENGTH = "databaseLength";
+
+    /**
+     * Name of the provider method that replaces the whole database by a backup written by
+     * {@link #METHOD_BACKUP_DATABASE}. Call it on the {@link #BASE_CONTENT_URI} with the URI of the
+     * backup document as argument. The backup is verified before it replaces the database, the
+     * returned Bundle is null when it was rejected or could not be read and nothing changed.
+     */
+    public static final String METHOD_RESTORE_DATABASE = "restoreDatabase";
+
     // To prevent someone from accidentally instantiating the contract class,
     // it has an empty constructor.
     private StockContract() {
@@ -79,6 +131,26 @@ public final class StockContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCK);
 
+        /**
+         * The content URI to search the stock items on name, brand and supplier name.
+         * Pass the text to search for as QUERY_PARAMETER_SEARCH, every word of it matches as a prefix.
+         * Items whose name starts with the first word come first. QUERY_PARAMETER_LIMIT limits the
+         * number of results. Use {@link #buildSearchUri} to make the URI.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * The content URI for the stock items whose quantity is below their {@link #COLUMN_REORDER_LEVEL}.
+         * The items are sorted per supplier and then on name, so the reorder list of every
+         * supplier is one consecutive block.
+         */
+        public static final Uri CONTENT_LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * The URI notified for changes to the list of stock items, see {@link StockContract#PATH_STRUCTURE}
+         */
+        public static final Uri STRUCTURE_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STRUCTURE);
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of stock2go.
          */
@@ -94,17 +166,230 @@ public final class StockContract {
 
         public static final String TABLE_NAME = "stock2go";
 
+        /**
+         * Name of the full text search table, mirroring the name, brand and supplier name columns
+         */
+        public static final String FTS_TABLE_NAME = "stock2go_fts";
+
+        /**
+         * Name of the view joining every stock item with the contact data of its supplier
+         * (added in database version 6). The provider reads through it when a query needs the
+         * supplier columns.
+         */
+        public static final String VIEW_WITH_SUPPLIER = "stock2go_with_supplier";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_NAME = "name";
         public static final String COLUMN_BRAND = "brand";
         public static final String COLUMN_STOCK_QTY = "stockQuantity";
+        /**
+         * The _ID of the supplier of the stock item in the suppliers table (added in database version 6)
+         */
+        public static final String COLUMN_SUPPLIER_ID = "supplierId";
+        /**
+         * The name and contact data of the supplier. Since database version 6 they are stored once in
+         * the suppliers table and joined in on query. A stock item can still be written with these
+         * columns instead of a COLUMN_SUPPLIER_ID, the provider then looks up or adds the supplier.
+         * The phone and e-mail must then match those of an existing supplier, they are only changed
+         * through {@link SupplierEntry#CONTENT_URI}. A selection on these columns is supported for
+         * updates and deletes of stock items as well.
+         */
         public static final String COLUMN_NAME_SUPPLIER = "nameSupplier";
         public static final String COLUMN_PHONE_SUPPLIER = "phoneSupplier";
         public static final String COLUMN_EMAIL_SUPPLIER = "email";
         public static final String COLUMN_SECTION = "section";
         public static final String COLUMN_PRICE = "price";
+        /**
+         * The key of the image in the ImageStore, which keeps a display and a thumbnail variant of
+         * it in app private storage. Rows saved before the store hold the URI of the picked image.
+         */
         public static final String COLUMN_IMAGE = "image";
+        /**
+         * The stock item has to be reordered when its quantity is below this level, 0 means never
+         * (added in database version 5)
+         */
+        public static final String COLUMN_REORDER_LEVEL = "reorderLevel";
+
+        /**
+         * Name of the provider method that atomically adds a delta to the stock quantity of a single
+         * stock item. Use it through ContentResolver#call with the _ID of the stock item as argument
+         * and {@link #EXTRA_DELTA} in the extras. The returned Bundle holds the new quantity under
+         * {@link #COLUMN_STOCK_QTY}, or is null when the item does not exist or the quantity
+         * would drop below 0.
+         */
+        public static final String METHOD_ADJUST_QUANTITY = "adjustQuantity";
+
+        /**
+         * Key of the (int) quantity delta in the extras of {@link #METHOD_ADJUST_QUANTITY}, ex: -1 for a sale
+         */
+        public static final String EXTRA_DELTA = "delta";
+
+        /**
+         * Name of the provider method that adds deltas to the stock quantities of several stock
+         * items in one transaction. Pass the _IDs as a long array under {@link #EXTRA_IDS} and the
+         * deltas as an int array under {@link #EXTRA_DELTAS}. Every delta is applied like
+         * {@link #METHOD_ADJUST_QUANTITY}: the returned Bundle holds the new quantities as a long
+         * array under {@link #EXTRA_QUANTITIES}, with -1 for an item that does not exist or whose
+         * quantity would drop below 0. The other deltas are applied anyway.
+         */
+        public static final String METHOD_ADJUST_QUANTITIES = "adjustQuantities";
+        public static final String EXTRA_IDS = "ids";
+        public static final String EXTRA_DELTAS = "deltas";
+        public static final String EXTRA_QUANTITIES = "quantities";
+
+        /**
+         * Name of the provider method that returns how many change notifications the provider sent,
+         * as a long under {@link #EXTRA_NOTIFICATIONS_EMITTED}, and how many it merged into another
+         * notification or dropped, under {@link #EXTRA_NOTIFICATIONS_SUPPRESSED}
+         */
+        public static final String METHOD_NOTIFICATION_STATS = "notificationStats";
+        public static final String EXTRA_NOTIFICATIONS_EMITTED = "emitted";
+        public static final String EXTRA_NOTIFICATIONS_SUPPRESSED = "suppressed";
+
+        /**
+         * Name of the provider method that returns the statistics of the cache of single stock items:
+         * how many queries by _ID it answered as a long under {@link #EXTRA_CACHE_HITS}, how many
+         * went to the database under {@link #EXTRA_CACHE_MISSES}, how many rows it evicted when full
+         * under {@link #EXTRA_CACHE_EVICTIONS} and the number of cached rows as an int under
+         * {@link #EXTRA_CACHE_SIZE}
+         */
+        public static final String METHOD_ITEM_CACHE_STATS = "itemCacheStats";
+        public static final String EXTRA_CACHE_HITS = "cacheHits";
+        public static final String EXTRA_CACHE_MISSES = "cacheMisses";
+        public static final String EXTRA_CACHE_EVICTIONS = "cacheEvictions";
+        public static final String EXTRA_CACHE_SIZE = "cacheSize";
+
+        /**
+         * Name of the provider method that inserts a batch of stock items in one transaction, like
+         * ContentResolver#bulkInsert, but skips the invalid rows instead of rolling back the batch.
+         * Pass the rows as a ContentValues array under {@link #EXTRA_ROWS}. The returned Bundle
+         * holds the number of inserted rows as an int under {@link #EXTRA_INSERTED}, and under
+         * {@link #EXTRA_ERRORS} a String array with the reason each row was rejected, or null for
+         * the inserted rows.
+         */
+        public static final String METHOD_IMPORT_STOCK_ITEMS = "importStockItems";
+        public static final String EXTRA_ROWS = "rows";
+        public static final String EXTRA_INSERTED = "inserted";
+        public static final String EXTRA_ERRORS = "errors";
+
+        /**
+         * Query parameters to read the {@link #CONTENT_URI} one page at a time.
+         * A paged query returns at most QUERY_PARAMETER_LIMIT rows in the {@link #PAGE_SORT_ORDER}.
+         * To get the next page, pass the name and the _ID of the last row of the previous page as
+         * QUERY_PARAMETER_AFTER and QUERY_PARAMETER_AFTER_ID. Use {@link #buildPageUri} to make the URI.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        public static final String QUERY_PARAMETER_AFTER = "after";
+        public static final String QUERY_PARAMETER_AFTER_ID = "afterId";
+
+        /**
+         * Query parameter with the text to search for on the {@link #CONTENT_SEARCH_URI}
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter on the {@link #CONTENT_URI} to choose what the returned cursor observes.
+         * With the value NOTIFY_STRUCTURE the cursor is only notified through the {@link #STRUCTURE_URI},
+         * so updates of single stock items don't requery the whole list. The caller then observes
+         * the item URIs itself, see {@link #observeStructure}.
+         */
+        public static final String QUERY_PARAMETER_NOTIFY = "notify";
+        public static final String NOTIFY_STRUCTURE = "structure";
+
+        /**
+         * The selection of the stock items that have to be reordered, served by {@link #CONTENT_LOW_STOCK_URI}
+         */
+        public static final String LOW_STOCK_SELECTION = COLUMN_STOCK_QTY + " < " + COLUMN_REORDER_LEVEL;
+
+        /**
+         * The sort order of the {@link #CONTENT_LOW_STOCK_URI}: per supplier, and on name within a supplier
+         */
+        public static final String LOW_STOCK_SORT_ORDER = COLUMN_SUPPLIER_ID + ", " + COLUMN_NAME;
+
+        /**
+         * Projection of a stock item together with the contact data of its supplier
+         */
+        public static final String[] PROJECTION_WITH_SUPPLIER = {
+                _ID,
+                COLUMN_NAME,
+                COLUMN_BRAND,
+                COLUMN_STOCK_QTY,
+                COLUMN_REORDER_LEVEL,
+                COLUMN_SUPPLIER_ID,
+                COLUMN_NAME_SUPPLIER,
+                COLUMN_PHONE_SUPPLIER,
+                COLUMN_EMAIL_SUPPLIER,
+                COLUMN_SECTION,
+                COLUMN_PRICE,
+                COLUMN_IMAGE};
+
+        /**
+         * Projection of a row of the catalog list, only the columns a list row shows. They are all
+         * in the list index (database version 7), so a list query reads that index and never the
+         * rows of the stock2go table or the suppliers.
+         */
+        public static final String[] LIST_PROJECTION = {
+                _ID,
+                COLUMN_NAME,
+                COLUMN_PRICE,
+                COLUMN_STOCK_QTY,
+                COLUMN_IMAGE};
+
+        /**
+         * Returns whether the given column is one of the supplier columns joined in from the suppliers table
+         */
+        public static boolean isSupplierColumn(String column) {
+            return COLUMN_NAME_SUPPLIER.equals(column) || COLUMN_PHONE_SUPPLIER.equals(column)
+                    || COLUMN_EMAIL_SUPPLIER.equals(column);
+        }
+
+        /**
+         * The sort order of a paged query: case insensitive on name, and on _ID for equal names
+         */
+        public static final String PAGE_SORT_ORDER = COLUMN_NAME + " COLLATE NOCASE, " + _ID;
 
+        /**
+         * Returns the URI for a page of at most limit stock items, following the item with the given
+         * name and _ID. Pass null for afterName to get the first page.
+         */
+        public static Uri buildPageUri(int limit, String afterName, long afterId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (afterName != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterName)
+                        .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the given stock2go URI, changed so the returned cursor only observes the
+         * {@link #STRUCTURE_URI}
+         */
+        public static Uri observeStructure(Uri uri) {
+            return uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_NOTIFY, NOTIFY_STRUCTURE).build();
+        }
+
+        /**
+         * Returns whether the given URI is the content URI of a single stock item,
+         * ex: content://eu.id2go.stock2go/stock2go/3
+         */
+        public static boolean isStockItemUri(Uri uri) {
+            return CONTENT_AUTHORITY.equals(uri.getAuthority())
+                    && uri.getPathSegments().size() == 2
+                    && PATH_STOCK.equals(uri.getPathSegments().get(0))
+                    && TextUtils.isDigitsOnly(uri.getPathSegments().get(1));
+        }
+
+        /**
+         * Returns the URI to search for at most limit stock items matching the given text
+         */
+        public static Uri buildSearchUri(String text, int limit) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, text)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
 
         /**
          * Possible values for the section of the stock2go (unknown, bread, cleaning materials, cosmetics, dairy products, dressings and sauces, electrical, frozen food, fruit, kitchen utensils, vegetables)
@@ -136,5 +421,157 @@ public final class StockContract {
 
     }
 
+    /**
+     * Inner class that defines constant values for the stock summary table.
+     * Each entry in the table holds the totals of one section of the stock2go table. Triggers keep the
+     * totals up to date on every insert, update and delete, so reading them never scans the stock items.
+     * The table is read only through the provider.
+     */
+    public static abstract class StockSummaryEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the stock summary in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUMMARY);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the list of section summaries.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUMMARY;
+
+        public static final String TABLE_NAME = "stock_summary";
+
+        /**
+         * The _ID of a summary is its section, one of the StockItemEntry.SECTION_* values
+         */
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_ITEM_COUNT = "itemCount";
+        public static final String COLUMN_UNITS_ON_HAND = "unitsOnHand";
+        public static final String COLUMN_STOCK_VALUE = "stockValue";
+
+    }
+
+    /**
+     * Inner class that defines constant values for the suppliers table (added in database version 6).
+     * Each entry in the table represents a single supplier, the stock items refer to it with
+     * StockItemEntry.COLUMN_SUPPLIER_ID.
+     */
+    public static abstract class SupplierEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the suppliers in the provider
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of suppliers.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single supplier.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        public static final String TABLE_NAME = "suppliers";
+
+        public static final String _ID = BaseColumns._ID;
+        /**
+         * Name of the supplier, unique (case insensitive)
+         */
+        public static final String COLUMN_NAME = "name";
+        public static final String COLUMN_PHONE = "phone";
+        public static final String COLUMN_EMAIL = "email";
+
+    }
+
+    /**
+     * Inner class that defines constant values for the stock movements ledger (added in database
+     * version 8). Every change of a stock quantity adds a movement with the delta and the reason,
+     * in the same transaction as the change. Movements are never updated. Once they are older than
+     * the retention period, {@link #METHOD_COMPACT_MOVEMENTS} adds them up into one snapshot per
+     * stock item, day and reason, so the ledger stays small.
+     * The ledger is written and compacted only by the provider.
+     */
+    public static abstract class StockMovementEntry implements BaseColumns {
+
+        /**
+         * The content URI of the movements. Append the _ID of a stock item to read its history.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_MOVEMENTS);
+
+        /**
+         * The MIME type of the history of a stock item.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
+
+        public static final String TABLE_NAME = "stock_movements";
+
+        /**
+         * Name of the table with the compacted movements, one row per stock item, day and reason
+         */
+        public static final String SNAPSHOT_TABLE_NAME = "stock_snapshots";
+
+        public static final String _ID = BaseColumns._ID;
+        /**
+         * The _ID of the stock item. It is kept after the stock item has been deleted.
+         */
+        public static final String COLUMN_ITEM_ID = "itemId";
+        /**
+         * The change of the quantity, negative when the quantity went down
+         */
+        public static final String COLUMN_DELTA = "delta";
+        /**
+         * Why the quantity changed, one of the REASON_* values
+         */
+        public static final String COLUMN_REASON = "reason";
+        /**
+         * When the quantity changed, in milliseconds since the epoch
+         */
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        /**
+         * The day of a snapshot, in days since the epoch (UTC)
+         */
+        public static final String COLUMN_DAY = "day";
+        /**
+         * The number of movements in a row: 1 for a movement, the number of movements added up in
+         * a snapshot
+         */
+        public static final String COLUMN_COUNT = "count";
+
+        /**
+         * Possible values for the reason of a movement
+         */
+        public static final int REASON_RECEIVED = 1;
+        public static final int REASON_SALE = 2;
+        public static final int REASON_RESTOCK = 3;
+        public static final int REASON_CORRECTION = 4;
+        public static final int REASON_REMOVED = 5;
+
+        /**
+         * The columns of the history of a stock item. A snapshot is returned with the timestamp of
+         * the start of its day.
+         */
+        public static final String[] HISTORY_PROJECTION = {
+                COLUMN_TIMESTAMP,
+                COLUMN_REASON,
+                COLUMN_DELTA,
+                COLUMN_COUNT
+        };
+
+        /**
+         * Name of the provider method that compacts the movements older than the retention period
+         * into snapshots. The returned Bundle holds the number of compacted movements as an int
+         * under {@link #EXTRA_COMPACTED}.
+         */
+        public static final String METHOD_COMPACT_MOVEMENTS = "compactMovements";
+        public static final String EXTRA_COMPACTED = "compacted";
+
+    }
+
 }
 
@@ -0,0 +1,398 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+/**
+ * Imports stock items from a CSV file, ex: a catalog picked with the Storage Access Framework.
+ * The first row holds the column names, the StockItemEntry column names (case insensitive), other
+ * columns are ignored. The file is read as a stream one row at a time and the rows are inserted in
+ * transactions of BATCH_ROWS rows through {@link StockItemEntry#METHOD_IMPORT_STOCK_ITEMS}, so the
+ * memory used doesn't grow with the size of the file. The provider validates every row like any
+ * other insert, an invalid row is reported and skipped while the rest of its batch is inserted.
+ * Rows of batches that were committed stay when the import fails or is cancelled later on.
+ */
+public final class StockCsvImporter {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockCsvImporter.class.getSimpleName();
+
+    /**
+     * Number of rows inserted in one transaction, so neither a transaction nor the write-ahead log
+     * grows with the size of the file
+     */
+    private static final int BATCH_ROWS = 1000;
+
+    /**
+     * Number of rejected rows reported one by one, the rest are only counted
+     */
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * The columns a CSV file can hold
+     */
+    private static final List<String> TEXT_COLUMNS = Arrays.asList(
+            StockItemEntry.COLUMN_NAME,
+            StockItemEntry.COLUMN_BRAND,
+            StockItemEntry.COLUMN_IMAGE,
+            StockItemEntry.COLUMN_NAME_SUPPLIER,
+            StockItemEntry.COLUMN_PHONE_SUPPLIER,
+            StockItemEntry.COLUMN_EMAIL_SUPPLIER);
+    private static final List<String> INTEGER_COLUMNS = Arrays.asList(
+            StockItemEntry.COLUMN_STOCK_QTY,
+            StockItemEntry.COLUMN_SECTION,
+            StockItemEntry.COLUMN_PRICE,
+            StockItemEntry.COLUMN_REORDER_LEVEL);
+
+    /**
+     * Receives the progress and the outcome of the import on the main thread
+     */
+    public interface Listener {
+        /**
+         * Another batch has been committed
+         *
+         * @param rowsRead     the number of rows read from the file so far, without the column names
+         * @param rowsImported the number of stock items inserted so far
+         */
+        void onImportProgress(long rowsRead, long rowsImported);
+
+        /**
+         * A row was rejected. Only the first MAX_REPORTED_ERRORS rows are reported.
+         *
+         * @param line    the line of the file the row starts on
+         * @param message why the row was rejected
+         */
+        void onImportRowError(long line, String message);
+
+        /**
+         * The whole file has been imported
+         */
+        void onImportFinished(long rowsImported, long rowsRejected);
+
+        /**
+         * The file could not be read to the end, the batches committed before stay imported
+         */
+        void onImportFailed(long rowsImported);
+    }
+
+    private static StockCsvImporter sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    /**
+     * One file is imported at a time
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG);
+        }
+    });
+
+    /**
+     * Set while a file is being imported, see {@link #isImporting()}
+     */
+    private volatile boolean mImporting;
+
+    /**
+     * Returns the importer of the app
+     */
+    public static synchronized StockCsvImporter get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockCsvImporter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StockCsvImporter(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Call from the main thread
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Import the CSV file at the given URI on a background thread. Cancelling the returned Future
+     * stops the import after the batch that is being inserted.
+     *
+     * @param source the file, UTF-8 encoded, with the values separated by commas
+     */
+    public Future<?> importAsync(final Uri source) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                mImporting = true;
+                try {
+                    importFile(source);
+                } finally {
+                    mImporting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether a file is being imported, its batches keep being written until it is done
+     */
+    public boolean isImporting() {
+        return mImporting;
+    }
+
+    /**
+     * Read, validate and insert the rows of the file. Runs on the import thread.
+     */
+    private void importFile(Uri source) {
+        ImportCounts counts = new ImportCounts();
+        CsvReader reader = null;
+        try {
+            InputStream input = mResolver.openInputStream(source);
+            if (input == null) {
+                throw new IOException("Can't open " + source);
+            }
+            // The CSV reader buffers the characters itself
+            reader = new CsvReader(new InputStreamReader(input, Charset.forName("UTF-8")), ',');
+            importRows(reader, counts);
+        } catch (IOException | RuntimeException e) {
+            // ex: an unreadable file, a file without column names, or a batch the provider failed to write
+            Log.e(LOG_TAG, "Failed to import " + source + " after " + counts.mImported + " rows", e);
+            postFailed(counts.mImported);
+            return;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        // A cancelled import isn't reported
+        if (!Thread.currentThread().isInterrupted()) {
+            postFinished(counts.mImported, counts.mRejected);
+        }
+    }
+
+    private void importRows(CsvReader reader, ImportCounts counts) throws IOException {
+        List<String> fields = new ArrayList<>();
+        if (!reader.readRecord(fields)) {
+            throw new IOException("The file is empty");
+        }
+        String[] columns = mapColumns(fields);
+
+        ContentValues[] batch = new ContentValues[BATCH_ROWS];
+        long[] lines = new long[BATCH_ROWS];
+        int batchSize = 0;
+        while (!Thread.currentThread().isInterrupted() && reader.readRecord(fields)) {
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                // A blank line
+                continue;
+            }
+            counts.mRead++;
+            ContentValues values = new ContentValues();
+            String error = readValues(columns, fields, values);
+            if (error != null) {
+                reportError(counts, reader.getRecordLine(), error);
+                continue;
+            }
+            batch[batchSize] = values;
+            lines[batchSize] = reader.getRecordLine();
+            batchSize++;
+            if (batchSize == BATCH_ROWS) {
+                insertBatch(batch, lines, batchSize, counts);
+                batchSize = 0;
+            }
+        }
+        if (batchSize != 0 && !Thread.currentThread().isInterrupted()) {
+            insertBatch(batch, lines, batchSize, counts);
+        }
+    }
+
+    /**
+     * Returns the StockItemEntry column of every field, or null for the fields that are ignored
+     *
+     * @throws IOException when there is no name column, the first row then isn't a row of column names
+     */
+    private static String[] mapColumns(List<String> header) throws IOException {
+        String[] columns = new String[header.size()];
+        boolean hasName = false;
+        for (int i = 0; i < columns.length; i++) {
+            String name = header.get(i).trim();
+            for (String column : TEXT_COLUMNS) {
+                if (column.equalsIgnoreCase(name)) {
+                    columns[i] = column;
+                }
+            }
+            for (String column : INTEGER_COLUMNS) {
+                if (column.equalsIgnoreCase(name)) {
+                    columns[i] = column;
+                }
+            }
+            if (columns[i] == null) {
+                Log.w(LOG_TAG, "Ignoring unknown column " + name);
+            }
+            hasName |= StockItemEntry.COLUMN_NAME.equals(columns[i]);
+        }
+        if (!hasName) {
+            throw new IOException("The first row must name the columns, including " + StockItemEntry.COLUMN_NAME);
+        }
+        return columns;
+    }
+
+    /**
+     * Put the fields of a row into the values, an empty number is left out like a missing column
+     *
+     * @return why the row can't be imported, or null
+     */
+    private static String readValues(String[] columns, List<String> fields, ContentValues values) {
+        int count = Math.min(columns.length, fields.size());
+        for (int i = 0; i < count; i++) {
+            String column = columns[i];
+            if (column == null) {
+                continue;
+            }
+            Object value;
+            try {
+                value = parseValue(column, fields.get(i));
+            } catch (NumberFormatException e) {
+                return String.format(Locale.US, "%s is not a whole number: %s", column, fields.get(i).trim());
+            }
+            if (value instanceof Integer) {
+                values.put(column, (Integer) value);
+            } else if (value != null) {
+                values.put(column, (String) value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a field in the given column: the trimmed text, an Integer for a number
+     * column, or null for an empty number
+     *
+     * @throws NumberFormatException when a number column holds something else than a whole number
+     */
+    static Object parseValue(String column, String field) {
+        field = field.trim();
+        if (!INTEGER_COLUMNS.contains(column)) {
+            return field;
+        }
+        return field.isEmpty() ? null : Integer.valueOf(field);
+    }
+
+    /**
+     * Insert the rows in one transaction, report the rejected ones and the progress
+     */
+    private void insertBatch(ContentValues[] batch, long[] lines, int batchSize, ImportCounts counts) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(StockItemEntry.EXTRA_ROWS, Arrays.copyOf(batch, batchSize));
+        Bundle result = mResolver.call(StockItemEntry.CONTENT_URI, StockItemEntry.METHOD_IMPORT_STOCK_ITEMS,
+                null, extras);
+        if (result == null) {
+            throw new IllegalStateException("The provider did not import the rows");
+        }
+        String[] errors = result.getStringArray(StockItemEntry.EXTRA_ERRORS);
+        for (int i = 0; errors != null && i < errors.length; i++) {
+            if (errors[i] != null) {
+                reportError(counts, lines[i], errors[i]);
+            }
+        }
+        counts.mImported += result.getInt(StockItemEntry.EXTRA_INSERTED);
+        Arrays.fill(batch, null);
+
+        final long read = counts.mRead;
+        final long imported = counts.mImported;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onImportProgress(read, imported);
+                }
+            }
+        });
+    }
+
+    private void reportError(ImportCounts counts, final long line, final String message) {
+        counts.mRejected++;
+        if (counts.mRejected > MAX_REPORTED_ERRORS) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onImportRowError(line, message);
+                }
+            }
+        });
+    }
+
+    private void postFinished(final long imported, final long rejected) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onImportFinished(imported, rejected);
+                }
+            }
+        });
+    }
+
+    private void postFailed(final long imported) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onImportFailed(imported);
+                }
+            }
+        });
+    }
+
+    /**
+     * The number of rows of the running import
+     */
+    private static final class ImportCounts {
+        long mRead;
+        long mImported;
+        long mRejected;
+    }
+}
@@ -1,10 +1,23 @@
 package eu.id2go.stock2go.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.StockMovementEntry;
+import eu.id2go.stock2go.data.StockContract.StockSummaryEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
 
 
 
@@ -21,16 +34,303 @@ public class StockDbHelper extends SQLiteOpenHelper {
      * than increment the database version number!
      */
     private static final String DATABASE_NAME = "stock2go.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 8;
 
     /**
-     * Construct a new instance of StockDbHelper
+     * Names of the secondary indexes on the stock2go table (added in database version 2)
+     */
+    private static final String INDEX_SECTION = "stock2go_section_idx";
+    private static final String INDEX_NAME = "stock2go_name_idx";
+    private static final String INDEX_NAME_SUPPLIER = "stock2go_name_supplier_idx";
+    private static final String INDEX_STOCK_QTY = "stock2go_stock_qty_idx";
+    private static final String INDEX_LOW_STOCK = "stock2go_low_stock_idx";
+    private static final String INDEX_SUPPLIER_ID = "stock2go_supplier_id_idx";
+    private static final String INDEX_LIST = "stock2go_list_idx";
+
+    /**
+     * Name of the index on the stock movements of each stock item (added in database version 8)
+     */
+    private static final String INDEX_MOVEMENTS_ITEM = "stock_movements_item_idx";
+
+    /**
+     * Names of the triggers that keep the full text search table in sync (added in database version 3)
+     */
+    private static final String TRIGGER_FTS_INSERT = "stock2go_fts_insert";
+    private static final String TRIGGER_FTS_UPDATE = "stock2go_fts_update";
+    private static final String TRIGGER_FTS_DELETE = "stock2go_fts_delete";
+    private static final String TRIGGER_FTS_SUPPLIER_UPDATE = "suppliers_fts_update";
+
+    /**
+     * Names of the triggers that keep the stock summary up to date (added in database version 4)
+     */
+    private static final String TRIGGER_SUMMARY_INSERT = "stock_summary_insert";
+    private static final String TRIGGER_SUMMARY_UPDATE = "stock_summary_update";
+    private static final String TRIGGER_SUMMARY_DELETE = "stock_summary_delete";
+
+    /**
+     * Possible values for the synchronous level of the database connection that writes.
+     * With write-ahead logging NORMAL is durable against app crashes and only a power loss can
+     * lose the last commits. FULL also syncs the log on every commit, OFF never syncs.
+     */
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * Possible modes for {@link #checkpoint(String)}, see the SQLite documentation of wal_checkpoint.
+     * PASSIVE never waits for readers or writers, FULL waits for writers, RESTART also waits
+     * for readers so the next writer starts the log from the beginning.
+     */
+    public static final String CHECKPOINT_PASSIVE = "PASSIVE";
+    public static final String CHECKPOINT_FULL = "FULL";
+    public static final String CHECKPOINT_RESTART = "RESTART";
+
+    /**
+     * Number of checkpoints {@link #snapshot(File)} tries before it fails, the last one FULL, and the
+     * time between them
+     */
+    private static final int CHECKPOINT_ATTEMPTS = 5;
+    private static final long CHECKPOINT_RETRY_MS = 100;
+
+    /**
+     * Default number of pages in the write-ahead log after which a commit checkpoints automatically
+     */
+    public static final int DEFAULT_WAL_AUTOCHECKPOINT = 1000;
+
+    /**
+     * The synchronous level and the automatic checkpoint size set on every opened database
+     */
+    private final String mSynchronous;
+    private final int mWalAutoCheckpoint;
+
+    /**
+     * The database file, a snapshot copies it and a restore replaces it
+     */
+    private final File mDatabaseFile;
+
+    /**
+     * Guards mCopying: while the database file is copied nothing may checkpoint into it
+     */
+    private final Object mCheckpointLock = new Object();
+    private boolean mCopying;
+
+    /**
+     * Construct a new instance of StockDbHelper, using write-ahead logging so readers like the
+     * CursorLoader of the catalog don't block writers and writers don't block readers.
      *
      * @param context of the app
      */
     public StockDbHelper(Context context) {
+        this(context, true, SYNCHRONOUS_NORMAL, DEFAULT_WAL_AUTOCHECKPOINT);
+    }
+
+    /**
+     * Construct a new instance of StockDbHelper
+     *
+     * @param context           of the app
+     * @param writeAheadLogging true to use the WAL journal mode, false to use the rollback journal
+     * @param synchronous       one of the SYNCHRONOUS_* levels
+     * @param walAutoCheckpoint number of pages in the log after which it is checkpointed
+     *                          automatically, or 0 to only checkpoint with {@link #checkpoint(String)}
+     */
+    public StockDbHelper(Context context, boolean writeAheadLogging, String synchronous,
+                         int walAutoCheckpoint) {
         // database name, cursor factory is set to null to use the default setting, database version number
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mSynchronous = synchronous;
+        mWalAutoCheckpoint = walAutoCheckpoint;
+        mDatabaseFile = context.getDatabasePath(DATABASE_NAME);
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+    }
+
+    /**
+     * Configure the database connection before it is created, upgraded or opened.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // A stock item must refer to an existing supplier
+        db.setForeignKeyConstraintsEnabled(true);
+        db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        if (db.isWriteAheadLoggingEnabled()) {
+            setWalAutoCheckpoint(db, mWalAutoCheckpoint);
+        }
+    }
+
+    /**
+     * Set the automatic checkpoint size of the connection that writes. A query outside a transaction
+     * may run on any connection of the pool, inside one it runs on the connection of the transaction.
+     */
+    private static void setWalAutoCheckpoint(SQLiteDatabase db, int pages) {
+        db.beginTransaction();
+        try {
+            // This pragma returns the new value as a row, so it has to run as a query
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint = " + pages, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copy the changes in the write-ahead log back into the database file.
+     * Does nothing when the database doesn't use write-ahead logging, or while
+     * {@link #snapshot(File)} copies the database file.
+     *
+     * @param mode one of the CHECKPOINT_* modes
+     */
+    public void checkpoint(String mode) {
+        SQLiteDatabase db = getWritableDatabase();
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        synchronized (mCheckpointLock) {
+            if (!mCopying) {
+                runCheckpoint(db, mode);
+            }
+        }
+    }
+
+    /**
+     * Run a checkpoint and return whether it copied the whole log into the database file. It doesn't
+     * when it was busy, or when a reader still needed an older version of a page.
+     */
+    private static boolean runCheckpoint(SQLiteDatabase db, String mode) {
+        // The row holds whether it was busy, the frames in the log and the frames checkpointed
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            return cursor.moveToFirst() && cursor.getInt(0) == 0 && cursor.getInt(1) == cursor.getInt(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copy the whole write-ahead log into the database file. A PASSIVE checkpoint is tried first, a
+     * FULL one waits for the current writer and the readers of older pages, until the busy timeout.
+     */
+    private static void checkpointWholeLog(SQLiteDatabase db) throws IOException {
+        for (int attempt = 1; attempt < CHECKPOINT_ATTEMPTS; attempt++) {
+            if (runCheckpoint(db, CHECKPOINT_PASSIVE)) {
+                return;
+            }
+            SystemClock.sleep(CHECKPOINT_RETRY_MS);
+        }
+        if (!runCheckpoint(db, CHECKPOINT_FULL)) {
+            throw new IOException("The write-ahead log is in use, it can't be checkpointed");
+        }
+    }
+
+    /**
+     * Write a consistent copy of the database to the given file while the app keeps reading and
+     * writing. With SQLite 3.27 or later (Android 11) VACUUM INTO writes the copy from one read
+     * transaction, compacted, on a read-only connection of its own so writers don't wait for it.
+     * Before that every checkpoint is held off, automatic ones included, the whole write-ahead log
+     * is checkpointed and the database file is copied: the file then holds exactly the commits that
+     * were checkpointed, the commits made during the copy only go to the log. Writers only wait for
+     * the checkpoint, and only when it has to be FULL.
+     * Without write-ahead logging the copy is made inside a transaction, which holds off writers.
+     *
+     * @param destination a file that doesn't exist yet, or is replaced
+     */
+    public void snapshot(File destination) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        if (!destination.delete() && destination.exists()) {
+            throw new IOException("Can't replace " + destination);
+        }
+        if (sqliteVersionAtLeast(db, 3, 27)) {
+            // On the connections of the helper VACUUM INTO would hold the one every write needs
+            SQLiteDatabase reader = SQLiteDatabase.openDatabase(mDatabaseFile.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                reader.execSQL("VACUUM INTO ?", new Object[]{destination.getPath()});
+            } finally {
+                reader.close();
+            }
+            return;
+        }
+        if (!db.isWriteAheadLoggingEnabled()) {
+            db.beginTransaction();
+            try {
+                copyFile(mDatabaseFile, destination);
+            } finally {
+                db.endTransaction();
+            }
+            return;
+        }
+        synchronized (mCheckpointLock) {
+            setWalAutoCheckpoint(db, 0);
+            mCopying = true;
+        }
+        try {
+            checkpointWholeLog(db);
+            copyFile(mDatabaseFile, destination);
+        } finally {
+            synchronized (mCheckpointLock) {
+                mCopying = false;
+                setWalAutoCheckpoint(db, mWalAutoCheckpoint);
+            }
+        }
+    }
+
+    /**
+     * Returns a file in the directory of the database, the file a restored database is written to
+     * before {@link #replaceDatabase(File)} moves it into place
+     */
+    public File getRestoreFile() {
+        return new File(mDatabaseFile.getPath() + "-restore");
+    }
+
+    /**
+     * Close the database and replace it by the given file in one rename, so a crash leaves either
+     * the old or the new database. The next access opens the new database and migrates it when it
+     * comes from an older version of the app. The caller makes sure nothing uses the database
+     * meanwhile, {@link StockProvider} holds its database lock exclusively.
+     *
+     * @param verified a database file in the same directory, ex: {@link #getRestoreFile()}
+     */
+    public synchronized void replaceDatabase(File verified) throws IOException {
+        // Closing the last connection checkpoints the log into the old file and deletes it
+        close();
+        for (String suffix : new String[]{"-wal", "-shm", "-journal"}) {
+            File leftOver = new File(mDatabaseFile.getPath() + suffix);
+            if (!leftOver.delete() && leftOver.exists()) {
+                throw new IOException("Can't delete " + leftOver);
+            }
+        }
+        if (!verified.renameTo(mDatabaseFile)) {
+            throw new IOException("Can't move " + verified + " to " + mDatabaseFile);
+        }
+    }
+
+    /**
+     * Returns the database version the app migrates to, a restored database can't be newer
+     */
+    public static int getDatabaseVersion() {
+        return DATABASE_VERSION;
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, count);
+                }
+                output.flush();
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
     }
 
     /**
@@ -43,6 +343,7 @@ public class StockDbHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         // CREATE TABLE stock2go (_id, INTEGER PRIMARY KEY (add the AUTOINCREMENT to automatically increment new unique _id numbers)
         // Create a String that contains the SQL statement to create the stock2go table
+        // This is the schema of database version 1, the migrations below bring it up to date.
         String SQL_CREATE_STOCK_TABLE = "CREATE TABLE " + StockItemEntry.TABLE_NAME + "("
                 + StockItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
                 + StockItemEntry.COLUMN_NAME + " TEXT NOT NULL, "
@@ -57,17 +358,382 @@ public class StockDbHelper extends SQLiteOpenHelper {
 
         // To execute the SQL statement
         db.execSQL(SQL_CREATE_STOCK_TABLE);
+
+        // A new database runs through the same migrations as an existing one
+        migrate(db, 1, DATABASE_VERSION);
     }
 
+    /**
+     * Upgrade the database step by step, so no stock data is lost.
+     * SQLiteOpenHelper runs this inside a transaction, if one step fails nothing is changed.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still @ version 1, so command below is not needed yet
-        String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + StockItemEntry.TABLE_NAME;
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Apply the migration to every database version after fromVersion, up to and including toVersion.
+     * When the schema changes, increment DATABASE_VERSION and add a case for the new version here.
+     * Never change a migration that has been released, add a new one instead.
+     */
+    private void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (int version = fromVersion + 1; version <= toVersion; version++) {
+            switch (version) {
+                case 2:
+                    migrateToVersion2(db);
+                    break;
+                case 3:
+                    migrateToVersion3(db);
+                    break;
+                case 4:
+                    migrateToVersion4(db);
+                    break;
+                case 5:
+                    migrateToVersion5(db);
+                    break;
+                case 6:
+                    migrateToVersion6(db);
+                    break;
+                case 7:
+                    migrateToVersion7(db);
+                    break;
+                case 8:
+                    migrateToVersion8(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No migration to database version " + version);
+            }
+        }
+    }
+
+    /**
+     * Version 2: indexes for filtering on section, sorting on name (case insensitive),
+     * looking up the items of a supplier and finding items with a low stock quantity.
+     */
+    private void migrateToVersion2(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_SECTION + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_SECTION + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_NAME + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_NAME_SUPPLIER + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_NAME_SUPPLIER + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_STOCK_QTY + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_STOCK_QTY + ");");
+    }
+
+    /**
+     * Version 3: a full text search table with the name, brand and supplier name of every stock item.
+     * The docid of a row in the search table is the _ID of the stock item. Triggers keep it in sync,
+     * the update trigger only fires when one of the searchable columns changes, not for quantities.
+     * The prefix indexes make prefix queries of 1 to 3 characters as fast as whole word queries.
+     */
+    private void migrateToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + StockItemEntry.FTS_TABLE_NAME + " USING fts4("
+                + StockItemEntry.COLUMN_NAME + ", "
+                + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + ", "
+                + "prefix=\"1,2,3\");");
+
+        db.execSQL("INSERT INTO " + StockItemEntry.FTS_TABLE_NAME + "(docid, "
+                + StockItemEntry.COLUMN_NAME + ", " + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + ") SELECT "
+                + StockItemEntry._ID + ", " + StockItemEntry.COLUMN_NAME + ", "
+                + StockItemEntry.COLUMN_BRAND + ", " + StockItemEntry.COLUMN_NAME_SUPPLIER
+                + " FROM " + StockItemEntry.TABLE_NAME + ";");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_INSERT + " AFTER INSERT ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + StockItemEntry.FTS_TABLE_NAME + "(docid, "
+                + StockItemEntry.COLUMN_NAME + ", " + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + ") VALUES (new." + StockItemEntry._ID + ", new."
+                + StockItemEntry.COLUMN_NAME + ", new." + StockItemEntry.COLUMN_BRAND + ", new."
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_UPDATE + " AFTER UPDATE OF "
+                + StockItemEntry.COLUMN_NAME + ", " + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + " ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StockItemEntry.FTS_TABLE_NAME + " SET "
+                + StockItemEntry.COLUMN_NAME + " = new." + StockItemEntry.COLUMN_NAME + ", "
+                + StockItemEntry.COLUMN_BRAND + " = new." + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + " = new." + StockItemEntry.COLUMN_NAME_SUPPLIER
+                + " WHERE docid = old." + StockItemEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_DELETE + " AFTER DELETE ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + StockItemEntry.FTS_TABLE_NAME
+                + " WHERE docid = old." + StockItemEntry._ID + "; END;");
+    }
+
+    /**
+     * Version 4: the stock summary table with the number of items, the units on hand and the stock value
+     * (price x quantity) of every section. It is filled from the existing stock items once, and from then
+     * on triggers add the new values and subtract the old values of every changed stock item.
+     * The update trigger only fires when the section, quantity or price changes.
+     */
+    private void migrateToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StockSummaryEntry.TABLE_NAME + "("
+                + StockSummaryEntry._ID + " INTEGER PRIMARY KEY, "
+                + StockSummaryEntry.COLUMN_ITEM_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + StockSummaryEntry.COLUMN_UNITS_ON_HAND + " INTEGER NOT NULL DEFAULT 0, "
+                + StockSummaryEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL DEFAULT 0);");
 
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        // One row for every section, so the dashboard also shows the empty ones
+        for (int section = StockItemEntry.SECTION_UNKNOWN; section <= StockItemEntry.SECTION_VEGETABLES; section++) {
+            db.execSQL("INSERT INTO " + StockSummaryEntry.TABLE_NAME + "(" + StockSummaryEntry._ID
+                    + ") VALUES (" + section + ");");
+        }
+        db.execSQL("INSERT OR REPLACE INTO " + StockSummaryEntry.TABLE_NAME + "("
+                + StockSummaryEntry._ID + ", " + StockSummaryEntry.COLUMN_ITEM_COUNT + ", "
+                + StockSummaryEntry.COLUMN_UNITS_ON_HAND + ", " + StockSummaryEntry.COLUMN_STOCK_VALUE
+                + ") SELECT " + StockItemEntry.COLUMN_SECTION + ", COUNT(*), "
+                + "SUM(" + StockItemEntry.COLUMN_STOCK_QTY + "), "
+                + "SUM(" + StockItemEntry.COLUMN_PRICE + " * " + StockItemEntry.COLUMN_STOCK_QTY + ")"
+                + " FROM " + StockItemEntry.TABLE_NAME
+                + " GROUP BY " + StockItemEntry.COLUMN_SECTION + ";");
 
+        createSummaryTriggers(db);
     }
+
+    /**
+     * Create the triggers that add the new values and subtract the old values of every inserted,
+     * updated or deleted stock item to and from the stock summary
+     */
+    private static void createSummaryTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SUMMARY_INSERT + " AFTER INSERT ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN " + addToSummary("new", "+") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SUMMARY_UPDATE + " AFTER UPDATE OF "
+                + StockItemEntry.COLUMN_SECTION + ", " + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                + StockItemEntry.COLUMN_PRICE + " ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN " + addToSummary("old", "-") + " " + addToSummary("new", "+") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SUMMARY_DELETE + " AFTER DELETE ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN " + addToSummary("old", "-") + " END;");
+    }
+
+    /**
+     * Version 5: the reorder level of every stock item, and an index for the items below it.
+     * The index is partial: it only holds the items that have to be reordered, in the order of the
+     * low stock query (supplier name, name). SQLite before 3.8.0 (Android before 5.0) has no partial
+     * indexes, there a covering index on the supplier name, quantity and reorder level is used
+     * instead, so the query reads the small index instead of the stock2go table.
+     */
+    private void migrateToVersion5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + StockItemEntry.TABLE_NAME + " ADD COLUMN "
+                + StockItemEntry.COLUMN_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT 0;");
+        createLowStockIndex(db, StockItemEntry.COLUMN_NAME_SUPPLIER);
+    }
+
+    /**
+     * Create the index for the stock items that are below their reorder level
+     *
+     * @param supplierColumn the column of the stock2go table that identifies the supplier
+     */
+    private static void createLowStockIndex(SQLiteDatabase db, String supplierColumn) {
+        if (supportsPartialIndexes(db)) {
+            db.execSQL("CREATE INDEX " + INDEX_LOW_STOCK + " ON " + StockItemEntry.TABLE_NAME + "("
+                    + supplierColumn + ", " + StockItemEntry.COLUMN_NAME + ")"
+                    + " WHERE " + StockItemEntry.LOW_STOCK_SELECTION + ";");
+        } else {
+            db.execSQL("CREATE INDEX " + INDEX_LOW_STOCK + " ON " + StockItemEntry.TABLE_NAME + "("
+                    + supplierColumn + ", " + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                    + StockItemEntry.COLUMN_REORDER_LEVEL + ");");
+        }
+    }
+
+    /**
+     * Version 6: the suppliers move to their own table, the stock items refer to them by _ID.
+     * Every distinct supplier name becomes one supplier, with the phone and e-mail of its most recently
+     * added stock item. Items without a supplier name share a supplier with an empty name.
+     * SQLite can't drop columns, so the stock2go table is rebuilt with the same _IDs, and its indexes
+     * and triggers are created again. The full text search and summary tables keep their rows.
+     * The view joins the supplier columns back in, under their old names.
+     */
+    private void migrateToVersion6(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SupplierEntry.TABLE_NAME + "("
+                + SupplierEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SupplierEntry.COLUMN_NAME + " TEXT NOT NULL UNIQUE COLLATE NOCASE, "
+                + SupplierEntry.COLUMN_PHONE + " TEXT NOT NULL, "
+                + SupplierEntry.COLUMN_EMAIL + " TEXT NOT NULL);");
+
+        String supplierName = "IFNULL(" + StockItemEntry.COLUMN_NAME_SUPPLIER + ", '')";
+        db.execSQL("INSERT INTO " + SupplierEntry.TABLE_NAME + "(" + SupplierEntry.COLUMN_NAME + ", "
+                + SupplierEntry.COLUMN_PHONE + ", " + SupplierEntry.COLUMN_EMAIL + ") SELECT "
+                + supplierName + ", " + StockItemEntry.COLUMN_PHONE_SUPPLIER + ", "
+                + StockItemEntry.COLUMN_EMAIL_SUPPLIER + " FROM " + StockItemEntry.TABLE_NAME
+                + " WHERE " + StockItemEntry._ID + " IN (SELECT MAX(" + StockItemEntry._ID + ") FROM "
+                + StockItemEntry.TABLE_NAME + " GROUP BY " + supplierName + " COLLATE NOCASE);");
+
+        // Keep the AUTOINCREMENT counter, so the _IDs of deleted stock items aren't handed out again
+        long lastId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence"
+                + " WHERE name = ?", new String[]{StockItemEntry.TABLE_NAME});
+
+        String newTable = StockItemEntry.TABLE_NAME + "_new";
+        db.execSQL("CREATE TABLE " + newTable + "("
+                + StockItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + StockItemEntry.COLUMN_NAME + " TEXT NOT NULL, "
+                + StockItemEntry.COLUMN_BRAND + " TEXT NOT NULL, "
+                + StockItemEntry.COLUMN_STOCK_QTY + " INTEGER NOT NULL DEFAULT 0, "
+                + StockItemEntry.COLUMN_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES "
+                + SupplierEntry.TABLE_NAME + "(" + SupplierEntry._ID + "), "
+                + StockItemEntry.COLUMN_SECTION + " INTEGER NOT NULL, "
+                + StockItemEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+                + StockItemEntry.COLUMN_IMAGE + " TEXT NOT NULL, "
+                + StockItemEntry.COLUMN_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT 0);");
+
+        String columns = StockItemEntry._ID + ", " + StockItemEntry.COLUMN_NAME + ", "
+                + StockItemEntry.COLUMN_BRAND + ", " + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                + StockItemEntry.COLUMN_SECTION + ", " + StockItemEntry.COLUMN_PRICE + ", "
+                + StockItemEntry.COLUMN_IMAGE + ", " + StockItemEntry.COLUMN_REORDER_LEVEL;
+        db.execSQL("INSERT INTO " + newTable + "(" + columns + ", " + StockItemEntry.COLUMN_SUPPLIER_ID
+                + ") SELECT " + columns + ", (SELECT " + SupplierEntry._ID + " FROM "
+                + SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry.COLUMN_NAME + " = " + supplierName
+                + ") FROM " + StockItemEntry.TABLE_NAME + ";");
+
+        db.execSQL("DROP TABLE " + StockItemEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + StockItemEntry.TABLE_NAME + ";");
+        if (lastId > 0) {
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name = ?", new Object[]{StockItemEntry.TABLE_NAME});
+            db.execSQL("INSERT INTO sqlite_sequence(name, seq) VALUES (?, ?)",
+                    new Object[]{StockItemEntry.TABLE_NAME, lastId});
+        }
+
+        // The indexes of version 2 and 5, the supplier name index is replaced by the foreign key index
+        db.execSQL("CREATE INDEX " + INDEX_SECTION + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_SECTION + ");");
+        db.execSQL("CREATE INDEX " + INDEX_NAME + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX " + INDEX_SUPPLIER_ID + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_SUPPLIER_ID + ");");
+        db.execSQL("CREATE INDEX " + INDEX_STOCK_QTY + " ON " + StockItemEntry.TABLE_NAME
+                + "(" + StockItemEntry.COLUMN_STOCK_QTY + ");");
+        createLowStockIndex(db, StockItemEntry.COLUMN_SUPPLIER_ID);
+
+        // The full text search triggers of version 3, reading the supplier name from the suppliers table
+        String supplierNameOf = "(SELECT " + SupplierEntry.COLUMN_NAME + " FROM " + SupplierEntry.TABLE_NAME
+                + " WHERE " + SupplierEntry._ID + " = new." + StockItemEntry.COLUMN_SUPPLIER_ID + ")";
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_INSERT + " AFTER INSERT ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + StockItemEntry.FTS_TABLE_NAME + "(docid, "
+                + StockItemEntry.COLUMN_NAME + ", " + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + ") VALUES (new." + StockItemEntry._ID + ", new."
+                + StockItemEntry.COLUMN_NAME + ", new." + StockItemEntry.COLUMN_BRAND + ", "
+                + supplierNameOf + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_UPDATE + " AFTER UPDATE OF "
+                + StockItemEntry.COLUMN_NAME + ", " + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_SUPPLIER_ID + " ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StockItemEntry.FTS_TABLE_NAME + " SET "
+                + StockItemEntry.COLUMN_NAME + " = new." + StockItemEntry.COLUMN_NAME + ", "
+                + StockItemEntry.COLUMN_BRAND + " = new." + StockItemEntry.COLUMN_BRAND + ", "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + " = " + supplierNameOf
+                + " WHERE docid = old." + StockItemEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_DELETE + " AFTER DELETE ON " + StockItemEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + StockItemEntry.FTS_TABLE_NAME
+                + " WHERE docid = old." + StockItemEntry._ID + "; END;");
+
+        // A renamed supplier is found under its new name
+        db.execSQL("CREATE TRIGGER " + TRIGGER_FTS_SUPPLIER_UPDATE + " AFTER UPDATE OF "
+                + SupplierEntry.COLUMN_NAME + " ON " + SupplierEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StockItemEntry.FTS_TABLE_NAME + " SET "
+                + StockItemEntry.COLUMN_NAME_SUPPLIER + " = new." + SupplierEntry.COLUMN_NAME
+                + " WHERE docid IN (SELECT " + StockItemEntry._ID + " FROM " + StockItemEntry.TABLE_NAME
+                + " WHERE " + StockItemEntry.COLUMN_SUPPLIER_ID + " = new." + SupplierEntry._ID + "); END;");
+
+        createSummaryTriggers(db);
+
+        db.execSQL("CREATE VIEW " + StockItemEntry.VIEW_WITH_SUPPLIER + " AS SELECT "
+                + StockItemEntry.TABLE_NAME + ".*, "
+                + SupplierEntry.TABLE_NAME + "." + SupplierEntry.COLUMN_NAME + " AS " + StockItemEntry.COLUMN_NAME_SUPPLIER + ", "
+                + SupplierEntry.TABLE_NAME + "." + SupplierEntry.COLUMN_PHONE + " AS " + StockItemEntry.COLUMN_PHONE_SUPPLIER + ", "
+                + SupplierEntry.TABLE_NAME + "." + SupplierEntry.COLUMN_EMAIL + " AS " + StockItemEntry.COLUMN_EMAIL_SUPPLIER
+                + " FROM " + StockItemEntry.TABLE_NAME + " LEFT JOIN " + SupplierEntry.TABLE_NAME
+                + " ON " + SupplierEntry.TABLE_NAME + "." + SupplierEntry._ID + " = "
+                + StockItemEntry.TABLE_NAME + "." + StockItemEntry.COLUMN_SUPPLIER_ID + ";");
+    }
+
+    /**
+     * Version 7: a covering index for the catalog list. It is sorted on the name (case insensitive)
+     * and holds the other columns of StockItemEntry#LIST_PROJECTION; the _ID is the rowid, which every
+     * index holds already. The list query and its page seeks read only the index, sorting only the
+     * rows with equal names on _ID. It starts with the name, so it replaces the name index of version 2.
+     */
+    private void migrateToVersion7(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_NAME + ";");
+        db.execSQL("CREATE INDEX " + INDEX_LIST + " ON " + StockItemEntry.TABLE_NAME + "("
+                + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE, "
+                + StockItemEntry.COLUMN_PRICE + ", " + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                + StockItemEntry.COLUMN_IMAGE + ");");
+    }
+
+    /**
+     * Version 8: the stock movements ledger and its snapshots. The provider adds a movement for every
+     * change of a stock quantity, the index serves the history of a stock item in time order.
+     * The snapshots are keyed on stock item, day and reason, so the history of a stock item is a
+     * range read on both tables. Every existing stock item starts with one movement that received
+     * its current quantity, so the deltas of a stock item always add up to its quantity.
+     */
+    private void migrateToVersion8(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StockMovementEntry.TABLE_NAME + "("
+                + StockMovementEntry._ID + " INTEGER PRIMARY KEY, "
+                + StockMovementEntry.COLUMN_ITEM_ID + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_REASON + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + INDEX_MOVEMENTS_ITEM + " ON " + StockMovementEntry.TABLE_NAME + "("
+                + StockMovementEntry.COLUMN_ITEM_ID + ", " + StockMovementEntry.COLUMN_TIMESTAMP + ");");
+
+        db.execSQL("CREATE TABLE " + StockMovementEntry.SNAPSHOT_TABLE_NAME + "("
+                + StockMovementEntry.COLUMN_ITEM_ID + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_DAY + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_REASON + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + StockMovementEntry.COLUMN_COUNT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + StockMovementEntry.COLUMN_ITEM_ID + ", " + StockMovementEntry.COLUMN_DAY
+                + ", " + StockMovementEntry.COLUMN_REASON + "));");
+
+        db.execSQL("INSERT INTO " + StockMovementEntry.TABLE_NAME + "("
+                + StockMovementEntry.COLUMN_ITEM_ID + ", " + StockMovementEntry.COLUMN_DELTA + ", "
+                + StockMovementEntry.COLUMN_REASON + ", " + StockMovementEntry.COLUMN_TIMESTAMP + ") SELECT "
+                + StockItemEntry._ID + ", " + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                + StockMovementEntry.REASON_RECEIVED + ", ? FROM " + StockItemEntry.TABLE_NAME
+                + " WHERE " + StockItemEntry.COLUMN_STOCK_QTY + " != 0;",
+                new Object[]{System.currentTimeMillis()});
+    }
+
+    /**
+     * Returns whether the SQLite library is version 3.8.0 or later, which supports partial indexes
+     */
+    private static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        return sqliteVersionAtLeast(db, 3, 8);
+    }
+
+    /**
+     * Returns whether the SQLite library is the given major.minor version or later
+     */
+    private static boolean sqliteVersionAtLeast(SQLiteDatabase db, int major, int minor) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+        int libraryMajor = Integer.parseInt(version[0]);
+        int libraryMinor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return libraryMajor > major || (libraryMajor == major && libraryMinor >= minor);
+    }
+
+    /**
+     * Returns the trigger statements that add (+) or subtract (-) the old or new row of a stock item
+     * to or from the summary of its section. The summary row is created first if it doesn't exist yet.
+     */
+    private static String addToSummary(String row, String sign) {
+        return "INSERT OR IGNORE INTO " + StockSummaryEntry.TABLE_NAME + "(" + StockSummaryEntry._ID
+                + ") VALUES (" + row + "." + StockItemEntry.COLUMN_SECTION + "); "
+                + "UPDATE " + StockSummaryEntry.TABLE_NAME + " SET "
+                + StockSummaryEntry.COLUMN_ITEM_COUNT + " = " + StockSummaryEntry.COLUMN_ITEM_COUNT + " " + sign + " 1, "
+                + StockSummaryEntry.COLUMN_UNITS_ON_HAND + " = " + StockSummaryEntry.COLUMN_UNITS_ON_HAND
+                + " " + sign + " " + row + "." + StockItemEntry.COLUMN_STOCK_QTY + ", "
+                + StockSummaryEntry.COLUMN_STOCK_VALUE + " = " + StockSummaryEntry.COLUMN_STOCK_VALUE
+                + " " + sign + " " + row + "." + StockItemEntry.COLUMN_PRICE + " * " + row + "."
+                + StockItemEntry.COLUMN_STOCK_QTY
+                + " WHERE " + StockSummaryEntry._ID + " = " + row + "." + StockItemEntry.COLUMN_SECTION + ";";
+    }
+
 //    This method should be called into action when downgrading the database version
 //    @Override
 //    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
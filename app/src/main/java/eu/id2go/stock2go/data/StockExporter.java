@@ -0,0 +1,405 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+/**
+ * Exports the stock items to a document, ex: one created with the Storage Access Framework, as CSV
+ * or as a JSON array of objects, optionally gzip compressed. The stock items are read one page of
+ * PAGE_ROWS rows at a time, seeking past the last row of the previous page like the catalog list
+ * does, and every row is written to the stream right away. So the memory used doesn't grow with
+ * the number of stock items. A CSV export has the column names in its first row and can be
+ * imported again with {@link StockCsvImporter}.
+ */
+public final class StockExporter {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockExporter.class.getSimpleName();
+
+    /**
+     * Possible formats of an export
+     */
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON = 1;
+
+    /**
+     * Pass as the section to export the stock items of every section
+     */
+    public static final int ALL_SECTIONS = -1;
+
+    /**
+     * Number of stock items read in one query
+     */
+    private static final int PAGE_ROWS = 500;
+
+    /**
+     * Size of the buffer between the characters and the (compressed) document
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The exported columns, the names of the CSV columns and JSON fields
+     */
+    private static final String[] COLUMNS = {
+            StockItemEntry._ID,
+            StockItemEntry.COLUMN_NAME,
+            StockItemEntry.COLUMN_BRAND,
+            StockItemEntry.COLUMN_STOCK_QTY,
+            StockItemEntry.COLUMN_SECTION,
+            StockItemEntry.COLUMN_PRICE,
+            StockItemEntry.COLUMN_REORDER_LEVEL,
+            StockItemEntry.COLUMN_NAME_SUPPLIER,
+            StockItemEntry.COLUMN_PHONE_SUPPLIER,
+            StockItemEntry.COLUMN_EMAIL_SUPPLIER,
+            StockItemEntry.COLUMN_IMAGE
+    };
+
+    /**
+     * Receives the progress and the outcome of the export on the main thread
+     */
+    public interface Listener {
+        /**
+         * Another page of stock items has been written
+         */
+        void onExportProgress(long rowsWritten);
+
+        /**
+         * Every stock item has been written and the document is complete
+         */
+        void onExportFinished(long rowsWritten);
+
+        /**
+         * The document could not be written, it is incomplete
+         */
+        void onExportFailed(long rowsWritten);
+    }
+
+    private static StockExporter sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    /**
+     * One document is written at a time
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG);
+        }
+    });
+
+    /**
+     * Returns the exporter of the app
+     */
+    public static synchronized StockExporter get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockExporter(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * An exporter that reads the stock items through the given resolver, ex: one with a test provider
+     */
+    StockExporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Call from the main thread
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Write the stock items to the document at the given URI on a background thread. Cancelling
+     * the returned Future stops the export after the page that is being written.
+     *
+     * @param destination the document to write, its content is replaced
+     * @param format      {@link #FORMAT_CSV} or {@link #FORMAT_JSON}, UTF-8 encoded
+     * @param gzip        whether to compress the document with gzip
+     * @param section     only export the stock items of this section, or {@link #ALL_SECTIONS}
+     */
+    public Future<?> exportAsync(final Uri destination, final int format, final boolean gzip, final int section) {
+        if (format != FORMAT_CSV && format != FORMAT_JSON) {
+            throw new IllegalArgumentException("Unknown export format " + format);
+        }
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                exportDocument(destination, format, gzip, section);
+            }
+        });
+    }
+
+    /**
+     * Write the document. Runs on the export thread.
+     */
+    private void exportDocument(Uri destination, int format, boolean gzip, int section) {
+        long start = SystemClock.elapsedRealtime();
+        long[] rowsWritten = new long[1];
+        RowWriter writer = null;
+        try {
+            OutputStream output = mResolver.openOutputStream(destination, "w");
+            if (output == null) {
+                throw new IOException("Can't open " + destination);
+            }
+            if (gzip) {
+                output = new GZIPOutputStream(output, BUFFER_SIZE);
+            }
+            Writer characters = new BufferedWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")),
+                    BUFFER_SIZE);
+            writer = format == FORMAT_JSON ? new JsonRowWriter(characters) : new CsvRowWriter(characters);
+            writer.begin();
+            writePages(writer, section, rowsWritten);
+            if (Thread.currentThread().isInterrupted()) {
+                // A cancelled export isn't reported
+                return;
+            }
+            writer.end();
+            // Closing finishes the gzip stream, it can fail like any write
+            writer.close();
+            writer = null;
+        } catch (IOException | RuntimeException e) {
+            // ex: the document was deleted, the storage is full or the provider failed to read
+            Log.e(LOG_TAG, "Failed to export to " + destination + " after " + rowsWritten[0] + " rows", e);
+            postOutcome(rowsWritten[0], false);
+            return;
+        } finally {
+            closeQuietly(writer);
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "Exported " + rowsWritten[0] + " rows in " + elapsed + " ms, "
+                + rowsWritten[0] * 1000 / elapsed + " rows/s" + (gzip ? " (gzip)" : ""));
+        postOutcome(rowsWritten[0], true);
+    }
+
+    /**
+     * Read the stock items one page at a time and write every row
+     */
+    private void writePages(RowWriter writer, int section, long[] rowsWritten) throws IOException {
+        String selection = section == ALL_SECTIONS ? null : StockItemEntry.COLUMN_SECTION + "=?";
+        String[] selectionArgs = section == ALL_SECTIONS ? null : new String[]{String.valueOf(section)};
+        String afterName = null;
+        long afterId = 0;
+        int[] columnIndices = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            Cursor cursor = mResolver.query(StockItemEntry.buildPageUri(PAGE_ROWS, afterName, afterId),
+                    COLUMNS, selection, selectionArgs, null);
+            if (cursor == null) {
+                throw new IOException("The stock items can't be read");
+            }
+            int rows;
+            try {
+                if (columnIndices == null) {
+                    columnIndices = new int[COLUMNS.length];
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        columnIndices[i] = cursor.getColumnIndexOrThrow(COLUMNS[i]);
+                    }
+                }
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    writer.writeRow(cursor, columnIndices);
+                }
+                // The next page starts after the name and _ID of the last row, the first two columns
+                if (cursor.moveToLast()) {
+                    afterName = cursor.getString(columnIndices[1]);
+                    afterId = cursor.getLong(columnIndices[0]);
+                }
+            } finally {
+                cursor.close();
+            }
+            rowsWritten[0] += rows;
+            postProgress(rowsWritten[0]);
+            if (rows < PAGE_ROWS) {
+                return;
+            }
+        }
+    }
+
+    private void postProgress(final long rowsWritten) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    listener.onExportProgress(rowsWritten);
+                }
+            }
+        });
+    }
+
+    private void postOutcome(final long rowsWritten, final boolean finished) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<>(mListeners)) {
+                    if (finished) {
+                        listener.onExportFinished(rowsWritten);
+                    } else {
+                        listener.onExportFailed(rowsWritten);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Returns whether the exported column holds a number
+     */
+    private static boolean isIntegerColumn(String column) {
+        return StockItemEntry._ID.equals(column)
+                || StockItemEntry.COLUMN_STOCK_QTY.equals(column)
+                || StockItemEntry.COLUMN_SECTION.equals(column)
+                || StockItemEntry.COLUMN_PRICE.equals(column)
+                || StockItemEntry.COLUMN_REORDER_LEVEL.equals(column);
+    }
+
+    /**
+     * Writes the rows of the stock items in one format
+     */
+    private interface RowWriter extends Closeable {
+        void begin() throws IOException;
+
+        /**
+         * Write the row the cursor is on
+         *
+         * @param columnIndices the index in the cursor of every exported column
+         */
+        void writeRow(Cursor cursor, int[] columnIndices) throws IOException;
+
+        void end() throws IOException;
+    }
+
+    /**
+     * The column names, then one record per stock item
+     */
+    private static final class CsvRowWriter implements RowWriter {
+
+        private final CsvWriter mCsv;
+
+        CsvRowWriter(Writer writer) {
+            mCsv = new CsvWriter(writer, ',');
+        }
+
+        @Override
+        public void begin() throws IOException {
+            for (String column : COLUMNS) {
+                mCsv.writeField(column);
+            }
+            mCsv.endRecord();
+        }
+
+        @Override
+        public void writeRow(Cursor cursor, int[] columnIndices) throws IOException {
+            for (int columnIndex : columnIndices) {
+                mCsv.writeField(cursor.getString(columnIndex));
+            }
+            mCsv.endRecord();
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            mCsv.close();
+        }
+    }
+
+    /**
+     * An array with one object per stock item, numbers are written as numbers
+     */
+    private static final class JsonRowWriter implements RowWriter {
+
+        private final JsonWriter mJson;
+        private final boolean[] mIntegerColumns = new boolean[COLUMNS.length];
+
+        JsonRowWriter(Writer writer) {
+            mJson = new JsonWriter(writer);
+            for (int i = 0; i < COLUMNS.length; i++) {
+                mIntegerColumns[i] = isIntegerColumn(COLUMNS[i]);
+            }
+        }
+
+        @Override
+        public void begin() throws IOException {
+            mJson.beginArray();
+        }
+
+        @Override
+        public void writeRow(Cursor cursor, int[] columnIndices) throws IOException {
+            mJson.beginObject();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                mJson.name(COLUMNS[i]);
+                if (cursor.isNull(columnIndices[i])) {
+                    mJson.nullValue();
+                } else if (mIntegerColumns[i]) {
+                    mJson.value(cursor.getLong(columnIndices[i]));
+                } else {
+                    mJson.value(cursor.getString(columnIndices[i]));
+                }
+            }
+            mJson.endObject();
+        }
+
+        @Override
+        public void end() throws IOException {
+            mJson.endArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mJson.close();
+        }
+    }
+}
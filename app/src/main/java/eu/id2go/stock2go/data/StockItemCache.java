@@ -0,0 +1,255 @@
+package eu.id2go.stock2go.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LongSparseArray;
+
+/**
+ * Read-through cache of whole stock item rows, with their supplier columns, keyed by _ID.
+ * The least recently used row is evicted when the cache is full.
+ * <p>
+ * The provider invalidates a row when it changes it, or every row when it changes a supplier or
+ * rows by selection. While a write is open (between {@link #beginWrite()} and {@link #endWrite()})
+ * no row is added, and a row loaded from the database is only added when nothing was invalidated
+ * or written since the load began, so a row read before a commit never outlives it.
+ */
+final class StockItemCache {
+
+    private final int mMaxEntries;
+
+    /**
+     * The rows by _ID, and the same rows from the most to the least recently used
+     */
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<>();
+    private Entry mHead;
+    private Entry mTail;
+
+    /**
+     * Changes with every invalidation and every write, a load only adds its row when it didn't
+     */
+    private long mGeneration;
+    private int mOpenWrites;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * @param maxEntries the number of rows kept, 0 turns the cache off
+     */
+    StockItemCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }
+
+    boolean isEnabled() {
+        return mMaxEntries > 0;
+    }
+
+    /**
+     * Returns a cursor with the given columns of the cached stock item, or null when the stock item
+     * isn't cached or a column isn't one of its columns, ex: an expression
+     *
+     * @param projection the columns, null for all
+     */
+    synchronized Cursor query(long id, String[] projection) {
+        Entry entry = mEntries.get(id);
+        Cursor cursor = entry == null ? null : project(entry.mColumns, entry.mValues, projection);
+        if (cursor == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        moveToHead(entry);
+        return cursor;
+    }
+
+    /**
+     * Call before reading a stock item from the database, pass the result to {@link #put}
+     */
+    synchronized long beginLoad() {
+        return mGeneration;
+    }
+
+    /**
+     * Add the stock item read from the database, unless it may be outdated already
+     *
+     * @param generation returned by {@link #beginLoad()} before the row was read
+     */
+    synchronized void put(long id, String[] columns, Object[] values, long generation) {
+        if (!isEnabled() || mOpenWrites != 0 || generation != mGeneration) {
+            return;
+        }
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            unlink(entry);
+        }
+        entry = new Entry(id, columns, values);
+        mEntries.put(id, entry);
+        moveToHead(entry);
+        while (mEntries.size() > mMaxEntries) {
+            Entry eldest = mTail;
+            unlink(eldest);
+            mEntries.remove(eldest.mId);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Call before the provider writes stock items or suppliers, and {@link #endWrite()} after the
+     * write is committed or rolled back. Writes may nest and run on several threads.
+     */
+    synchronized void beginWrite() {
+        mOpenWrites++;
+        mGeneration++;
+    }
+
+    synchronized void endWrite() {
+        mOpenWrites--;
+        mGeneration++;
+    }
+
+    /**
+     * Drop the stock item with the given _ID
+     */
+    synchronized void invalidate(long id) {
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            unlink(entry);
+            mEntries.remove(id);
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Drop every stock item
+     */
+    synchronized void invalidateAll() {
+        mEntries.clear();
+        mHead = null;
+        mTail = null;
+        mGeneration++;
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the values of the row the cursor is on, with their SQLite types
+     */
+    static Object[] readRow(Cursor cursor) {
+        Object[] values = new Object[cursor.getColumnCount()];
+        for (int i = 0; i < values.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    values[i] = null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns a cursor with one row holding the given columns of the values, or null when a column
+     * isn't one of the columns of the values
+     *
+     * @param projection the columns, null for all
+     */
+    static Cursor project(String[] columns, Object[] values, String[] projection) {
+        if (projection == null) {
+            MatrixCursor cursor = new MatrixCursor(columns, 1);
+            cursor.addRow(values);
+            return cursor;
+        }
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            int index = indexOf(columns, projection[i]);
+            if (index < 0) {
+                return null;
+            }
+            row[i] = values[index];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void moveToHead(Entry entry) {
+        if (entry == mHead) {
+            return;
+        }
+        unlink(entry);
+        entry.mNext = mHead;
+        if (mHead != null) {
+            mHead.mPrevious = entry;
+        }
+        mHead = entry;
+        if (mTail == null) {
+            mTail = entry;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.mPrevious != null) {
+            entry.mPrevious.mNext = entry.mNext;
+        } else if (mHead == entry) {
+            mHead = entry.mNext;
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrevious = entry.mPrevious;
+        } else if (mTail == entry) {
+            mTail = entry.mPrevious;
+        }
+        entry.mPrevious = null;
+        entry.mNext = null;
+    }
+
+    /**
+     * A cached row, linked into the recently used order
+     */
+    private static final class Entry {
+        final long mId;
+        final String[] mColumns;
+        final Object[] mValues;
+        Entry mPrevious;
+        Entry mNext;
+
+        Entry(long id, String[] columns, Object[] values) {
+            mId = id;
+            mColumns = columns;
+            mValues = values;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package eu.id2go.stock2go.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.StockMovementEntry;
+
+/**
+ * Writes and compacts the stock movements ledger. The provider calls these inside the transaction
+ * that changes the stock quantities, so a quantity never changes without its movement.
+ */
+final class StockLedger {
+
+    /**
+     * Milliseconds in a day, a snapshot holds the movements of one day (UTC)
+     */
+    static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Statement that adds one movement, bind the stock item _ID, delta, reason and timestamp
+     */
+    static final String SQL_INSERT_MOVEMENT = "INSERT INTO " + StockMovementEntry.TABLE_NAME + "("
+            + StockMovementEntry.COLUMN_ITEM_ID + ", " + StockMovementEntry.COLUMN_DELTA + ", "
+            + StockMovementEntry.COLUMN_REASON + ", " + StockMovementEntry.COLUMN_TIMESTAMP
+            + ") VALUES (?, ?, ?, ?)";
+
+    /**
+     * Query of the history of one stock item: its snapshots and its movements, with the columns of
+     * {@link StockMovementEntry#HISTORY_PROJECTION}. A snapshot gets the timestamp of the start of
+     * its day. Bind the _ID of the stock item twice.
+     */
+    static final String SQL_HISTORY = "SELECT "
+            + StockMovementEntry.COLUMN_DAY + " * " + DAY_MS + " AS " + StockMovementEntry.COLUMN_TIMESTAMP + ", "
+            + StockMovementEntry.COLUMN_REASON + ", " + StockMovementEntry.COLUMN_DELTA + ", "
+            + StockMovementEntry.COLUMN_COUNT + " FROM " + StockMovementEntry.SNAPSHOT_TABLE_NAME
+            + " WHERE " + StockMovementEntry.COLUMN_ITEM_ID + " = ?"
+            + " UNION ALL SELECT "
+            + StockMovementEntry.COLUMN_TIMESTAMP + ", " + StockMovementEntry.COLUMN_REASON + ", "
+            + StockMovementEntry.COLUMN_DELTA + ", 1 AS " + StockMovementEntry.COLUMN_COUNT
+            + " FROM " + StockMovementEntry.TABLE_NAME
+            + " WHERE " + StockMovementEntry.COLUMN_ITEM_ID + " = ?";
+
+    private StockLedger() {
+    }
+
+    /**
+     * Add one movement with a statement compiled from {@link #SQL_INSERT_MOVEMENT}
+     */
+    static void recordMovement(SQLiteStatement insertMovement, long id, long delta, int reason) {
+        insertMovement.bindLong(1, id);
+        insertMovement.bindLong(2, delta);
+        insertMovement.bindLong(3, reason);
+        insertMovement.bindLong(4, System.currentTimeMillis());
+        insertMovement.executeInsert();
+    }
+
+    /**
+     * Add one movement
+     */
+    static void recordMovement(SQLiteDatabase db, long id, long delta, int reason) {
+        db.execSQL(SQL_INSERT_MOVEMENT, new Object[]{id, delta, reason, System.currentTimeMillis()});
+    }
+
+    /**
+     * Add a {@link StockMovementEntry#REASON_CORRECTION} movement for every stock item in the
+     * selection whose quantity is about to be set to the given quantity. Call right before the
+     * update, in the same transaction.
+     */
+    static void recordQuantityChanges(SQLiteDatabase db, long newQuantity, String selection,
+                                      String[] selectionArgs) {
+        recordFromStockItems(db, newQuantity + " - " + StockItemEntry.COLUMN_STOCK_QTY,
+                StockMovementEntry.REASON_CORRECTION, StockItemEntry.COLUMN_STOCK_QTY + " != " + newQuantity,
+                selection, selectionArgs);
+    }
+
+    /**
+     * Add a {@link StockMovementEntry#REASON_REMOVED} movement, taking out the whole quantity, for
+     * every stock item in the selection. Call right before they are deleted, in the same transaction.
+     */
+    static void recordRemovals(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        recordFromStockItems(db, "-" + StockItemEntry.COLUMN_STOCK_QTY, StockMovementEntry.REASON_REMOVED,
+                StockItemEntry.COLUMN_STOCK_QTY + " != 0", selection, selectionArgs);
+    }
+
+    /**
+     * Add a movement with the given delta expression for every stock item in the selection that
+     * matches the condition, in one INSERT ... SELECT statement
+     */
+    private static void recordFromStockItems(SQLiteDatabase db, String delta, int reason, String condition,
+                                             String selection, String[] selectionArgs) {
+        String where = TextUtils.isEmpty(selection) ? condition : condition + " AND (" + selection + ")";
+        db.execSQL("INSERT INTO " + StockMovementEntry.TABLE_NAME + "("
+                + StockMovementEntry.COLUMN_ITEM_ID + ", " + StockMovementEntry.COLUMN_DELTA + ", "
+                + StockMovementEntry.COLUMN_REASON + ", " + StockMovementEntry.COLUMN_TIMESTAMP + ") SELECT "
+                + StockItemEntry._ID + ", " + delta + ", " + reason + ", " + System.currentTimeMillis()
+                + " FROM " + StockItemEntry.TABLE_NAME + " WHERE " + where,
+                selectionArgs == null ? new Object[0] : selectionArgs);
+    }
+
+    /**
+     * Add up the movements from before the day of the cutoff into the snapshots of their stock item,
+     * day and reason, and delete them, in one transaction. Movements are appended in time order, so
+     * when the first one isn't old enough there is nothing to compact and no table is scanned.
+     *
+     * @param cutoff in milliseconds since the epoch, rounded down to the start of its day
+     * @return the number of movements compacted
+     */
+    static int compact(SQLiteDatabase db, long cutoff) {
+        long start = cutoff / DAY_MS * DAY_MS;
+        String before = String.valueOf(start);
+        long oldest = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT "
+                + StockMovementEntry.COLUMN_TIMESTAMP + " FROM " + StockMovementEntry.TABLE_NAME
+                + " ORDER BY " + StockMovementEntry._ID + " LIMIT 1), ?)", new String[]{before});
+        if (oldest >= start) {
+            return 0;
+        }
+
+        String day = "m." + StockMovementEntry.COLUMN_TIMESTAMP + " / " + DAY_MS;
+        int compacted;
+        db.beginTransaction();
+        try {
+            // Add the old movements to the snapshot of the same stock item, day and reason, if any
+            db.execSQL("INSERT OR REPLACE INTO " + StockMovementEntry.SNAPSHOT_TABLE_NAME + "("
+                    + StockMovementEntry.COLUMN_ITEM_ID + ", " + StockMovementEntry.COLUMN_DAY + ", "
+                    + StockMovementEntry.COLUMN_REASON + ", " + StockMovementEntry.COLUMN_DELTA + ", "
+                    + StockMovementEntry.COLUMN_COUNT + ") SELECT "
+                    + "m." + StockMovementEntry.COLUMN_ITEM_ID + ", " + day + ", m." + StockMovementEntry.COLUMN_REASON
+                    + ", SUM(m." + StockMovementEntry.COLUMN_DELTA + ") + IFNULL(MAX(s." + StockMovementEntry.COLUMN_DELTA + "), 0)"
+                    + ", COUNT(*) + IFNULL(MAX(s." + StockMovementEntry.COLUMN_COUNT + "), 0)"
+                    + " FROM " + StockMovementEntry.TABLE_NAME + " m LEFT JOIN " + StockMovementEntry.SNAPSHOT_TABLE_NAME
+                    + " s ON s." + StockMovementEntry.COLUMN_ITEM_ID + " = m." + StockMovementEntry.COLUMN_ITEM_ID
+                    + " AND s." + StockMovementEntry.COLUMN_DAY + " = " + day
+                    + " AND s." + StockMovementEntry.COLUMN_REASON + " = m." + StockMovementEntry.COLUMN_REASON
+                    + " WHERE m." + StockMovementEntry.COLUMN_TIMESTAMP + " < ?"
+                    + " GROUP BY m." + StockMovementEntry.COLUMN_ITEM_ID + ", " + day
+                    + ", m." + StockMovementEntry.COLUMN_REASON, new Object[]{before});
+            compacted = db.delete(StockMovementEntry.TABLE_NAME,
+                    StockMovementEntry.COLUMN_TIMESTAMP + " < ?", new String[]{before});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return compacted;
+    }
+}
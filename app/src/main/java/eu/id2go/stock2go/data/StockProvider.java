@@ -1,21 +1,48 @@
 package eu.id2go.stock2go.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import eu.id2go.stock2go.R;
 import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.StockMovementEntry;
+import eu.id2go.stock2go.data.StockContract.StockSummaryEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
 
 import static eu.id2go.stock2go.data.StockContract.CONTENT_AUTHORITY;
+import static eu.id2go.stock2go.data.StockContract.PATH_SEARCH;
 import static eu.id2go.stock2go.data.StockContract.PATH_STOCK;
+import static eu.id2go.stock2go.data.StockContract.PATH_LOW_STOCK;
+import static eu.id2go.stock2go.data.StockContract.PATH_MOVEMENTS;
+import static eu.id2go.stock2go.data.StockContract.PATH_SUMMARY;
+import static eu.id2go.stock2go.data.StockContract.PATH_SUPPLIERS;
 
 /**
  * {@link ContentProvider} for Stock2Go app.
@@ -35,12 +62,39 @@ public class StockProvider extends ContentProvider {
      * URI matcher code for the content URI for a single stock item in the stock2go table
      */
     private static final int STOCK_ID = 101;
+    /**
+     * URI matcher code for the content URI to search the stock2go table
+     */
+    private static final int STOCK_SEARCH = 102;
+    /**
+     * URI matcher code for the content URI for the stock items that have to be reordered
+     */
+    private static final int STOCK_LOW = 103;
+    /**
+     * URI matcher code for the content URI for the stock summary per section
+     */
+    private static final int SUMMARY = 200;
+    /**
+     * URI matcher codes for the content URI for the suppliers table and for a single supplier
+     */
+    private static final int SUPPLIERS = 300;
+    private static final int SUPPLIER_ID = 301;
+    /**
+     * URI matcher code for the content URI for the quantity history of a single stock item
+     */
+    private static final int MOVEMENTS_ITEM = 400;
 //    private static final int STOCK_NAME = 102;
 //    private static final int STOCK_BRAND = 103;
 //    private static final int STOCK_SECTION = 104;
 //    private static final int STOCK_PRICE = 105;
 
 
+    /**
+     * Number of rows after which {@link #bulkInsert} checkpoints the write-ahead log
+     */
+    private static final int BULK_CHECKPOINT_ROWS = 1000;
+
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -54,6 +108,12 @@ public class StockProvider extends ContentProvider {
         // should recognize. All paths added to the UriMatcher have a corresponding code to return
         // when a match is found.
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCK, STOCK); // Alternative but less nice because of hard coded ContentAuthority & path: sUriMatcher.addURI("eu.id2go.stock2go", "stock2go", STOCK);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCK + "/" + PATH_SEARCH, STOCK_SEARCH);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCK + "/" + PATH_LOW_STOCK, STOCK_LOW);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SUMMARY, SUMMARY);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SUPPLIERS, SUPPLIERS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SUPPLIERS + "/#", SUPPLIER_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_MOVEMENTS + "/#", MOVEMENTS_ITEM);
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_STOCK + "/#", STOCK_ID); // Alternative but less nice because of hard coded ContentAuthority & path: sUriMatcher.addURI("eu.id2go.stock2go", "stock2go/#", STOCK_ID);
 //      sUriMatcher.addURI(StockContract.CONTENT_AUTHORITY, StockContract.PATH_STOCK +"/#", STOCK_NAME);   // Alternative but less nice because of hard coded ContentAuthority & path: sUriMatcher.addURI("eu.id2go.stock2go", "stock2go/#", STOCK_NAME);
 //      sUriMatcher.addURI(StockContract.CONTENT_AUTHORITY, StockContract.PATH_STOCK +"/#", STOCK_BRAND);  //Alternative but less nice because of hard coded ContentAuthority & path: sUriMatcher.addURI("eu.id2go.stock2go", "stock2go/#", STOCK_BRAND);
@@ -68,6 +128,56 @@ public class StockProvider extends ContentProvider {
      */
     private StockDbHelper mDbHelper;
 
+    /**
+     * Coalesces the change notifications of bursts of writes and of batches
+     */
+    private StockChangeNotifier mNotifier;
+
+    /**
+     * Set while the calling thread is applying a batch of operations, so the single operations
+     * don't show toasts.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+
+    /**
+     * Every call of the provider holds the read lock while it uses the database, a restore holds
+     * the write lock while it replaces the database file, so nothing runs against the file that
+     * is being replaced.
+     */
+    private final ReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+
+    /**
+     * Compiled insert and update statements of the stock items, reused for writes with the same
+     * set of columns
+     */
+    private final StockStatementCache mStatementCache = new StockStatementCache(StockItemEntry.TABLE_NAME,
+            new String[]{
+                    StockItemEntry._ID,
+                    StockItemEntry.COLUMN_NAME,
+                    StockItemEntry.COLUMN_BRAND,
+                    StockItemEntry.COLUMN_STOCK_QTY,
+                    StockItemEntry.COLUMN_SUPPLIER_ID,
+                    StockItemEntry.COLUMN_SECTION,
+                    StockItemEntry.COLUMN_PRICE,
+                    StockItemEntry.COLUMN_IMAGE,
+                    StockItemEntry.COLUMN_REORDER_LEVEL
+            });
+
+    /**
+     * Precompiled statements for {@link StockItemEntry#METHOD_ADJUST_QUANTITY}. They are compiled
+     * once against the writable database and reused for every call, guarded by mAdjustLock.
+     */
+    private final Object mAdjustLock = new Object();
+    private SQLiteDatabase mAdjustDatabase;
+    private SQLiteStatement mAdjustQtyStatement;
+    private SQLiteStatement mSelectQtyStatement;
+    private SQLiteStatement mInsertMovementStatement;
+
+    /**
+     * The single stock items last queried by _ID, with their supplier columns
+     */
+    private StockItemCache mItemCache;
+
     /**
      * Initialize the provider and the database helper object.
      */
@@ -76,9 +186,22 @@ public class StockProvider extends ContentProvider {
         // The variable is to be a global variable, so it can be referenced from other
         // ContentProvider methods.
         mDbHelper = new StockDbHelper(getContext());
+        mNotifier = new StockChangeNotifier(getContext().getContentResolver(),
+                getContext().getResources().getInteger(R.integer.stock_notification_window_ms));
+        mItemCache = new StockItemCache(getContext().getResources().getInteger(R.integer.stock_item_cache_size));
         return true;
     }
 
+    /**
+     * Close the database. Only called by tests, the system never shuts a provider down.
+     */
+    @Override
+    public void shutdown() {
+        closeAdjustStatements();
+        mStatementCache.clear();
+        mDbHelper.close();
+    }
+
     /**
      * Retrieve data from your provider. Use the arguments to select the table to query, the rows and
      * columns to return, and the sort order of the result. Return the data as a Cursor object.
@@ -87,19 +210,39 @@ public class StockProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return queryLocked(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Perform the query for the given URI. Must be called holding the read lock of mDatabaseLock.
+     */
+    private Cursor queryLocked(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                               String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
         // This cursor will hold the result of the query
         Cursor cursor;
+        // The URI the cursor is notified of, when it isn't the queried URI
+        Uri notificationUri = null;
 
         int match = sUriMatcher.match(uri);
         switch (match) {
             case STOCK:
+                // A limit in the URI asks for a single page of the stock2go table
+                if (uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_LIMIT) != null) {
+                    cursor = queryStockPage(database, uri, projection, selection, selectionArgs, sortOrder);
+                    break;
+                }
                 // For the Stock code, query the stock2go table directly with the given projection,
                 // selection, selection arguments, and sort order.
                 // The cursor could contain multiple rows of the stock2go table.
-                cursor = database.query(StockItemEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                cursor = database.query(stockSource(projection, selection, sortOrder), projection,
+                        selection, selectionArgs, null, null, sortOrder);
                 break;
             case STOCK_ID:
                 // For the STOCK_ID code, extract out the _ID from the URI.
@@ -114,21 +257,297 @@ public class StockProvider extends ContentProvider {
                 selectionArgs = new String[]{
                         String.valueOf(ContentUris.parseId(uri))
                 };
-                // This will perform a query on the stock2go table where the _id equals 3 to return a
-                // Cursor containing the selected row of data of the table.
-                cursor = database.query(StockItemEntry.TABLE_NAME, projection, selection,
+                // A cached stock item is served from memory, otherwise it is read and cached
+                cursor = mItemCache.query(ContentUris.parseId(uri), projection);
+                if (cursor == null) {
+                    cursor = loadStockItem(database, ContentUris.parseId(uri), projection);
+                }
+                if (cursor == null) {
+                    // This will perform a query on the stock2go table where the _id equals 3 to return a
+                    // Cursor containing the selected row of data of the table.
+                    cursor = database.query(stockSource(projection, null, sortOrder), projection,
+                            selection, selectionArgs, null, null, sortOrder);
+                }
+                break;
+            case STOCK_SEARCH:
+                cursor = searchStockItems(database, uri, projection, selection, selectionArgs);
+                break;
+            case STOCK_LOW:
+                // Only the items below their reorder level, in the order of the low stock index
+                // so SQLite doesn't need to sort them
+                if (sortOrder != null && !StockItemEntry.LOW_STOCK_SORT_ORDER.equals(sortOrder)) {
+                    throw new IllegalArgumentException("The low stock items can only be sorted on "
+                            + StockItemEntry.LOW_STOCK_SORT_ORDER);
+                }
+                selection = TextUtils.isEmpty(selection) ? StockItemEntry.LOW_STOCK_SELECTION
+                        : StockItemEntry.LOW_STOCK_SELECTION + " AND (" + selection + ")";
+                cursor = database.query(stockSource(projection, selection, null), projection,
+                        selection, selectionArgs, null, null, StockItemEntry.LOW_STOCK_SORT_ORDER);
+                // Any change of a quantity or reorder level can add or remove an item
+                notificationUri = StockItemEntry.CONTENT_URI;
+                break;
+            case SUMMARY:
+                // The summary has one row per section, kept up to date by triggers
+                cursor = database.query(StockSummaryEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                // Every change of a stock item can change the summary
+                notificationUri = StockItemEntry.CONTENT_URI;
+                break;
+            case SUPPLIERS:
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                notificationUri = SupplierEntry.CONTENT_URI;
+                break;
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(SupplierEntry.TABLE_NAME, projection, selection,
                         selectionArgs, null, null, sortOrder);
+                notificationUri = SupplierEntry.CONTENT_URI;
+                break;
+            case MOVEMENTS_ITEM:
+                cursor = queryHistory(database, ContentUris.parseId(uri), projection, selection,
+                        selectionArgs, sortOrder);
+                // Every change of the quantity of the stock item adds to its history
+                notificationUri = ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, ContentUris.parseId(uri));
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
         // Set notification URI on the Cursor, so we know what content URI the Cursor was created for.
         // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // A caller that observes the single stock items itself only wants to know about structural changes.
+        if (notificationUri == null) {
+            if (StockItemEntry.NOTIFY_STRUCTURE.equals(uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_NOTIFY))) {
+                notificationUri = StockItemEntry.STRUCTURE_URI;
+            } else {
+                notificationUri = uri;
+            }
+        }
+        // Read the rows now, while the database can't be replaced by a restore
+        cursor = detachFromDatabase(cursor);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         // Return the cursor
         return cursor;
     }
 
+    /**
+     * Returns a cursor that doesn't read the database anymore once the read lock is released, so a
+     * restore can't close the database under it. getCount() fills the first window of a database
+     * cursor, about 2 MB of rows, and the next windows are filled when the cursor is moved past it:
+     * a larger result, ex: an unpaged query of the whole catalog, is copied into memory.
+     */
+    private static Cursor detachFromDatabase(Cursor cursor) {
+        int count = cursor.getCount();
+        if (!(cursor instanceof AbstractWindowedCursor)) {
+            return cursor;
+        }
+        CursorWindow window = ((AbstractWindowedCursor) cursor).getWindow();
+        if (window == null || (window.getStartPosition() == 0 && window.getNumRows() >= count)) {
+            return cursor;
+        }
+        try {
+            MatrixCursor copy = new MatrixCursor(cursor.getColumnNames(), count);
+            while (cursor.moveToNext()) {
+                copy.addRow(StockItemCache.readRow(cursor));
+            }
+            return copy;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read the whole row of the stock item with the given _ID, with its supplier columns, and add it
+     * to the item cache. Return the given columns of it, or null when the cache is off, there is no
+     * such stock item or a column is an expression.
+     */
+    private Cursor loadStockItem(SQLiteDatabase database, long id, String[] projection) {
+        if (!mItemCache.isEnabled()) {
+            return null;
+        }
+        long generation = mItemCache.beginLoad();
+        Cursor row = database.query(StockItemEntry.VIEW_WITH_SUPPLIER, null, StockItemEntry._ID + "=?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            if (!row.moveToFirst()) {
+                return null;
+            }
+            String[] columns = row.getColumnNames();
+            Object[] values = StockItemCache.readRow(row);
+            mItemCache.put(id, columns, values, generation);
+            return StockItemCache.project(columns, values, projection);
+        } finally {
+            row.close();
+        }
+    }
+
+    /**
+     * Query one page of the stock2go table in the {@link StockItemEntry#PAGE_SORT_ORDER}.
+     * The next page is found by seeking past the name and _ID of the last row of the previous page,
+     * so every page is a range read on the name index instead of skipping over an OFFSET.
+     */
+    private Cursor queryStockPage(SQLiteDatabase database, Uri uri, String[] projection,
+                                  String selection, String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null && !sortOrder.equals(StockItemEntry.PAGE_SORT_ORDER)) {
+            throw new IllegalArgumentException("Paged queries are sorted on " + StockItemEntry.PAGE_SORT_ORDER);
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_LIMIT));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page limit in " + uri);
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid page limit in " + uri);
+        }
+
+        String afterName = uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_AFTER);
+        String afterId = uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_AFTER_ID);
+        if (afterName != null) {
+            if (afterId == null) {
+                throw new IllegalArgumentException("Paged query requires the _ID of the last row " + uri);
+            }
+            // name >= afterName uses the index, the rest breaks the tie between equal names
+            String seek = StockItemEntry.COLUMN_NAME + " COLLATE NOCASE >= ? AND ("
+                    + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE > ? OR "
+                    + StockItemEntry._ID + " > ?)";
+            if (TextUtils.isEmpty(selection)) {
+                selection = seek;
+            } else {
+                selection = "(" + selection + ") AND " + seek;
+            }
+            selectionArgs = appendSelectionArgs(selectionArgs, afterName, afterName, afterId);
+        }
+        return database.query(stockSource(projection, selection, null), projection, selection,
+                selectionArgs, null, null, StockItemEntry.PAGE_SORT_ORDER, String.valueOf(limit));
+    }
+
+    /**
+     * Search the stock items through the full text search table. Every word in the search text
+     * matches as a prefix of a word in the name, brand or supplier name. Items whose name starts
+     * with the first word are ranked first, then the results are sorted on name.
+     */
+    private Cursor searchStockItems(SQLiteDatabase database, Uri uri, String[] projection,
+                                    String selection, String[] selectionArgs) {
+        String text = uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_SEARCH);
+        String limit = uri.getQueryParameter(StockItemEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid search limit in " + uri);
+        }
+
+        // Turn the text into a full text query of prefix words, dropping the FTS operators
+        String[] words = text == null ? new String[0] : text.trim().split("[^\\p{L}\\p{N}]+");
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (!word.isEmpty()) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+            }
+        }
+
+        String search;
+        String[] searchArgs;
+        String sortOrder;
+        if (match.length() == 0) {
+            // Nothing to search for, so nothing is found
+            search = "0";
+            searchArgs = null;
+            sortOrder = null;
+        } else {
+            search = StockItemEntry._ID + " IN (SELECT docid FROM " + StockItemEntry.FTS_TABLE_NAME
+                    + " WHERE " + StockItemEntry.FTS_TABLE_NAME + " MATCH ?)";
+            searchArgs = new String[]{match.toString()};
+            String firstWord = match.substring(0, match.indexOf("*"));
+            sortOrder = "(" + StockItemEntry.COLUMN_NAME + " LIKE "
+                    + DatabaseUtils.sqlEscapeString(firstWord + "%") + ") DESC, "
+                    + StockItemEntry.COLUMN_NAME + " COLLATE NOCASE";
+        }
+
+        if (!TextUtils.isEmpty(selection)) {
+            search = "(" + selection + ") AND " + search;
+            if (searchArgs != null) {
+                searchArgs = appendSelectionArgs(selectionArgs, searchArgs);
+            } else {
+                searchArgs = selectionArgs;
+            }
+        }
+        return database.query(stockSource(projection, selection, null), projection, search,
+                searchArgs, null, null, sortOrder, limit);
+    }
+
+    /**
+     * Query the history of the stock item with the given _ID: the snapshots of its compacted
+     * movements and the movements since, oldest first unless another sort order is given.
+     * Both are read through the index on the stock item _ID.
+     */
+    private Cursor queryHistory(SQLiteDatabase database, long id, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
+        String itemId = String.valueOf(id);
+        String[] historyArgs = {itemId, itemId};
+        if (selectionArgs != null && selectionArgs.length != 0) {
+            // The arguments of the history come first, they are in the FROM clause
+            historyArgs = appendSelectionArgs(historyArgs, selectionArgs);
+        }
+        return database.query("(" + StockLedger.SQL_HISTORY + ")",
+                projection == null ? StockMovementEntry.HISTORY_PROJECTION : projection,
+                selection, historyArgs, null, null,
+                TextUtils.isEmpty(sortOrder) ? StockMovementEntry.COLUMN_TIMESTAMP : sortOrder);
+    }
+
+    /**
+     * Returns the table or view to read stock items from. Only a query that needs the supplier
+     * columns reads through the view that joins in the suppliers table, every other query reads
+     * the stock2go table itself and skips the join.
+     */
+    private static String stockSource(String[] projection, String selection, String sortOrder) {
+        if (projection == null || mentionsSupplierColumn(selection) || mentionsSupplierColumn(sortOrder)) {
+            return StockItemEntry.VIEW_WITH_SUPPLIER;
+        }
+        for (String column : projection) {
+            if (StockItemEntry.isSupplierColumn(column)) {
+                return StockItemEntry.VIEW_WITH_SUPPLIER;
+            }
+        }
+        return StockItemEntry.TABLE_NAME;
+    }
+
+    /**
+     * Returns the selection to update or delete rows of the stock2go table with. The supplier columns
+     * are only in the view, so a selection that refers to them picks the _IDs from the view.
+     */
+    private static String stockTableSelection(String selection) {
+        if (!mentionsSupplierColumn(selection)) {
+            return selection;
+        }
+        return StockItemEntry._ID + " IN (SELECT " + StockItemEntry._ID + " FROM "
+                + StockItemEntry.VIEW_WITH_SUPPLIER + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Returns whether the given SQL fragment may refer to one of the supplier columns
+     */
+    private static boolean mentionsSupplierColumn(String sql) {
+        return sql != null && (sql.contains(StockItemEntry.COLUMN_NAME_SUPPLIER)
+                || sql.contains(StockItemEntry.COLUMN_PHONE_SUPPLIER)
+                || sql.contains(StockItemEntry.COLUMN_EMAIL_SUPPLIER));
+    }
+
+    /**
+     * Returns a new array with the extra arguments added after the given selection arguments.
+     */
+    private static String[] appendSelectionArgs(String[] selectionArgs, String... extraArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return extraArgs;
+        }
+        String[] result = new String[selectionArgs.length + extraArgs.length];
+        System.arraycopy(selectionArgs, 0, result, 0, selectionArgs.length);
+        System.arraycopy(extraArgs, 0, result, selectionArgs.length, extraArgs.length);
+        return result;
+    }
+
     /**
      * Returns the MIME type of data corresponding to the content URI.
      */
@@ -137,9 +556,19 @@ public class StockProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case STOCK:
+            case STOCK_SEARCH:
+            case STOCK_LOW:
                 return StockItemEntry.CONTENT_LIST_TYPE;
             case STOCK_ID:
                 return StockItemEntry.CONTENT_ITEM_TYPE;
+            case SUMMARY:
+                return StockSummaryEntry.CONTENT_LIST_TYPE;
+            case SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return SupplierEntry.CONTENT_ITEM_TYPE;
+            case MOVEMENTS_ITEM:
+                return StockMovementEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -152,10 +581,21 @@ public class StockProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return insertLocked(uri, contentValues);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Uri insertLocked(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case STOCK:
                 return insertStockItem(uri, contentValues);
+            case SUPPLIERS:
+                return insertSupplier(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -167,6 +607,73 @@ public class StockProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertStockItem(Uri uri, ContentValues values) {
+        // Sanity check the values, show a toast for the first invalid field when called on the main
+        // thread outside a batch. A toast needs a Looper, the other threads get only the exception.
+        validateStockItem(values, !isApplyingBatch() && Looper.myLooper() == Looper.getMainLooper());
+
+        // Get writable database
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // Insert the new stock item with the given values, together with the movement of its quantity.
+        // A supplier added for it is part of the same transaction, and only notified once committed.
+        long newRowId;
+        boolean committed = false;
+        mItemCache.beginWrite();
+        mNotifier.beginScope();
+        try {
+            db.beginTransaction();
+            try {
+                resolveSupplier(db, values);
+                newRowId = insertWithMovement(db, values);
+                // A failed insert doesn't keep the supplier added for it either
+                if (newRowId != -1) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+            }
+            committed = newRowId != -1;
+        } finally {
+            mItemCache.endWrite();
+            mNotifier.endScope(committed);
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+
+            return null;
+        }
+
+        // Notify all listeners that the data has changed for the stock item content URI
+        // uri: content://eu.id2go.stock2go/stock2go
+        notifyStockChange(uri, true);
+
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
+    /**
+     * Insert a stock item and record its initial quantity as received in the ledger.
+     * Must be called inside a transaction. Return the _ID of the new row, or -1 if an error occurred.
+     */
+    private long insertWithMovement(SQLiteDatabase db, ContentValues values) {
+        long newRowId = mStatementCache.insert(db, values);
+        Integer stockQty = values.getAsInteger(StockItemEntry.COLUMN_STOCK_QTY);
+        if (newRowId != -1 && stockQty != null && stockQty != 0) {
+            StockLedger.recordMovement(db, newRowId, stockQty, StockMovementEntry.REASON_RECEIVED);
+        }
+        return newRowId;
+    }
+
+    /**
+     * Check that the given content values describe a valid new stock item.
+     * Throws an IllegalArgumentException for the first invalid field found.
+     *
+     * @param showToast whether to also tell the user which field is invalid. Only do this when
+     *                  called for a single insert on the main thread.
+     */
+    private void validateStockItem(ContentValues values, boolean showToast) {
         // Check that the name is not null
         String name = values.getAsString(StockItemEntry.COLUMN_NAME);
         // check brand is not null
@@ -185,74 +692,346 @@ public class StockProvider extends ContentProvider {
         Integer price = values.getAsInteger(StockItemEntry.COLUMN_PRICE);
         // check image is not null
         String image = values.getAsString(StockItemEntry.COLUMN_IMAGE);
+        // check the optional reorder level is not negative
+        Integer reorderLevel = values.getAsInteger(StockItemEntry.COLUMN_REORDER_LEVEL);
 
 
         // sanity check name
         // using TextUtils.isEmpty(name) {} instead of using (name==null || name.isEmpty() ){}
         // It's faster and will return true if the String is empty or null.
         if (TextUtils.isEmpty(name)) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_name),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Stock item requires a name");
+            rejectStockItem(R.string.toast_insert_stock_item_name, "Stock item requires a name", showToast);
         }
         // check brand
         if (brand == null || brand.isEmpty()) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_brand),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Stock item requires valid brand");
+            rejectStockItem(R.string.toast_insert_stock_item_brand, "Stock item requires valid brand", showToast);
         }
         // check phoneSupplier
         if (stockQty != null && stockQty <= 0) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_stock_qty),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Valid stock quantity required");
-        }
-        // check nameSupplier
-        if (nameSupplier == null || nameSupplier.isEmpty()) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_name_supplier),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Valid Supplier name required");
-        }
-        if (phoneSupplier == null || phoneSupplier.isEmpty()) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_supplier_phone),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Valid stock quantity required");
+            rejectStockItem(R.string.toast_insert_stock_item_stock_qty, "Valid stock quantity required", showToast);
         }
-        // check emailSupplier
-        if (emailSupplier == null || emailSupplier.isEmpty()) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_supplier_email),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Valid e-mail address required");
+        // The supplier is given either by _ID, checked when it is resolved, or by name and contact data
+        if (!values.containsKey(StockItemEntry.COLUMN_SUPPLIER_ID)) {
+            // check nameSupplier
+            if (nameSupplier == null || nameSupplier.isEmpty()) {
+                rejectStockItem(R.string.toast_insert_stock_item_name_supplier, "Valid Supplier name required", showToast);
+            }
+            if (phoneSupplier == null || phoneSupplier.isEmpty()) {
+                rejectStockItem(R.string.toast_insert_stock_item_supplier_phone, "Valid stock quantity required", showToast);
+            }
+            // check emailSupplier
+            if (emailSupplier == null || emailSupplier.isEmpty()) {
+                rejectStockItem(R.string.toast_insert_stock_item_supplier_email, "Valid e-mail address required", showToast);
+            }
         }
         // check section with either/or check
         if (section == null || !StockItemEntry.isValidSection(section)) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_valid_section_required),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Stock item requires a valid section");
+            rejectStockItem(R.string.toast_insert_stock_item_valid_section_required, "Stock item requires a valid section", showToast);
         }
         // check price checking both conditions with &&
         if (price != null && price < 0) {
-            Toast.makeText(getContext(), (R.string.toast_insert_stock_item_price_required),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Stock item requires a valid price");
+            rejectStockItem(R.string.toast_insert_stock_item_price_required, "Stock item requires a valid price", showToast);
         }
         // check image
         if (image == null || image.isEmpty()) {
-            Toast.makeText(getContext(), (R.string.toast_image_required),Toast.LENGTH_SHORT).show();
-            throw new IllegalArgumentException("Stock item requires a valid image");
+            rejectStockItem(R.string.toast_image_required, "Stock item requires a valid image", showToast);
+        }
+        // check reorder level
+        if (reorderLevel != null && reorderLevel < 0) {
+            rejectStockItem(R.string.toast_insert_stock_item_reorder_level, "Stock item requires a valid reorder level", showToast);
+        }
+    }
+
+    /**
+     * Optionally show a toast with the given message resource and then reject the stock item.
+     */
+    private void rejectStockItem(int toastResId, String message, boolean showToast) {
+        if (showToast) {
+            Toast.makeText(getContext(), toastResId, Toast.LENGTH_SHORT).show();
+        }
+        throw new IllegalArgumentException(message);
+    }
+
+    /**
+     * Insert a whole array of stock items in one database transaction. Every row is validated the
+     * same way as a single insert. When one row is invalid the whole batch is rolled back.
+     * Listeners are notified only once, after the transaction has been committed.
+     * Return the number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != STOCK) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
+        mDatabaseLock.readLock().lock();
+        try {
+            return insertStockItems(uri, values, null);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Insert the stock items in one database transaction and notify the listeners once.
+     *
+     * @param errors null to roll back the whole batch when one row is invalid. Otherwise the
+     *               invalid rows are skipped, and the reason each row was rejected is stored at its
+     *               index, or null when the row was inserted.
+     * @return the number of rows inserted
+     */
+    private int insertStockItems(Uri uri, ContentValues[] values, String[] errors) {
         // Get writable database
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
 
-        // Insert the new stock item with the given values
-        long newRowId = db.insert(StockItemEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
+        boolean committed = false;
+        db.beginTransaction();
+        mNotifier.beginScope();
+        mItemCache.beginWrite();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                ContentValues rowValues = values[i];
+                try {
+                    // Both throw before anything of the row is written
+                    validateStockItem(rowValues, false);
+                    resolveSupplier(db, rowValues);
+                } catch (IllegalArgumentException e) {
+                    if (errors == null) {
+                        throw e;
+                    }
+                    errors[i] = e.getMessage();
+                    continue;
+                }
+                // If the ID is -1, then the insertion of this row failed. Log an error and go on.
+                if (insertWithMovement(db, rowValues) == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                    if (errors != null) {
+                        errors[i] = "Failed to insert row";
+                    }
+                } else {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            mItemCache.endWrite();
+            mNotifier.endScope(committed);
+        }
+
+        // Notify all listeners once for the whole batch
+        if (rowsInserted != 0) {
+            notifyStockChange(uri, true);
+        }
+        // A large batch grows the write-ahead log, copy it back without waiting for readers
+        if (rowsInserted >= BULK_CHECKPOINT_ROWS) {
+            mDbHelper.checkpoint(StockDbHelper.CHECKPOINT_PASSIVE);
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Apply a batch of insert, update and delete operations in one database transaction.
+     * If one of the operations fails, none of them is committed. The per row notifications of the
+     * operations are suppressed and replaced by a single notification at the end.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // The operations take the read lock again, the lock is reentrant
+        mDatabaseLock.readLock().lock();
+        try {
+            return applyBatchLocked(operations);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private ContentProviderResult[] applyBatchLocked(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        boolean committed = false;
+
+        db.beginTransaction();
+        mApplyingBatch.set(Boolean.TRUE);
+        // Hold the notifications of the operations, every changed URI is notified once after the commit
+        mNotifier.beginScope();
+        // No stock item read during the batch is cached before it is committed or rolled back
+        mItemCache.beginWrite();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            mApplyingBatch.set(Boolean.FALSE);
+            db.endTransaction();
+            mItemCache.endWrite();
+            mNotifier.endScope(committed);
+        }
+        return results;
+    }
+
+    /**
+     * Return whether the calling thread is running the operations of {@link #applyBatch}.
+     */
+    private boolean isApplyingBatch() {
+        return mApplyingBatch.get() == Boolean.TRUE;
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed. Notifications for the same
+     * URI within the notification window, or within a batch, are sent only once.
+     *
+     * @param structural true when the list of stock items changed, so the {@link StockItemEntry#STRUCTURE_URI}
+     *                   is notified too. False when a single stock item was updated in place.
+     */
+    private void notifyStockChange(Uri uri, boolean structural) {
+        mNotifier.notifyChange(uri);
+        if (structural) {
+            mNotifier.notifyChange(StockItemEntry.STRUCTURE_URI);
+        }
+    }
+
+    /**
+     * Notify all listeners that the suppliers have changed. The stock items show the supplier
+     * columns too, so their listeners are notified as well.
+     */
+    private void notifySupplierChange() {
+        mNotifier.notifyChange(SupplierEntry.CONTENT_URI);
+        notifyStockChange(StockItemEntry.CONTENT_URI, true);
+    }
+
+    /**
+     * Replace the supplier name, phone and e-mail in the values of a stock item by the _ID of the
+     * supplier. An existing supplier with the same name is used as it is, otherwise a new supplier is
+     * added. A supplier _ID in the values has to exist.
+     */
+    private void resolveSupplier(SQLiteDatabase db, ContentValues values) {
+        String name = values.getAsString(StockItemEntry.COLUMN_NAME_SUPPLIER);
+        String phone = values.getAsString(StockItemEntry.COLUMN_PHONE_SUPPLIER);
+        String email = values.getAsString(StockItemEntry.COLUMN_EMAIL_SUPPLIER);
+        values.remove(StockItemEntry.COLUMN_NAME_SUPPLIER);
+        values.remove(StockItemEntry.COLUMN_PHONE_SUPPLIER);
+        values.remove(StockItemEntry.COLUMN_EMAIL_SUPPLIER);
+
+        if (values.containsKey(StockItemEntry.COLUMN_SUPPLIER_ID)) {
+            if (name != null || phone != null || email != null) {
+                throw new IllegalArgumentException("Stock item requires either a supplier _ID or supplier data");
+            }
+            Long supplierId = values.getAsLong(StockItemEntry.COLUMN_SUPPLIER_ID);
+            if (supplierId == null || DatabaseUtils.queryNumEntries(db, SupplierEntry.TABLE_NAME,
+                    SupplierEntry._ID + "=?", new String[]{String.valueOf(supplierId)}) == 0) {
+                throw new IllegalArgumentException("Stock item requires valid supplier");
+            }
+            return;
+        }
+        if (name == null) {
+            if (phone != null || email != null) {
+                throw new IllegalArgumentException("Supplier phone and e-mail require the Supplier name");
+            }
+            return;
+        }
+        values.put(StockItemEntry.COLUMN_SUPPLIER_ID, findOrAddSupplier(db, name, phone, email));
+    }
+
+    /**
+     * Returns the _ID of the supplier with the given name (case insensitive), or adds a new supplier
+     * if there is none. The contact data of a supplier is only changed through the
+     * {@link SupplierEntry#CONTENT_URI}, so a phone or e-mail that differs from the existing
+     * supplier's is rejected with an IllegalArgumentException.
+     */
+    private long findOrAddSupplier(SQLiteDatabase db, String name, String phone, String email) {
+        Cursor cursor = db.query(SupplierEntry.TABLE_NAME,
+                new String[]{SupplierEntry._ID, SupplierEntry.COLUMN_PHONE, SupplierEntry.COLUMN_EMAIL},
+                SupplierEntry.COLUMN_NAME + "=?", new String[]{name}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                if ((!TextUtils.isEmpty(phone) && !phone.equals(cursor.getString(1)))
+                        || (!TextUtils.isEmpty(email) && !email.equals(cursor.getString(2)))) {
+                    throw new IllegalArgumentException("Supplier " + name
+                            + " has another phone or e-mail, update it through " + SupplierEntry.CONTENT_URI);
+                }
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues supplier = new ContentValues();
+        supplier.put(SupplierEntry.COLUMN_NAME, name);
+        supplier.put(SupplierEntry.COLUMN_PHONE, phone);
+        supplier.put(SupplierEntry.COLUMN_EMAIL, email);
+        validateSupplier(supplier, true);
+        long supplierId = db.insertOrThrow(SupplierEntry.TABLE_NAME, null, supplier);
+        mNotifier.notifyChange(SupplierEntry.CONTENT_URI);
+        return supplierId;
+    }
+
+    /**
+     * Insert a supplier into the database with the given content values. Return the new content URI
+     * for that supplier, or null when a supplier with the same name exists.
+     */
+    private Uri insertSupplier(Uri uri, ContentValues values) {
+        validateSupplier(values, true);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long newRowId = db.insert(SupplierEntry.TABLE_NAME, null, values);
         if (newRowId == -1) {
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
-
             return null;
         }
+        mNotifier.notifyChange(SupplierEntry.CONTENT_URI);
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
 
-        // Notify all listeners that the data has changed for the stock item content URI
-        // uri: content://eu.id2go.stock2go/stock2go
-        getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Check that the name, phone and e-mail of a supplier are not empty. Throws an
+     * IllegalArgumentException for the first invalid field found.
+     *
+     * @param required true for a new supplier, which needs all fields. False for an update,
+     *                 which only checks the fields present.
+     */
+    private static void validateSupplier(ContentValues values, boolean required) {
+        if ((required || values.containsKey(SupplierEntry.COLUMN_NAME))
+                && TextUtils.isEmpty(values.getAsString(SupplierEntry.COLUMN_NAME))) {
+            throw new IllegalArgumentException("Supplier requires a name");
+        }
+        if ((required || values.containsKey(SupplierEntry.COLUMN_PHONE))
+                && TextUtils.isEmpty(values.getAsString(SupplierEntry.COLUMN_PHONE))) {
+            throw new IllegalArgumentException("Supplier requires valid phone_number");
+        }
+        if ((required || values.containsKey(SupplierEntry.COLUMN_EMAIL))
+                && TextUtils.isEmpty(values.getAsString(SupplierEntry.COLUMN_EMAIL))) {
+            throw new IllegalArgumentException("Supplier requires valid e-mail address");
+        }
+    }
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, newRowId);
+    /**
+     * Update the suppliers matching the selection with the given content values.
+     * Return the number of rows that were successfully updated.
+     */
+    private int updateSupplier(ContentValues values, String selection, String[] selectionArgs) {
+        validateSupplier(values, false);
+        if (values.size() == 0) {
+            return 0;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        mItemCache.beginWrite();
+        try {
+            rowsUpdated = db.update(SupplierEntry.TABLE_NAME, values, selection, selectionArgs);
+            if (rowsUpdated != 0) {
+                mItemCache.invalidateAll();
+            }
+        } finally {
+            mItemCache.endWrite();
+        }
+        if (rowsUpdated != 0) {
+            notifySupplierChange();
+        }
+        return rowsUpdated;
     }
 
 
@@ -263,10 +1042,19 @@ public class StockProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return updateLocked(uri, contentValues, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int updateLocked(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case STOCK:
-                return updateStockItem(uri, contentValues, selection, selectionArgs);
+                return updateStockItem(uri, contentValues, stockTableSelection(selection), selectionArgs);
             case STOCK_ID:
                 // For the STOCK_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
@@ -274,6 +1062,12 @@ public class StockProvider extends ContentProvider {
                 selection = StockItemEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 return updateStockItem(uri, contentValues, selection, selectionArgs);
+            case SUPPLIERS:
+                return updateSupplier(contentValues, selection, selectionArgs);
+            case SUPPLIER_ID:
+                selection = SupplierEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateSupplier(contentValues, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -303,6 +1097,8 @@ public class StockProvider extends ContentProvider {
         Integer price = values.getAsInteger(StockItemEntry.COLUMN_PRICE);
         // check image is not null or empty
         String image = values.getAsString(StockItemEntry.COLUMN_IMAGE);
+        // check reorder level is not negative
+        Integer reorderLevel = values.getAsInteger(StockItemEntry.COLUMN_REORDER_LEVEL);
 
         // If the {@link StockItemEntry#COLUMN_NAME} key is present,
         // check that the name value is not null or empty.
@@ -384,6 +1180,13 @@ public class StockProvider extends ContentProvider {
                 throw new IllegalArgumentException("Stock item requires valid image");
             }
         }
+        // If the {@link StockItemEntry#COLUMN_REORDER_LEVEL} key is present,
+        // check that the reorder level value is not null or negative
+        if (values.containsKey(StockItemEntry.COLUMN_REORDER_LEVEL)) {
+            if (reorderLevel == null || reorderLevel < 0) {
+                throw new IllegalArgumentException("Stock item requires valid reorder level");
+            }
+        }
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
@@ -393,13 +1196,50 @@ public class StockProvider extends ContentProvider {
         // Otherwise get database in writing mode
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = db.update(StockItemEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. A quantity set
+        // in the editor is recorded as a correction of the old quantity, in the same transaction.
+        int rowsUpdated;
+        Integer newQuantity = values.getAsInteger(StockItemEntry.COLUMN_STOCK_QTY);
+        boolean committed = false;
+        mItemCache.beginWrite();
+        mNotifier.beginScope();
+        try {
+            db.beginTransaction();
+            try {
+                // Store the supplier by _ID, a supplier added for it is only kept and notified
+                // when the stock items are updated
+                resolveSupplier(db, values);
+                if (newQuantity != null) {
+                    StockLedger.recordQuantityChanges(db, newQuantity, selection, selectionArgs);
+                }
+                rowsUpdated = mStatementCache.update(db, values, selection, selectionArgs);
+                if (rowsUpdated != 0) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+            }
+            committed = rowsUpdated != 0;
+            // A single stock item is dropped from the cache, an update by selection drops them all
+            if (rowsUpdated != 0) {
+                if (sUriMatcher.match(uri) == STOCK_ID) {
+                    mItemCache.invalidate(ContentUris.parseId(uri));
+                } else {
+                    mItemCache.invalidateAll();
+                }
+            }
+        } finally {
+            mItemCache.endWrite();
+            mNotifier.endScope(committed);
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
+        // given URI has changed. Updating a single stock item in place only notifies its own URI,
+        // unless it was renamed and so moved in the sorted list.
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            boolean inPlace = sUriMatcher.match(uri) == STOCK_ID
+                    && !values.containsKey(StockItemEntry.COLUMN_NAME);
+            notifyStockChange(uri, !inPlace);
         }
 
         // Return the number of rows updated
@@ -407,12 +1247,304 @@ public class StockProvider extends ContentProvider {
     }
 
 
+    /**
+     * Call a provider specific method. Supported are {@link StockItemEntry#METHOD_ADJUST_QUANTITY}
+     * with the _ID of the stock item as argument, {@link StockItemEntry#METHOD_ADJUST_QUANTITIES}
+     * {@link StockItemEntry#METHOD_NOTIFICATION_STATS}, {@link StockItemEntry#METHOD_ITEM_CACHE_STATS},
+     * {@link StockItemEntry#METHOD_IMPORT_STOCK_ITEMS}, {@link StockMovementEntry#METHOD_COMPACT_MOVEMENTS},
+     * {@link StockContract#METHOD_BACKUP_DATABASE} and {@link StockContract#METHOD_RESTORE_DATABASE}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // A restore takes the write lock itself, it can't be upgraded from the read lock
+        if (StockContract.METHOD_RESTORE_DATABASE.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Restoring the database requires a document URI");
+            }
+            return restoreDatabase(Uri.parse(arg)) ? new Bundle() : null;
+        }
+        mDatabaseLock.readLock().lock();
+        try {
+            return callLocked(method, arg, extras);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private Bundle callLocked(String method, String arg, Bundle extras) {
+        if (StockItemEntry.METHOD_ADJUST_QUANTITY.equals(method)) {
+            if (arg == null || extras == null || !extras.containsKey(StockItemEntry.EXTRA_DELTA)) {
+                throw new IllegalArgumentException("Adjusting a quantity requires an id and a delta");
+            }
+            long id = Long.parseLong(arg);
+            long newQuantity = adjustStockQuantity(id, extras.getInt(StockItemEntry.EXTRA_DELTA));
+            // The stock item does not exist or there is not enough of it in stock
+            if (newQuantity < 0) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLong(StockItemEntry.COLUMN_STOCK_QTY, newQuantity);
+            return result;
+        }
+        if (StockItemEntry.METHOD_ADJUST_QUANTITIES.equals(method)) {
+            long[] ids = extras == null ? null : extras.getLongArray(StockItemEntry.EXTRA_IDS);
+            int[] deltas = extras == null ? null : extras.getIntArray(StockItemEntry.EXTRA_DELTAS);
+            if (ids == null || deltas == null || ids.length != deltas.length) {
+                throw new IllegalArgumentException("Adjusting quantities requires as many ids as deltas");
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(StockItemEntry.EXTRA_QUANTITIES, adjustStockQuantities(ids, deltas));
+            return result;
+        }
+        if (StockItemEntry.METHOD_NOTIFICATION_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(StockItemEntry.EXTRA_NOTIFICATIONS_EMITTED, mNotifier.getEmittedCount());
+            result.putLong(StockItemEntry.EXTRA_NOTIFICATIONS_SUPPRESSED, mNotifier.getSuppressedCount());
+            return result;
+        }
+        if (StockItemEntry.METHOD_ITEM_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(StockItemEntry.EXTRA_CACHE_HITS, mItemCache.getHitCount());
+            result.putLong(StockItemEntry.EXTRA_CACHE_MISSES, mItemCache.getMissCount());
+            result.putLong(StockItemEntry.EXTRA_CACHE_EVICTIONS, mItemCache.getEvictionCount());
+            result.putInt(StockItemEntry.EXTRA_CACHE_SIZE, mItemCache.size());
+            return result;
+        }
+        if (StockItemEntry.METHOD_IMPORT_STOCK_ITEMS.equals(method)) {
+            Parcelable[] rows = extras == null ? null : extras.getParcelableArray(StockItemEntry.EXTRA_ROWS);
+            if (rows == null) {
+                throw new IllegalArgumentException("Importing stock items requires the rows");
+            }
+            ContentValues[] values = new ContentValues[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                values[i] = (ContentValues) rows[i];
+            }
+            String[] errors = new String[rows.length];
+            Bundle result = new Bundle();
+            result.putInt(StockItemEntry.EXTRA_INSERTED, insertStockItems(StockItemEntry.CONTENT_URI, values, errors));
+            result.putStringArray(StockItemEntry.EXTRA_ERRORS, errors);
+            return result;
+        }
+        if (StockMovementEntry.METHOD_COMPACT_MOVEMENTS.equals(method)) {
+            long retention = getContext().getResources().getInteger(R.integer.stock_movement_retention_days)
+                    * StockLedger.DAY_MS;
+            int compacted = StockLedger.compact(mDbHelper.getWritableDatabase(),
+                    System.currentTimeMillis() - retention);
+            Bundle result = new Bundle();
+            result.putInt(StockMovementEntry.EXTRA_COMPACTED, compacted);
+            return result;
+        }
+        if (StockContract.METHOD_BACKUP_DATABASE.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Backing up the database requires a document URI");
+            }
+            long length = backupDatabase(Uri.parse(arg));
+            if (length < 0) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLong(StockContract.EXTRA_DATABASE_LENGTH, length);
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Write a backup of the database to the document. Readers carry on meanwhile, with write-ahead
+     * logging writers do too, see {@link StockDbHelper#snapshot(File)}.
+     * Return the length of the backed up database, or -1 if the backup failed.
+     */
+    private long backupDatabase(Uri document) {
+        try {
+            OutputStream output = getContext().getContentResolver().openOutputStream(document, "w");
+            if (output == null) {
+                throw new IOException("Can't open " + document);
+            }
+            return StockArchive.backup(mDbHelper, new File(getContext().getCacheDir(), "backup.db"), output);
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to back up the database to " + document, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Replace the database by the backup in the document, then notify every listener because
+     * every row may have changed. Return false if the backup was rejected and nothing changed.
+     * The calls already running finish first, the calls made meanwhile wait for the restore.
+     */
+    private boolean restoreDatabase(Uri document) {
+        try {
+            InputStream input = getContext().getContentResolver().openInputStream(document);
+            if (input == null) {
+                throw new IOException("Can't open " + document);
+            }
+            mDatabaseLock.writeLock().lock();
+            try {
+                mItemCache.beginWrite();
+                try {
+                    // Compiled against the connection that is closed by the swap
+                    closeAdjustStatements();
+                    mStatementCache.clear();
+                    StockArchive.restore(mDbHelper, input);
+                } finally {
+                    mItemCache.invalidateAll();
+                    mItemCache.endWrite();
+                }
+            } finally {
+                mDatabaseLock.writeLock().unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to restore the database from " + document, e);
+            return false;
+        }
+        // The stock items, summary and history cursors are notified on the stock item URIs
+        notifySupplierChange();
+        return true;
+    }
+
+    /**
+     * Add delta to the stock quantity of the stock item with the given id, in one UPDATE statement
+     * that can't drop the quantity below 0. Because the database does the arithmetic there is
+     * no read-modify-write race between concurrent callers.
+     * Return the new quantity, or -1 if nothing was updated.
+     */
+    private long adjustStockQuantity(long id, int delta) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long newQuantity = -1;
+
+        synchronized (mAdjustLock) {
+            compileAdjustStatements(db);
+            mItemCache.beginWrite();
+            db.beginTransaction();
+            try {
+                newQuantity = adjustInTransaction(id, delta);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                mItemCache.invalidate(id);
+                mItemCache.endWrite();
+            }
+        }
+
+        if (newQuantity >= 0) {
+            notifyStockChange(ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, id), false);
+        }
+        return newQuantity;
+    }
+
+    /**
+     * Add the deltas to the stock quantities of the stock items with the given ids, in one
+     * transaction. Every changed stock item is notified once after the commit.
+     * Return the new quantities, with -1 for the items that were not updated.
+     */
+    private long[] adjustStockQuantities(long[] ids, int[] deltas) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long[] newQuantities = new long[ids.length];
+        boolean committed = false;
+
+        mNotifier.beginScope();
+        try {
+            synchronized (mAdjustLock) {
+                compileAdjustStatements(db);
+                mItemCache.beginWrite();
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < ids.length; i++) {
+                        newQuantities[i] = adjustInTransaction(ids[i], deltas[i]);
+                    }
+                    db.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    db.endTransaction();
+                    for (long id : ids) {
+                        mItemCache.invalidate(id);
+                    }
+                    mItemCache.endWrite();
+                }
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (newQuantities[i] >= 0) {
+                    notifyStockChange(ContentUris.withAppendedId(StockItemEntry.CONTENT_URI, ids[i]), false);
+                }
+            }
+        } finally {
+            mNotifier.endScope(committed);
+        }
+        return newQuantities;
+    }
+
+    /**
+     * Add delta to the stock quantity of one stock item with the precompiled statements.
+     * Must be called holding mAdjustLock, inside a transaction.
+     * Return the new quantity, or -1 if nothing was updated.
+     */
+    private long adjustInTransaction(long id, int delta) {
+        // UPDATE stock2go SET stockQuantity = stockQuantity + delta WHERE _id = id AND stockQuantity + delta >= 0
+        mAdjustQtyStatement.bindLong(1, delta);
+        mAdjustQtyStatement.bindLong(2, id);
+        mAdjustQtyStatement.bindLong(3, delta);
+        if (mAdjustQtyStatement.executeUpdateDelete() != 1) {
+            return -1;
+        }
+        StockLedger.recordMovement(mInsertMovementStatement, id, delta,
+                delta < 0 ? StockMovementEntry.REASON_SALE : StockMovementEntry.REASON_RESTOCK);
+        mSelectQtyStatement.bindLong(1, id);
+        return mSelectQtyStatement.simpleQueryForLong();
+    }
+
+    /**
+     * Compile the statements used by {@link #adjustStockQuantity} the first time they are needed,
+     * or again when the database has been reopened. Must be called holding mAdjustLock.
+     */
+    private void compileAdjustStatements(SQLiteDatabase db) {
+        if (mAdjustDatabase == db && mAdjustQtyStatement != null) {
+            return;
+        }
+        mAdjustQtyStatement = db.compileStatement("UPDATE " + StockItemEntry.TABLE_NAME
+                + " SET " + StockItemEntry.COLUMN_STOCK_QTY + " = " + StockItemEntry.COLUMN_STOCK_QTY + " + ?"
+                + " WHERE " + StockItemEntry._ID + " = ?"
+                + " AND " + StockItemEntry.COLUMN_STOCK_QTY + " + ? >= 0");
+        mSelectQtyStatement = db.compileStatement("SELECT " + StockItemEntry.COLUMN_STOCK_QTY
+                + " FROM " + StockItemEntry.TABLE_NAME
+                + " WHERE " + StockItemEntry._ID + " = ?");
+        mInsertMovementStatement = db.compileStatement(StockLedger.SQL_INSERT_MOVEMENT);
+        mAdjustDatabase = db;
+    }
+
+    /**
+     * Release the statements used by {@link #adjustStockQuantity}, they are compiled again when
+     * they are needed next
+     */
+    private void closeAdjustStatements() {
+        synchronized (mAdjustLock) {
+            if (mAdjustQtyStatement != null) {
+                mAdjustQtyStatement.close();
+                mSelectQtyStatement.close();
+                mInsertMovementStatement.close();
+            }
+            mAdjustQtyStatement = null;
+            mSelectQtyStatement = null;
+            mInsertMovementStatement = null;
+            mAdjustDatabase = null;
+        }
+    }
+
+
     /**
      * Delete the rows of data at the given selection and selection arguments.
      * Use the arguments to select the table and the rows to delete. Return the number of rows deleted.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        mDatabaseLock.readLock().lock();
+        try {
+            return deleteLocked(uri, selection, selectionArgs);
+        } finally {
+            mDatabaseLock.readLock().unlock();
+        }
+    }
+
+    private int deleteLocked(Uri uri, String selection, String[] selectionArgs) {
 
         // Get writable database
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
@@ -424,14 +1556,17 @@ public class StockProvider extends ContentProvider {
         switch (match) {
             case STOCK:
                 // Delete all rows that match the selection and selection args for case StockItem
-                rowsDeleted = db.delete(StockItemEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteStockItems(db, stockTableSelection(selection), selectionArgs, -1);
                 break;
             case STOCK_ID:
                 // Delete a single row given by the ID in the URI
                 selection = StockItemEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = db.delete(StockItemEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteStockItems(db, selection, selectionArgs, ContentUris.parseId(uri));
                 break;
+            case SUPPLIERS:
+            case SUPPLIER_ID:
+                return deleteSuppliers(db, uri, match, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
@@ -441,10 +1576,59 @@ public class StockProvider extends ContentProvider {
 
             // Notify all listeners that the data has changed for the stock item content URI
             // uri: content://eu.id2go.stock2go/stock2go
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyStockChange(uri, true);
         }
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
+
+    /**
+     * Delete the stock items matching the selection. Their quantities are recorded as removed in
+     * the ledger, in the same transaction. Return the number of stock items deleted.
+     *
+     * @param id the _ID of the single stock item the selection matches, or -1 for a selection of
+     *           any number of stock items
+     */
+    private int deleteStockItems(SQLiteDatabase db, String selection, String[] selectionArgs, long id) {
+        int rowsDeleted = 0;
+        mItemCache.beginWrite();
+        db.beginTransaction();
+        try {
+            StockLedger.recordRemovals(db, selection, selectionArgs);
+            rowsDeleted = db.delete(StockItemEntry.TABLE_NAME, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (rowsDeleted != 0) {
+                if (id >= 0) {
+                    mItemCache.invalidate(id);
+                } else {
+                    mItemCache.invalidateAll();
+                }
+            }
+            mItemCache.endWrite();
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete the suppliers matching the selection, or the single supplier of a SUPPLIER_ID URI.
+     * Suppliers that still have stock items are kept. Return the number of suppliers deleted.
+     */
+    private int deleteSuppliers(SQLiteDatabase db, Uri uri, int match, String selection,
+                                String[] selectionArgs) {
+        if (match == SUPPLIER_ID) {
+            selection = SupplierEntry._ID + "=?";
+            selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+        }
+        String unused = SupplierEntry._ID + " NOT IN (SELECT " + StockItemEntry.COLUMN_SUPPLIER_ID
+                + " FROM " + StockItemEntry.TABLE_NAME + ")";
+        selection = TextUtils.isEmpty(selection) ? unused : "(" + selection + ") AND " + unused;
+        int rowsDeleted = db.delete(SupplierEntry.TABLE_NAME, selection, selectionArgs);
+        if (rowsDeleted != 0) {
+            mNotifier.notifyChange(SupplierEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
 }
\ No newline at end of file
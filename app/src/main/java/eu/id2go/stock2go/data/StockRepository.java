@@ -0,0 +1,274 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+import eu.id2go.stock2go.data.StockContract.StockMovementEntry;
+import eu.id2go.stock2go.data.StockContract.SupplierEntry;
+
+/**
+ * Reads and writes single stock items and suppliers through the {@link StockProvider} off the main
+ * thread. Every call runs on one background thread, in the order of the calls, and hands its result
+ * to the callback on the main thread once the provider has committed the change. A write that the
+ * provider rejects, ex: because a required value is missing, completes with null or 0 like a write
+ * that changed nothing. Cancelling the returned Future drops the callback, and the call as well
+ * when it hasn't started yet.
+ */
+public final class StockRepository {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockRepository.class.getSimpleName();
+
+    /**
+     * Receives the result of a call on the main thread
+     */
+    public interface Callback<T> {
+        void onComplete(T result);
+    }
+
+    private static StockRepository sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG);
+        }
+    });
+
+    /**
+     * Returns the repository of the app
+     */
+    public static synchronized StockRepository get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StockRepository(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Insert a row
+     *
+     * @param uri      the content URI of the table, ex: StockItemEntry#CONTENT_URI
+     * @param callback receives the content URI of the new row, or null when nothing was inserted
+     */
+    public Future<?> insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                return mResolver.insert(uri, values);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Update the row or rows at the given URI
+     *
+     * @param callback receives the number of updated rows
+     */
+    public Future<?> update(final Uri uri, final ContentValues values, Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.update(uri, values, null, null);
+            }
+        }, 0, callback);
+    }
+
+    /**
+     * Delete the row or rows at the given URI
+     *
+     * @param callback receives the number of deleted rows
+     */
+    public Future<?> delete(final Uri uri, Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.delete(uri, null, null);
+            }
+        }, 0, callback);
+    }
+
+    /**
+     * Insert or update a stock item whose supplier is given by name, phone and e-mail. A supplier
+     * with that name that exists already is referred to by its _ID, and a phone or e-mail that
+     * differs from its own is written to it through {@link SupplierEntry#CONTENT_URI} first, because
+     * the provider doesn't change the contact data of a supplier through a stock item. A new
+     * supplier is added by the provider together with the stock item.
+     *
+     * @param stockItemUri the content URI of the stock item to update, or null to insert a new one
+     * @param values       the columns of the stock item, with the supplier columns of
+     *                     {@link StockItemEntry#PROJECTION_WITH_SUPPLIER}
+     * @param callback     receives the content URI of the stock item, or null when nothing was written
+     */
+    public Future<?> saveStockItem(final Uri stockItemUri, final ContentValues values, Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                ContentValues stockItem = new ContentValues(values);
+                resolveSupplier(stockItem);
+                if (stockItemUri == null) {
+                    return mResolver.insert(StockItemEntry.CONTENT_URI, stockItem);
+                }
+                return mResolver.update(stockItemUri, stockItem, null, null) == 0 ? null : stockItemUri;
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Replace the supplier columns of the stock item by the _ID of the existing supplier with that
+     * name, after writing the changed phone and e-mail to it. Leaves them when there is no such
+     * supplier.
+     */
+    private void resolveSupplier(ContentValues stockItem) {
+        String name = stockItem.getAsString(StockItemEntry.COLUMN_NAME_SUPPLIER);
+        if (name == null) {
+            return;
+        }
+        Cursor cursor = mResolver.query(SupplierEntry.CONTENT_URI,
+                new String[]{SupplierEntry._ID, SupplierEntry.COLUMN_PHONE, SupplierEntry.COLUMN_EMAIL},
+                SupplierEntry.COLUMN_NAME + "=?", new String[]{name}, null);
+        if (cursor == null) {
+            return;
+        }
+        long supplierId;
+        ContentValues contact = new ContentValues();
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            supplierId = cursor.getLong(0);
+            String phone = stockItem.getAsString(StockItemEntry.COLUMN_PHONE_SUPPLIER);
+            String email = stockItem.getAsString(StockItemEntry.COLUMN_EMAIL_SUPPLIER);
+            if (!TextUtils.isEmpty(phone) && !phone.equals(cursor.getString(1))) {
+                contact.put(SupplierEntry.COLUMN_PHONE, phone);
+            }
+            if (!TextUtils.isEmpty(email) && !email.equals(cursor.getString(2))) {
+                contact.put(SupplierEntry.COLUMN_EMAIL, email);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (contact.size() > 0) {
+            mResolver.update(ContentUris.withAppendedId(SupplierEntry.CONTENT_URI, supplierId), contact, null, null);
+        }
+        stockItem.remove(StockItemEntry.COLUMN_NAME_SUPPLIER);
+        stockItem.remove(StockItemEntry.COLUMN_PHONE_SUPPLIER);
+        stockItem.remove(StockItemEntry.COLUMN_EMAIL_SUPPLIER);
+        stockItem.put(StockItemEntry.COLUMN_SUPPLIER_ID, supplierId);
+    }
+
+    /**
+     * Load a single row
+     *
+     * @param uri        the content URI of the row, ex: of a stock item or a supplier
+     * @param projection the columns to load, null for all
+     * @param callback   receives the columns of the row, or null when there is no such row
+     */
+    public Future<?> load(final Uri uri, final String[] projection, Callback<ContentValues> callback) {
+        return submit(new Callable<ContentValues>() {
+            @Override
+            public ContentValues call() {
+                Cursor cursor = mResolver.query(uri, projection, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return null;
+                    }
+                    ContentValues values = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, values);
+                    return values;
+                } finally {
+                    cursor.close();
+                }
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Add up the stock movements older than the retention period into daily snapshots, see
+     * {@link StockMovementEntry#METHOD_COMPACT_MOVEMENTS}
+     *
+     * @param callback receives the number of compacted movements, may be null
+     */
+    public Future<?> compactMovements(Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                Bundle result = mResolver.call(StockMovementEntry.CONTENT_URI,
+                        StockMovementEntry.METHOD_COMPACT_MOVEMENTS, null, null);
+                return result == null ? 0 : result.getInt(StockMovementEntry.EXTRA_COMPACTED);
+            }
+        }, 0, callback);
+    }
+
+    /**
+     * Run the call on the background thread and post its result, or the failure result when the
+     * call throws, to the callback
+     */
+    private <T> Future<?> submit(final Callable<T> call, final T failure, final Callback<T> callback) {
+        final Future<?>[] future = new Future<?>[1];
+        future[0] = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                try {
+                    result = call.call();
+                } catch (RuntimeException e) {
+                    // ex: IllegalArgumentException for invalid values, SQLException for a failed write
+                    Log.e(LOG_TAG, "Stock repository call failed", e);
+                    result = failure;
+                } catch (Exception e) {
+                    // Callable#call declares Exception, the calls above only throw runtime exceptions
+                    throw new IllegalStateException(e);
+                }
+                if (callback == null) {
+                    return;
+                }
+                final T delivered = result;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!future[0].isCancelled()) {
+                            callback.onComplete(delivered);
+                        }
+                    }
+                });
+            }
+        });
+        return future[0];
+    }
+}
@@ -0,0 +1,253 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.HashMap;
+
+/**
+ * Cache of compiled INSERT and UPDATE statements for a table.
+ * SQLiteDatabase.insert() and update() build the SQL of every call and look it up in the statement
+ * cache of the connection. The provider nearly always writes the same set of columns (only the
+ * quantity, or every column of the editor), so the statements are kept here by a signature of
+ * their columns: one bit per column of the table, in a fixed order. Finding a statement costs one
+ * map lookup per written column, the values are bound in the order of the bits, and the SQL is
+ * only built when a statement is compiled.
+ * <p>
+ * A statement is taken out of the cache while it is executed and put back afterwards, so no lock
+ * is held while waiting for the database connection. A thread that finds the statement taken
+ * compiles one of its own.
+ */
+class StockStatementCache {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockStatementCache.class.getSimpleName();
+
+    /**
+     * Maximum number of column signatures kept per operation and where clause
+     */
+    private static final int MAX_SIGNATURES = 16;
+
+    /**
+     * Maximum number of where clauses the UPDATE statements are kept for
+     */
+    private static final int MAX_WHERE_CLAUSES = 8;
+
+    private final String mTable;
+
+    /**
+     * The columns of the table, the index of a column is its bit in a signature
+     */
+    private final String[] mColumns;
+    private final HashMap<String, Integer> mColumnBits = new HashMap<>();
+
+    /**
+     * The statements by where clause, null for the INSERT statements, then by column signature.
+     * Guarded by this.
+     */
+    private final HashMap<String, LongSparseArray<SQLiteStatement>> mStatements = new HashMap<>();
+
+    /**
+     * The database the cached statements were compiled for. Guarded by this.
+     */
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * Construct a new cache for the statements on the given table
+     *
+     * @param columns every column of the table that may be written, at most 63
+     */
+    StockStatementCache(String table, String[] columns) {
+        if (columns.length > 63) {
+            throw new IllegalArgumentException("Too many columns for a signature: " + columns.length);
+        }
+        mTable = table;
+        mColumns = columns.clone();
+        for (int i = 0; i < mColumns.length; i++) {
+            mColumnBits.put(mColumns[i], i);
+        }
+    }
+
+    /**
+     * Insert a row with the given values, like SQLiteDatabase#insert without a null column hack.
+     * Return the row ID of the new row, or -1 if an error occurred.
+     */
+    long insert(SQLiteDatabase db, ContentValues values) {
+        long signature = signature(values);
+        if (signature <= 0) {
+            // No values, or a column the table doesn't have: SQLiteDatabase reports it
+            return db.insert(mTable, null, values);
+        }
+        SQLiteStatement statement = checkOut(db, null, signature);
+        try {
+            if (statement == null) {
+                statement = db.compileStatement(buildInsert(signature));
+            }
+            bindValues(statement, signature, values);
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        } finally {
+            if (statement != null) {
+                checkIn(db, null, signature, statement);
+            }
+        }
+    }
+
+    /**
+     * Update the rows matching the where clause with the given values, like SQLiteDatabase#update.
+     * The where arguments are bound as Strings. Return the number of rows updated.
+     */
+    int update(SQLiteDatabase db, ContentValues values, String whereClause, String[] whereArgs) {
+        long signature = signature(values);
+        if (signature <= 0) {
+            return db.update(mTable, values, whereClause, whereArgs);
+        }
+        String where = whereClause == null ? "" : whereClause;
+        SQLiteStatement statement = checkOut(db, where, signature);
+        if (statement == null) {
+            statement = db.compileStatement(buildUpdate(signature, where));
+        }
+        try {
+            int index = bindValues(statement, signature, values);
+            if (whereArgs != null) {
+                for (String whereArg : whereArgs) {
+                    statement.bindString(index++, whereArg);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            checkIn(db, where, signature, statement);
+        }
+    }
+
+    /**
+     * Close all compiled statements, ex: before the database is closed
+     */
+    synchronized void clear() {
+        closeAll();
+        mDatabase = null;
+    }
+
+    /**
+     * Returns the signature of the columns of the values, 0 for no values or -1 when a column isn't
+     * one of the table
+     */
+    private long signature(ContentValues values) {
+        long signature = 0;
+        for (String column : values.keySet()) {
+            Integer bit = mColumnBits.get(column);
+            if (bit == null) {
+                return -1;
+            }
+            signature |= 1L << bit;
+        }
+        return signature;
+    }
+
+    /**
+     * Bind the values in the order of the columns in the signature
+     *
+     * @return the index of the next argument
+     */
+    private int bindValues(SQLiteStatement statement, long signature, ContentValues values) {
+        int index = 1;
+        for (int bit = 0; bit < mColumns.length; bit++) {
+            if ((signature & (1L << bit)) != 0) {
+                DatabaseUtils.bindObjectToProgram(statement, index++, values.get(mColumns[bit]));
+            }
+        }
+        return index;
+    }
+
+    private String buildInsert(long signature) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(mTable).append(" (");
+        StringBuilder placeholders = new StringBuilder();
+        for (int bit = 0; bit < mColumns.length; bit++) {
+            if ((signature & (1L << bit)) != 0) {
+                if (placeholders.length() > 0) {
+                    sql.append(',');
+                    placeholders.append(',');
+                }
+                sql.append(mColumns[bit]);
+                placeholders.append('?');
+            }
+        }
+        return sql.append(") VALUES (").append(placeholders).append(')').toString();
+    }
+
+    private String buildUpdate(long signature, String where) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(mTable).append(" SET ");
+        boolean first = true;
+        for (int bit = 0; bit < mColumns.length; bit++) {
+            if ((signature & (1L << bit)) != 0) {
+                if (!first) {
+                    sql.append(',');
+                }
+                sql.append(mColumns[bit]).append("=?");
+                first = false;
+            }
+        }
+        if (!where.isEmpty()) {
+            sql.append(" WHERE ").append(where);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Take the compiled statement out of the cache, or return null when it has to be compiled. The
+     * cache is emptied when the database has been reopened.
+     */
+    private synchronized SQLiteStatement checkOut(SQLiteDatabase db, String where, long signature) {
+        if (mDatabase != db) {
+            closeAll();
+            mDatabase = db;
+        }
+        LongSparseArray<SQLiteStatement> statements = mStatements.get(where);
+        if (statements == null) {
+            return null;
+        }
+        SQLiteStatement statement = statements.get(signature);
+        if (statement != null) {
+            statements.remove(signature);
+        }
+        return statement;
+    }
+
+    /**
+     * Put the executed statement back into the cache, or close it when the cache has no room for it
+     * or the database has been reopened meanwhile
+     */
+    private synchronized void checkIn(SQLiteDatabase db, String where, long signature, SQLiteStatement statement) {
+        statement.clearBindings();
+        LongSparseArray<SQLiteStatement> statements = mStatements.get(where);
+        // The INSERT statements are kept under null, besides the where clauses
+        if (statements == null && mDatabase == db && mStatements.size() <= MAX_WHERE_CLAUSES) {
+            statements = new LongSparseArray<>();
+            mStatements.put(where, statements);
+        }
+        if (statements == null || mDatabase != db || statements.get(signature) != null
+                || statements.size() >= MAX_SIGNATURES) {
+            statement.close();
+            return;
+        }
+        statements.put(signature, statement);
+    }
+
+    private void closeAll() {
+        for (LongSparseArray<SQLiteStatement> statements : mStatements.values()) {
+            for (int i = 0; i < statements.size(); i++) {
+                statements.valueAt(i).close();
+            }
+        }
+        mStatements.clear();
+    }
+}
@@ -0,0 +1,221 @@
+package eu.id2go.stock2go.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+/**
+ * Single background writer for stock quantity changes, in front of the {@link StockProvider}.
+ * A quantity change is queued from the main thread and shown right away: the list adds the
+ * pending delta of a stock item to its quantity. The deltas queued for the same stock item within
+ * COALESCE_WINDOW_MS are merged, and all merged deltas are written in one transaction through
+ * {@link StockItemEntry#METHOD_ADJUST_QUANTITIES}. Once written, the listeners get the committed
+ * quantity, or learn that the change was rolled back because it failed.
+ */
+public final class StockWriteQueue {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StockWriteQueue.class.getSimpleName();
+
+    /**
+     * Milliseconds the first queued change waits for more changes before they are all written
+     */
+    private static final long COALESCE_WINDOW_MS = 300;
+
+    /**
+     * Receives the outcome of the queued changes on the main thread
+     */
+    public interface Listener {
+        /**
+         * The pending delta of the stock item changed, because a change was queued
+         */
+        void onQuantityQueued(long id);
+
+        /**
+         * The changes of the stock item were written, its quantity is now the given quantity
+         */
+        void onQuantityCommitted(long id, long quantity);
+
+        /**
+         * The changes of the stock item could not be written and were dropped, ex: because there
+         * was not enough in stock or the stock item was deleted
+         */
+        void onQuantityFailed(long id);
+    }
+
+    private static StockWriteQueue sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mWriteHandler;
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    /**
+     * The deltas that are queued or being written, by _ID. Only used on the main thread.
+     */
+    private final LongSparseArray<Integer> mPendingDeltas = new LongSparseArray<>();
+
+    /**
+     * The deltas that wait for the next write, by _ID. Guarded by itself.
+     */
+    private final LongSparseArray<Integer> mQueuedDeltas = new LongSparseArray<>();
+
+    /**
+     * Set while the deltas taken from mQueuedDeltas are being written. Guarded by mQueuedDeltas.
+     */
+    private boolean mWriting;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeQueuedDeltas();
+        }
+    };
+
+    /**
+     * Returns the write queue of the app
+     */
+    public static synchronized StockWriteQueue get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StockWriteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StockWriteQueue(Context context) {
+        mResolver = context.getContentResolver();
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queue a change of the stock quantity of a stock item. Call from the main thread.
+     *
+     * @param id    the _ID of the stock item
+     * @param delta the change of the quantity, ex: -1 for a sale
+     */
+    public void adjustQuantity(long id, int delta) {
+        mPendingDeltas.put(id, getPendingDelta(id) + delta);
+        synchronized (mQueuedDeltas) {
+            if (mQueuedDeltas.size() == 0) {
+                mWriteHandler.postDelayed(mWriteRunnable, COALESCE_WINDOW_MS);
+            }
+            Integer queued = mQueuedDeltas.get(id);
+            mQueuedDeltas.put(id, queued == null ? delta : queued + delta);
+        }
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onQuantityQueued(id);
+        }
+    }
+
+    /**
+     * Returns the sum of the changes of a stock item that have not been written yet, to show its
+     * quantity as it will be. Call from the main thread.
+     */
+    public int getPendingDelta(long id) {
+        Integer pending = mPendingDeltas.get(id);
+        return pending == null ? 0 : pending;
+    }
+
+    /**
+     * Returns whether changes are queued or being written. Can be called from any thread.
+     */
+    public boolean hasPendingWrites() {
+        synchronized (mQueuedDeltas) {
+            return mWriting || mQueuedDeltas.size() != 0;
+        }
+    }
+
+    /**
+     * Write the queued deltas in one transaction, then report the outcome on the main thread.
+     * Runs on the write thread.
+     */
+    private void writeQueuedDeltas() {
+        final long[] ids;
+        final int[] deltas;
+        synchronized (mQueuedDeltas) {
+            ids = new long[mQueuedDeltas.size()];
+            deltas = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mQueuedDeltas.keyAt(i);
+                deltas[i] = mQueuedDeltas.valueAt(i);
+            }
+            mQueuedDeltas.clear();
+            mWriting = ids.length != 0;
+        }
+        if (ids.length == 0) {
+            return;
+        }
+
+        long[] quantities = null;
+        Bundle extras = new Bundle();
+        extras.putLongArray(StockItemEntry.EXTRA_IDS, ids);
+        extras.putIntArray(StockItemEntry.EXTRA_DELTAS, deltas);
+        try {
+            Bundle result = mResolver.call(StockItemEntry.CONTENT_URI, StockItemEntry.METHOD_ADJUST_QUANTITIES,
+                    null, extras);
+            if (result != null) {
+                quantities = result.getLongArray(StockItemEntry.EXTRA_QUANTITIES);
+            }
+        } catch (RuntimeException e) {
+            // Nothing was committed, all changes are rolled back below
+            Log.e(LOG_TAG, "Failed to write " + ids.length + " quantity changes", e);
+        } finally {
+            synchronized (mQueuedDeltas) {
+                mWriting = false;
+            }
+        }
+
+        final long[] committed = quantities;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onWritten(ids, deltas, committed);
+            }
+        });
+    }
+
+    /**
+     * The written deltas are no longer pending. Runs on the main thread.
+     *
+     * @param quantities the new quantities, -1 for the failed changes, or null when all failed
+     */
+    private void onWritten(long[] ids, int[] deltas, long[] quantities) {
+        for (int i = 0; i < ids.length; i++) {
+            int pending = getPendingDelta(ids[i]) - deltas[i];
+            if (pending == 0) {
+                mPendingDeltas.remove(ids[i]);
+            } else {
+                mPendingDeltas.put(ids[i], pending);
+            }
+            for (Listener listener : new ArrayList<>(mListeners)) {
+                if (quantities != null && quantities[i] >= 0) {
+                    listener.onQuantityCommitted(ids[i], quantities[i]);
+                } else {
+                    listener.onQuantityFailed(ids[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package eu.id2go.stock2go.image;
+
+import android.content.Context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Holds the one instance of a class that reads from disk when it is created, ex: the app
+ * directories it stores files in. The app creates it on a background thread when it starts, see
+ * {@link #createAsync}, and {@link #get} waits for that instead of reading the disk on the calling
+ * thread, which is often the main thread. Without createAsync, get() creates the instance itself.
+ */
+final class BackgroundInstance<T> {
+
+    /**
+     * Creates the instance
+     */
+    interface Factory<T> {
+        T create(Context context);
+    }
+
+    private final Factory<T> mFactory;
+    private final String mThreadName;
+
+    /**
+     * The creation of the instance, null until it is asked for. Guarded by this.
+     */
+    private FutureTask<T> mCreation;
+
+    /**
+     * Whether the creation runs on a thread of its own. Guarded by this.
+     */
+    private boolean mAsync;
+
+    BackgroundInstance(Factory<T> factory, String threadName) {
+        mFactory = factory;
+        mThreadName = threadName;
+    }
+
+    /**
+     * Start creating the instance on a background thread, unless it is created already
+     */
+    synchronized void createAsync(Context context) {
+        if (mCreation == null) {
+            mCreation = newCreation(context.getApplicationContext());
+            mAsync = true;
+            new Thread(mCreation, mThreadName).start();
+        }
+    }
+
+    /**
+     * Returns the instance, waiting for its creation on the background thread when it is running
+     */
+    T get(Context context) {
+        FutureTask<T> creation;
+        boolean async;
+        synchronized (this) {
+            if (mCreation == null) {
+                mCreation = newCreation(context.getApplicationContext());
+            }
+            creation = mCreation;
+            async = mAsync;
+        }
+        if (!async) {
+            // Does nothing when it ran already or runs on another thread that called get()
+            creation.run();
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return creation.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Can't create the instance", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FutureTask<T> newCreation(final Context context) {
+        return new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() {
+                return mFactory.create(context);
+            }
+        });
+    }
+}
@@ -0,0 +1,285 @@
+package eu.id2go.stock2go.image;
+
+import android.content.ContentResolver;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.media.ExifInterface;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes images from content URIs into bitmaps of about the size they are shown at.
+ * The orientation, the bounds and the pixels are read from one buffered stream that is reset in
+ * between, the image is subsampled by the largest power of 2 that keeps it at least as large as
+ * requested, and the EXIF orientation of camera photos is applied. Decodes reuse bitmaps from the
+ * {@link BitmapPool}. {@link #decodeAsync} decodes on a background thread and calls back on the
+ * main thread.
+ */
+public final class BitmapDecoder {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = BitmapDecoder.class.getSimpleName();
+
+    /**
+     * Number of bytes that can be read before the stream is reset. The EXIF data and the header
+     * with the bounds fit in it. When they don't, the stream is opened again.
+     */
+    private static final int MARK_LIMIT = 1024 * 1024;
+
+    /**
+     * Receives the result of {@link #decodeAsync} on the main thread
+     */
+    public interface Callback {
+        /**
+         * @param bitmap the decoded image, or null when it couldn't be decoded
+         */
+        void onDecoded(Bitmap bitmap);
+    }
+
+    private final ContentResolver mResolver;
+    private final BitmapPool mBitmapPool;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Construct a new decoder
+     *
+     * @param resolver   to open the images with
+     * @param bitmapPool to take bitmaps to reuse from
+     * @param executor   to run {@link #decodeAsync} on
+     */
+    BitmapDecoder(ContentResolver resolver, BitmapPool bitmapPool, ExecutorService executor) {
+        mResolver = resolver;
+        mBitmapPool = bitmapPool;
+        mExecutor = executor;
+    }
+
+    /**
+     * Decode the image at the given URI on a background thread, then pass it to the callback on the
+     * main thread. Call from the main thread. Cancelling the returned Future before the callback
+     * drops the result.
+     *
+     * @param width  the width the image is shown at, 0 or less when not known yet
+     * @param height the height the image is shown at, 0 or less when not known yet
+     */
+    public Future<?> decodeAsync(final Uri uri, final int width, final int height, final Callback callback) {
+        final Future<?>[] future = new Future<?>[1];
+        future[0] = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(uri, width, height);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (future[0].isCancelled()) {
+                            mBitmapPool.put(bitmap);
+                        } else {
+                            callback.onDecoded(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+        return future[0];
+    }
+
+    /**
+     * Decode the image at the given URI on the calling thread, which should not be the main thread.
+     * When the size isn't known, the image is decoded at about the size of the screen.
+     *
+     * @param width  the width the image is shown at, 0 or less when not known yet
+     * @param height the height the image is shown at, 0 or less when not known yet
+     * @return the decoded and upright image, or null when it couldn't be decoded
+     */
+    public Bitmap decode(Uri uri, int width, int height) {
+        if (uri == null || uri.toString().isEmpty()) {
+            return null;
+        }
+        if (width <= 0 || height <= 0) {
+            DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+        }
+
+        InputStream input = null;
+        try {
+            input = open(uri);
+            if (input == null) {
+                return null;
+            }
+            int orientation = readOrientation(input);
+            input = resetOrReopen(input, uri);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(input, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            input = resetOrReopen(input, uri);
+
+            // A photo taken in portrait is stored sideways, compare it to the rotated size
+            boolean sideways = isSideways(orientation);
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                    sideways ? height : width, sideways ? width : height);
+            options.inJustDecodeBounds = false;
+            mBitmapPool.addInBitmapOptions(options);
+
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeStream(input, null, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap didn't fit after all, decode into a new one
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                input.close();
+                input = open(uri);
+                if (input == null) {
+                    return null;
+                }
+                options.inBitmap = null;
+                bitmap = BitmapFactory.decodeStream(input, null, options);
+            }
+            return applyOrientation(bitmap, orientation);
+        } catch (IOException | SecurityException e) {
+            Log.e(LOG_TAG, "Failed to decode image " + uri, e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the largest power of 2 to subsample an image with, that keeps both sides of the
+     * decoded image at least as large as the requested size
+     */
+    static int calculateInSampleSize(int imageWidth, int imageHeight, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (imageWidth / (sampleSize * 2) >= reqWidth && imageHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Open a buffered stream on the image and mark its start
+     */
+    private InputStream open(Uri uri) throws IOException {
+        InputStream input = mResolver.openInputStream(uri);
+        if (input == null) {
+            return null;
+        }
+        BufferedInputStream buffered = new BufferedInputStream(input);
+        buffered.mark(MARK_LIMIT);
+        return buffered;
+    }
+
+    /**
+     * Go back to the start of the stream. When more than the mark limit has been read, or the
+     * platform decoder moved the mark (Android before 4.4 does), the image is opened again.
+     */
+    private InputStream resetOrReopen(InputStream input, Uri uri) throws IOException {
+        try {
+            input.reset();
+            input.mark(MARK_LIMIT);
+            return input;
+        } catch (IOException e) {
+            input.close();
+            InputStream reopened = open(uri);
+            if (reopened == null) {
+                throw new IOException("Can't open " + uri + " again");
+            }
+            return reopened;
+        }
+    }
+
+    /**
+     * Returns the EXIF orientation of the image, or ORIENTATION_NORMAL when it has none
+     */
+    private static int readOrientation(InputStream input) {
+        try {
+            return new ExifInterface(input).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            // Not an image with EXIF data
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static boolean isSideways(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    /**
+     * Returns the bitmap turned upright according to its EXIF orientation. The sideways bitmap goes
+     * to the pool.
+     */
+    private Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        if (bitmap == null) {
+            return null;
+        }
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        try {
+            Bitmap upright = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if (upright != bitmap) {
+                mBitmapPool.put(bitmap);
+            }
+            return upright;
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, "No memory to rotate the image, showing it sideways", e);
+            return bitmap;
+        }
+    }
+}
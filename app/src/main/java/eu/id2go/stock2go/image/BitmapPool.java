@@ -0,0 +1,251 @@
+package eu.id2go.stock2go.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps that are no longer shown, so a decode can reuse one of them through
+ * BitmapFactory.Options#inBitmap instead of allocating a new one.
+ * The bitmaps are kept in buckets: by their allocation size from Android 4.4 on, where any bitmap
+ * that is large enough can be reused, and by exact width, height and configuration before, where
+ * only a bitmap of the same size can be reused. The pool holds at most its byte budget, the least
+ * recently added bitmaps are recycled first.
+ */
+public final class BitmapPool {
+
+    /**
+     * A pooled bitmap is only reused for a decode that needs at least this part of its allocation,
+     * so small images don't hold on to large bitmaps
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final long mMaxBytes;
+    private long mBytes;
+
+    /**
+     * Buckets of bitmaps by allocation size (Android 4.4 and later)
+     */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBySize = new TreeMap<>();
+
+    /**
+     * Buckets of bitmaps by width, height and configuration (before Android 4.4)
+     */
+    private final HashMap<String, ArrayDeque<Bitmap>> mByDimensions = new HashMap<>();
+
+    /**
+     * All pooled bitmaps, the least recently added first
+     */
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<>();
+
+    /**
+     * Number of decodes that reused a pooled bitmap, and number that had to allocate
+     */
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Construct a new pool
+     *
+     * @param maxBytes maximum total size of the pooled bitmaps
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Add a bitmap that is no longer shown anywhere to the pool. Immutable, recycled and too large
+     * bitmaps are recycled instead.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (mOrder.contains(bitmap)) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (!bitmap.isMutable() || size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> bucket;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            bucket = mBySize.get(size);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                mBySize.put(size, bucket);
+            }
+        } else {
+            String key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            bucket = mByDimensions.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                mByDimensions.put(key, bucket);
+            }
+        }
+        bucket.push(bitmap);
+        mOrder.add(bitmap);
+        mBytes += size;
+        trim();
+    }
+
+    /**
+     * Set inBitmap and inMutable on the options of a decode, after its bounds have been decoded
+     * into the options with inJustDecodeBounds and its inSampleSize has been set. Sets no inBitmap
+     * when the pool has no bitmap the decode can reuse.
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        options.inMutable = true;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            options.inBitmap = null;
+            return;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        // The decoder rounds the sample size down to a power of 2
+        int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+        Bitmap bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + sampleSize - 1) / sampleSize;
+            int height = (options.outHeight + sampleSize - 1) / sampleSize;
+            bitmap = take(width * height * bytesPerPixel(config));
+        } else if (sampleSize == 1) {
+            // Before Android 4.4 only a bitmap of exactly the same size can be decoded into, without subsampling
+            bitmap = take(keyOf(options.outWidth, options.outHeight, config));
+        } else {
+            bitmap = null;
+        }
+        options.inBitmap = bitmap;
+    }
+
+    /**
+     * Returns the number of decodes that reused a pooled bitmap
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of decodes that found no pooled bitmap to reuse
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Recycle all pooled bitmaps, ex: when the system is low on memory
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mOrder) {
+            bitmap.recycle();
+        }
+        mOrder.clear();
+        mBySize.clear();
+        mByDimensions.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Take the smallest pooled bitmap of at least the given allocation size out of the pool
+     */
+    private synchronized Bitmap take(int size) {
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBySize.ceilingEntry(size);
+        if (entry == null || entry.getKey() > size * MAX_SIZE_MULTIPLE) {
+            mMisses++;
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            mBySize.remove(entry.getKey());
+        }
+        return taken(bitmap);
+    }
+
+    /**
+     * Take a pooled bitmap with the given width, height and configuration out of the pool
+     */
+    private synchronized Bitmap take(String key) {
+        ArrayDeque<Bitmap> bucket = mByDimensions.get(key);
+        if (bucket == null) {
+            mMisses++;
+            return null;
+        }
+        Bitmap bitmap = bucket.pop();
+        if (bucket.isEmpty()) {
+            mByDimensions.remove(key);
+        }
+        return taken(bitmap);
+    }
+
+    private Bitmap taken(Bitmap bitmap) {
+        mOrder.remove(bitmap);
+        mBytes -= sizeOf(bitmap);
+        mHits++;
+        return bitmap;
+    }
+
+    /**
+     * Recycle the least recently added bitmaps until the pool is within its byte budget
+     */
+    private void trim() {
+        Iterator<Bitmap> iterator = mOrder.iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            removeFromBucket(bitmap);
+            mBytes -= sizeOf(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private void removeFromBucket(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int size = sizeOf(bitmap);
+            ArrayDeque<Bitmap> bucket = mBySize.get(size);
+            if (bucket != null && bucket.remove(bitmap) && bucket.isEmpty()) {
+                mBySize.remove(size);
+            }
+        } else {
+            String key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mByDimensions.get(key);
+            if (bucket != null && bucket.remove(bitmap) && bucket.isEmpty()) {
+                mByDimensions.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes the bitmap holds on to
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static String keyOf(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
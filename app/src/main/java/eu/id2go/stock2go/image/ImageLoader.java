@@ -0,0 +1,397 @@
+package eu.id2go.stock2go.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import eu.id2go.stock2go.R;
+
+/**
+ * Loads the stock item images into ImageViews off the main thread.
+ * An image is decoded at the size of its ImageView, not at the resolution of the photo. The decoded
+ * bitmaps are kept in a memory cache bounded by their size in bytes, and written to a disk cache of
+ * thumbnails so they don't have to be decoded from the photo again. While an image loads its
+ * ImageView shows a placeholder. Loading another image into the same ImageView, for example when
+ * a list row is recycled, cancels the pending load.
+ * <p>
+ * The loader counts the ImageViews showing each bitmap. A bitmap that is neither shown nor in the
+ * memory cache goes to the {@link BitmapPool}, and the next decode reuses its memory.
+ */
+public final class ImageLoader {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ImageLoader.class.getSimpleName();
+
+    /**
+     * Number of threads decoding images
+     */
+    private static final int DECODE_THREADS = 2;
+
+    /**
+     * Part of the maximum heap used for the memory cache
+     */
+    private static final int MEMORY_CACHE_FRACTION = 8;
+
+    /**
+     * Part of the maximum heap used for the pool of bitmaps to reuse
+     */
+    private static final int BITMAP_POOL_FRACTION = 16;
+
+    private static final BackgroundInstance<ImageLoader> sInstance = new BackgroundInstance<>(
+            new BackgroundInstance.Factory<ImageLoader>() {
+                @Override
+                public ImageLoader create(Context context) {
+                    return new ImageLoader(context);
+                }
+            }, LOG_TAG);
+
+    private final ThumbnailDiskCache mDiskCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The decoded bitmaps by key, the least recently used ones are dropped first
+     */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    private final BitmapPool mBitmapPool;
+    private final BitmapDecoder mDecoder;
+
+    /**
+     * Number of ImageViews showing each bitmap (or about to), and the bitmaps in the memory cache.
+     * Guarded by mLock.
+     */
+    private final Object mLock = new Object();
+    private final IdentityHashMap<Bitmap, Integer> mShown = new IdentityHashMap<>();
+    private final Set<Bitmap> mCached = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, LOG_TAG);
+                }
+            });
+
+    /**
+     * Returns the image loader of the app. Creating it reads the cache directory from disk, so the app
+     * starts that in the background with {@link #createAsync} and this waits for it.
+     */
+    public static ImageLoader get(Context context) {
+        return sInstance.get(context);
+    }
+
+    /**
+     * Create the image loader of the app on a background thread, call when the app starts
+     */
+    public static void createAsync(Context context) {
+        sInstance.createAsync(context);
+    }
+
+    private ImageLoader(Context context) {
+        long diskCacheBytes = context.getResources().getInteger(R.integer.thumbnail_disk_cache_mb) * 1024L * 1024L;
+        mDiskCache = new ThumbnailDiskCache(new File(context.getCacheDir(), "thumbnails"), diskCacheBytes);
+        mBitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / BITMAP_POOL_FRACTION);
+        mDecoder = new BitmapDecoder(context.getContentResolver(), mBitmapPool, mExecutor);
+        int memoryCacheBytes = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_CACHE_FRACTION);
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return BitmapPool.sizeOf(bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldBitmap, Bitmap newBitmap) {
+                synchronized (mLock) {
+                    mCached.remove(oldBitmap);
+                    if (!mShown.containsKey(oldBitmap)) {
+                        mBitmapPool.put(oldBitmap);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the pool of bitmaps that decodes can reuse
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Returns the decoder the loader uses, which shares its threads and bitmap pool
+     */
+    public BitmapDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Show the image with the given URI in the ImageView. The ImageView shows the placeholder until
+     * the image is loaded, and keeps showing it when the image can't be loaded.
+     * Cancels the load that was still pending for the ImageView.
+     *
+     * @param uri              of the image, may be empty
+     * @param imageView        to show the image in
+     * @param placeholderResId drawable shown until the image is loaded
+     */
+    public void load(Uri uri, final ImageView imageView, int placeholderResId) {
+        cancel(imageView);
+        if (uri == null || uri.toString().isEmpty()) {
+            releaseShown(imageView);
+            imageView.setImageResource(placeholderResId);
+            return;
+        }
+
+        int width = targetWidth(imageView);
+        int height = targetHeight(imageView);
+        if (width > 0 && height > 0) {
+            // Show the image right away when it is in memory already
+            Bitmap bitmap;
+            synchronized (mLock) {
+                bitmap = mMemoryCache.get(keyFor(uri, width, height));
+                if (bitmap != null) {
+                    acquire(bitmap);
+                }
+            }
+            if (bitmap != null) {
+                show(imageView, bitmap);
+                return;
+            }
+        }
+
+        releaseShown(imageView);
+        imageView.setImageResource(placeholderResId);
+        final LoadTask task = new LoadTask(uri, imageView);
+        imageView.setTag(R.id.image_loader_task, task);
+        if (width > 0 && height > 0) {
+            task.start(width, height);
+            return;
+        }
+        // The ImageView hasn't been laid out yet, start once its size is known
+        imageView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                imageView.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (imageView.getTag(R.id.image_loader_task) == task) {
+                    task.start(Math.max(1, imageView.getWidth()), Math.max(1, imageView.getHeight()));
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Show a bitmap decoded elsewhere in the ImageView. Once the ImageView shows another image
+     * or is released, the bitmap goes to the pool.
+     */
+    public void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+        cancel(imageView);
+        if (bitmap == null) {
+            releaseShown(imageView);
+            imageView.setImageDrawable(null);
+            return;
+        }
+        synchronized (mLock) {
+            acquire(bitmap);
+        }
+        show(imageView, bitmap);
+    }
+
+    /**
+     * Cancel the pending load of the ImageView, if any
+     */
+    public void cancel(ImageView imageView) {
+        Object tag = imageView.getTag(R.id.image_loader_task);
+        if (tag instanceof LoadTask) {
+            ((LoadTask) tag).mCancelled = true;
+            imageView.setTag(R.id.image_loader_task, null);
+        }
+    }
+
+    /**
+     * Cancel the pending load of the ImageView and clear it, so the bitmap it showed can be reused.
+     * Call this when the ImageView is recycled or goes away.
+     */
+    public void release(ImageView imageView) {
+        cancel(imageView);
+        releaseShown(imageView);
+        imageView.setImageDrawable(null);
+    }
+
+    /**
+     * Show the bitmap, which has already been acquired for it, in the ImageView
+     */
+    private void show(ImageView imageView, Bitmap bitmap) {
+        releaseShown(imageView);
+        imageView.setImageBitmap(bitmap);
+        imageView.setTag(R.id.image_loader_bitmap, bitmap);
+    }
+
+    /**
+     * Forget the bitmap the ImageView shows, it goes to the pool when nothing else uses it
+     */
+    private void releaseShown(ImageView imageView) {
+        Bitmap bitmap = (Bitmap) imageView.getTag(R.id.image_loader_bitmap);
+        if (bitmap != null) {
+            imageView.setTag(R.id.image_loader_bitmap, null);
+            releaseBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Count one more user of the bitmap. Call with mLock held.
+     */
+    private void acquire(Bitmap bitmap) {
+        Integer count = mShown.get(bitmap);
+        mShown.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Count one user less of the bitmap, it goes to the pool when it was the last one and the
+     * bitmap isn't in the memory cache
+     */
+    private void releaseBitmap(Bitmap bitmap) {
+        synchronized (mLock) {
+            Integer count = mShown.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mShown.put(bitmap, count - 1);
+                return;
+            }
+            mShown.remove(bitmap);
+            if (!mCached.contains(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Returns the width to decode for, from the laid out view or its layout parameters, or 0 when unknown
+     */
+    private static int targetWidth(ImageView imageView) {
+        if (imageView.getWidth() > 0) {
+            return imageView.getWidth();
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        return params != null && params.width > 0 ? params.width : 0;
+    }
+
+    /**
+     * Returns the height to decode for, from the laid out view or its layout parameters, or 0 when unknown
+     */
+    private static int targetHeight(ImageView imageView) {
+        if (imageView.getHeight() > 0) {
+            return imageView.getHeight();
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        return params != null && params.height > 0 ? params.height : 0;
+    }
+
+    /**
+     * Returns the cache key of the image decoded for the given size
+     */
+    private static String keyFor(Uri uri, int width, int height) {
+        return uri + "@" + width + "x" + height;
+    }
+
+    /**
+     * Loads one image for one ImageView: from the disk cache or else from the image itself,
+     * then hands it to the ImageView on the main thread if the load hasn't been cancelled.
+     */
+    private final class LoadTask implements Runnable {
+
+        private final Uri mUri;
+        private final ImageView mImageView;
+        private volatile boolean mCancelled;
+        private int mWidth;
+        private int mHeight;
+
+        LoadTask(Uri uri, ImageView imageView) {
+            mUri = uri;
+            mImageView = imageView;
+        }
+
+        void start(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final String key = keyFor(mUri, mWidth, mHeight);
+            Bitmap bitmap;
+            synchronized (mLock) {
+                bitmap = mMemoryCache.get(key);
+                if (bitmap != null) {
+                    acquire(bitmap);
+                }
+            }
+            if (bitmap == null) {
+                // Images of the ImageStore are small local files already, only cache picked images on disk
+                boolean local = ContentResolver.SCHEME_FILE.equals(mUri.getScheme());
+                if (!local) {
+                    bitmap = mDiskCache.get(key, mBitmapPool);
+                }
+                if (bitmap == null && !mCancelled) {
+                    bitmap = mDecoder.decode(mUri, mWidth, mHeight);
+                    if (bitmap != null && !local) {
+                        mDiskCache.put(key, bitmap);
+                    }
+                }
+                if (bitmap == null) {
+                    return;
+                }
+                // Hold the bitmap for the ImageView before the cache can evict it to the pool
+                synchronized (mLock) {
+                    acquire(bitmap);
+                    mCached.add(bitmap);
+                }
+                mMemoryCache.put(key, bitmap);
+            }
+
+            final Bitmap loaded = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled && mImageView.getTag(R.id.image_loader_task) == LoadTask.this) {
+                        mImageView.setTag(R.id.image_loader_task, null);
+                        show(mImageView, loaded);
+                    } else {
+                        releaseBitmap(loaded);
+                    }
+                }
+            });
+        }
+    }
+}
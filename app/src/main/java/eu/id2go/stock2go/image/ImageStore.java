@@ -0,0 +1,446 @@
+package eu.id2go.stock2go.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+/**
+ * Stores the stock item images in app private storage when a stock item is saved.
+ * A picked image is copied once, then a display and a thumbnail variant are written as JPEG files
+ * and the copy is deleted. The variants are named after the SHA-1 hash of the image, and that key
+ * is what the provider stores in StockItemEntry#COLUMN_IMAGE. Saving the same image twice finds
+ * the variants already there and stores them only once.
+ * <p>
+ * When the store is created it deletes, in the background, the variants of the keys no stock item
+ * refers to anymore, ex: after the image of a stock item was replaced or the stock item deleted.
+ * Variants written or reused in the last SWEEP_GRACE_MS are kept, their stock item may not be
+ * saved yet.
+ * <p>
+ * Rows saved before the store existed hold the URI of the picked image instead of a key,
+ * {@link #uriFor} returns those unchanged.
+ */
+public final class ImageStore {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ImageStore.class.getSimpleName();
+
+    /**
+     * The image shown in the editor, at most this many pixels on its shorter side
+     */
+    public static final int VARIANT_DISPLAY = 1080;
+
+    /**
+     * The image shown in the list rows, at most this many pixels on its shorter side
+     */
+    public static final int VARIANT_THUMBNAIL = 240;
+
+    /**
+     * JPEG quality of the stored variants
+     */
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * Length of a key, the hex SHA-1 hash of the image
+     */
+    private static final int KEY_LENGTH = 40;
+
+    /**
+     * Variants written or reused more recently are never deleted, see {@link #sweep}
+     */
+    private static final long SWEEP_GRACE_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Number of keys looked up in one query, below the limit of 999 SQL arguments
+     */
+    private static final int SWEEP_BATCH_KEYS = 500;
+
+    /**
+     * Receives the result of {@link #ingestAsync} on the main thread
+     */
+    public interface Callback {
+        /**
+         * @param key of the stored image, or null when it couldn't be stored
+         */
+        void onIngested(String key);
+    }
+
+    private static final BackgroundInstance<ImageStore> sInstance = new BackgroundInstance<>(
+            new BackgroundInstance.Factory<ImageStore>() {
+                @Override
+                public ImageStore create(Context context) {
+                    ImageStore store = new ImageStore(context);
+                    store.sweepAsync();
+                    return store;
+                }
+            }, LOG_TAG);
+
+    private final ContentResolver mResolver;
+    private final File mDirectory;
+    private final BitmapDecoder mDecoder;
+    private final BitmapPool mBitmapPool;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * One image is stored at a time, so two saves of the same image don't write the same files
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, LOG_TAG);
+        }
+    });
+
+    /**
+     * Returns the image store of the app. Creating it reads the files directory from disk, so the app
+     * starts that in the background with {@link #createAsync} and this waits for it.
+     */
+    public static ImageStore get(Context context) {
+        return sInstance.get(context);
+    }
+
+    /**
+     * Create the image store of the app on a background thread, call when the app starts
+     */
+    public static void createAsync(Context context) {
+        sInstance.createAsync(context);
+    }
+
+    private ImageStore(Context context) {
+        mResolver = context.getContentResolver();
+        mDirectory = new File(context.getFilesDir(), "images");
+        ImageLoader imageLoader = ImageLoader.get(context);
+        mDecoder = imageLoader.getDecoder();
+        mBitmapPool = imageLoader.getBitmapPool();
+    }
+
+    /**
+     * Returns the URI to load the given variant of a stored image from
+     *
+     * @param image   the value of StockItemEntry#COLUMN_IMAGE, a key or the URI of an image that
+     *                was saved before the store existed
+     * @param variant {@link #VARIANT_DISPLAY} or {@link #VARIANT_THUMBNAIL}
+     * @return the URI of the variant, the URI itself for older rows, or null when there is no image
+     */
+    public Uri uriFor(String image, int variant) {
+        if (TextUtils.isEmpty(image)) {
+            return null;
+        }
+        if (!isKey(image)) {
+            return Uri.parse(image);
+        }
+        return Uri.fromFile(fileFor(image, variant));
+    }
+
+    /**
+     * Store the image at the given URI on a background thread, then pass its key to the callback
+     * on the main thread. Call from the main thread. Cancelling the returned Future before the
+     * callback drops the result, the stored variants stay for the next save of the image.
+     */
+    public Future<?> ingestAsync(final Uri source, final Callback callback) {
+        final Future<?>[] future = new Future<?>[1];
+        future[0] = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                String key;
+                try {
+                    key = ingest(source);
+                } catch (IOException | SecurityException e) {
+                    Log.e(LOG_TAG, "Failed to store image " + source, e);
+                    key = null;
+                }
+                final String ingested = key;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!future[0].isCancelled()) {
+                            callback.onIngested(ingested);
+                        }
+                    }
+                });
+            }
+        });
+        return future[0];
+    }
+
+    /**
+     * Store the image at the given URI on the calling thread, which should not be the main thread
+     *
+     * @return the key of the stored image
+     * @throws IOException when the image can't be read, decoded or written
+     */
+    String ingest(Uri source) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        // Copy the image once while hashing it, the variants are decoded from the copy
+        File copy = File.createTempFile("ingest", ".tmp", mDirectory);
+        try {
+            String key = copyAndHash(source, copy);
+            long now = System.currentTimeMillis();
+            File display = fileFor(key, VARIANT_DISPLAY);
+            if (!display.exists()) {
+                writeVariant(Uri.fromFile(copy), VARIANT_DISPLAY, display);
+            } else {
+                // Reused, the sweep mustn't delete it before the stock item is saved
+                display.setLastModified(now);
+            }
+            File thumbnail = fileFor(key, VARIANT_THUMBNAIL);
+            if (!thumbnail.exists()) {
+                // The display variant is upright and much smaller than the original
+                writeVariant(Uri.fromFile(display), VARIANT_THUMBNAIL, thumbnail);
+            } else {
+                thumbnail.setLastModified(now);
+            }
+            return key;
+        } finally {
+            copy.delete();
+        }
+    }
+
+    /**
+     * Run {@link #sweep} on the thread that stores the images, so it never sees a key while its
+     * variants are being written
+     */
+    private void sweepAsync() {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    // ex: the provider failed to read, the variants are swept on the next start
+                    Log.e(LOG_TAG, "Failed to delete unused images", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the variants of the keys that no stock item refers to, except those written or reused
+     * in the last SWEEP_GRACE_MS. Looks up the keys of the files, so the queries grow with the
+     * number of stored images rather than of stock items.
+     *
+     * @return the number of deleted files
+     */
+    int sweep() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long keepAfter = System.currentTimeMillis() - SWEEP_GRACE_MS;
+        Set<String> recent = new HashSet<>();
+        Set<String> old = new HashSet<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.length() <= KEY_LENGTH || !isKey(name.substring(0, KEY_LENGTH))) {
+                // ex: the copy of an image that is being stored
+                continue;
+            }
+            String key = name.substring(0, KEY_LENGTH);
+            if (file.lastModified() > keepAfter) {
+                recent.add(key);
+            } else {
+                old.add(key);
+            }
+        }
+        old.removeAll(recent);
+        if (old.isEmpty()) {
+            return 0;
+        }
+
+        // Keep the keys that a stock item still refers to
+        List<String> batch = new ArrayList<>(SWEEP_BATCH_KEYS);
+        Set<String> referenced = new HashSet<>();
+        for (String key : old) {
+            batch.add(key);
+            if (batch.size() == SWEEP_BATCH_KEYS) {
+                findReferencedKeys(batch, referenced);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            findReferencedKeys(batch, referenced);
+        }
+        old.removeAll(referenced);
+
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.length() > KEY_LENGTH && old.contains(name.substring(0, KEY_LENGTH)) && file.delete()) {
+                deleted++;
+            }
+        }
+        Log.i(LOG_TAG, "Deleted " + deleted + " files of " + old.size() + " unused images");
+        return deleted;
+    }
+
+    /**
+     * Add the keys that are the image of a stock item to the referenced keys
+     */
+    private void findReferencedKeys(List<String> keys, Set<String> referenced) {
+        StringBuilder selection = new StringBuilder(StockItemEntry.COLUMN_IMAGE).append(" IN (?");
+        for (int i = 1; i < keys.size(); i++) {
+            selection.append(",?");
+        }
+        selection.append(')');
+        Cursor cursor = mResolver.query(StockItemEntry.CONTENT_URI, new String[]{StockItemEntry.COLUMN_IMAGE},
+                selection.toString(), keys.toArray(new String[keys.size()]), null);
+        if (cursor == null) {
+            throw new IllegalStateException("The stock items can't be read");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                referenced.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copy the image at the given URI to the file
+     *
+     * @return the hex SHA-1 hash of the image
+     */
+    private String copyAndHash(Uri source, File destination) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Available on every Android version
+            throw new IllegalStateException(e);
+        }
+        InputStream input = mResolver.openInputStream(source);
+        if (input == null) {
+            throw new IOException("Can't open " + source);
+        }
+        OutputStream output = null;
+        try {
+            input = new DigestInputStream(input, digest);
+            output = new FileOutputStream(destination);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            closeQuietly(input);
+            closeQuietly(output);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder key = new StringBuilder(KEY_LENGTH);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Decode the image, scale it down to the variant size and write it to the file as a JPEG
+     */
+    private void writeVariant(Uri source, int variant, File file) throws IOException {
+        Bitmap decoded = mDecoder.decode(source, variant, variant);
+        if (decoded == null) {
+            throw new IOException("Can't decode " + source);
+        }
+        Bitmap bitmap = scaleDown(decoded, variant);
+        // Write a temporary file first, so a reader never sees a half written variant
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output)) {
+                throw new IOException("Can't encode " + source);
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } finally {
+            closeQuietly(output);
+            temp.delete();
+            if (bitmap != decoded) {
+                bitmap.recycle();
+            }
+            mBitmapPool.put(decoded);
+        }
+    }
+
+    /**
+     * Returns the bitmap scaled so its shorter side is at most the given size. The decoder
+     * subsamples by powers of 2 only, so the decoded image can be up to twice as large.
+     */
+    private static Bitmap scaleDown(Bitmap bitmap, int size) {
+        int shorter = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (shorter <= size) {
+            return bitmap;
+        }
+        float scale = (float) size / shorter;
+        return Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                Math.round(bitmap.getHeight() * scale), true);
+    }
+
+    private File fileFor(String key, int variant) {
+        return new File(mDirectory, key + "_" + (variant == VARIANT_THUMBNAIL ? "thumb" : "display") + ".jpg");
+    }
+
+    /**
+     * Returns true when the value of an image column is a key of the store, not a URI
+     */
+    private static boolean isKey(String image) {
+        if (image.length() != KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (Character.digit(image.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package eu.id2go.stock2go.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Disk cache of downscaled stock item images, so an image is only decoded at full resolution once.
+ * Every thumbnail is a JPEG file named after the hash of its key. Reading a thumbnail touches its
+ * file, and when the cache grows over its maximum size the least recently used files are deleted.
+ * Only used from the background threads of {@link ImageLoader}.
+ */
+class ThumbnailDiskCache {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ThumbnailDiskCache.class.getSimpleName();
+
+    /**
+     * JPEG quality of the stored thumbnails
+     */
+    private static final int JPEG_QUALITY = 85;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * Total size of the files in the cache, -1 until the directory has been read
+     */
+    private long mSize = -1;
+
+    /**
+     * Construct a new cache in the given directory
+     *
+     * @param directory where the thumbnails are stored, created when needed
+     * @param maxBytes  maximum total size of the thumbnails
+     */
+    ThumbnailDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the thumbnail stored under the given key, or null when it isn't in the cache.
+     * The thumbnail is decoded into a bitmap of the pool when there is one of the right size.
+     */
+    synchronized Bitmap get(String key, BitmapPool pool) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        options.inJustDecodeBounds = false;
+        pool.addInBitmapOptions(options);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all, decode into a new one
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (bitmap == null) {
+            // Damaged, forget it so it is decoded from the original again
+            delete(file);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    /**
+     * Store the thumbnail under the given key, then delete the least recently used thumbnails
+     * when the cache is too large
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Can't create " + mDirectory);
+            return;
+        }
+        readSize();
+        File file = fileFor(key);
+        // Write a temporary file first, so a reader never sees a half written thumbnail
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+            output.close();
+            output = null;
+            delete(file);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            mSize += file.length();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store thumbnail " + key, e);
+            temp.delete();
+            return;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the cache is below its maximum size
+     */
+    private void trim() {
+        if (mSize <= mMaxBytes) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lastModifiedA = a.lastModified();
+                long lastModifiedB = b.lastModified();
+                return lastModifiedA < lastModifiedB ? -1 : (lastModifiedA == lastModifiedB ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (mSize <= mMaxBytes) {
+                break;
+            }
+            delete(file);
+        }
+    }
+
+    /**
+     * Delete a file of the cache and subtract its size
+     */
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete() && mSize != -1) {
+            mSize -= length;
+        }
+    }
+
+    /**
+     * Add up the size of the files in the cache, the first time it is needed
+     */
+    private void readSize() {
+        if (mSize != -1) {
+            return;
+        }
+        mSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                mSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * Returns the file of the thumbnail with the given key, named after the MD5 hash of the key
+     */
+    private File fileFor(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are available on every Android version
+            throw new IllegalStateException(e);
+        }
+    }
+}
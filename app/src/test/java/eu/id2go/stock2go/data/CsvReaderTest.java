@@ -0,0 +1,199 @@
+package eu.id2go.stock2go.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test of the CSV reader of the stock item import
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void readsUnquotedFields() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("name,price\nBread,250\n"), ',');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("name", "price"), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("Bread", "250"), fields);
+        assertFalse(reader.readRecord(fields));
+    }
+
+    @Test
+    public void readsSeparatorInQuotedField() throws IOException {
+        assertEquals(Arrays.asList("Bread, white", "250"), readOnly("\"Bread, white\",250"));
+    }
+
+    @Test
+    public void readsDoubledQuotes() throws IOException {
+        assertEquals(Arrays.asList("The \"best\" bread", ""), readOnly("\"The \"\"best\"\" bread\",\"\""));
+    }
+
+    @Test
+    public void readsLineBreaksInQuotedField() throws IOException {
+        assertEquals(Arrays.asList("first\r\nsecond\nthird", "x"), readOnly("\"first\r\nsecond\nthird\",x\r\n"));
+    }
+
+    @Test
+    public void readsCrlfAndLastLineWithoutBreak() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("a,b\r\nc,d\r\ne,f"), ',');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("a", "b"), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("c", "d"), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("e", "f"), fields);
+        assertFalse(reader.readRecord(fields));
+    }
+
+    @Test
+    public void skipsByteOrderMark() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("\uFEFFname,brand\n\uFEFFx,y\n"), ',');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("name", "brand"), fields);
+        // Only at the start of the file
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("\uFEFFx", "y"), fields);
+    }
+
+    @Test
+    public void readsOtherSeparator() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("a;\"b;c\",d\n"), ';');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("a", "b;c,d"), fields);
+    }
+
+    @Test
+    public void countsLinesOfMultiLineRecords() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(
+                "name,brand\n\"two\nlines\",x\r\n\"three\r\n\r\nlines\",y\nlast,z\n"), ',');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(1, reader.getRecordLine());
+        assertTrue(reader.readRecord(fields));
+        assertEquals(2, reader.getRecordLine());
+        assertTrue(reader.readRecord(fields));
+        assertEquals(4, reader.getRecordLine());
+        assertTrue(reader.readRecord(fields));
+        assertEquals(7, reader.getRecordLine());
+        assertEquals(Arrays.asList("last", "z"), fields);
+    }
+
+    @Test
+    public void rejectsUnterminatedQuote() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("name\nok\n\"open\nstill open,x\n"), ',');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertTrue(reader.readRecord(fields));
+        try {
+            reader.readRecord(fields);
+            fail("An unterminated quote must be an error");
+        } catch (IOException e) {
+            // The error names the line the record started on
+            assertTrue(e.getMessage(), e.getMessage().endsWith("line 3"));
+        }
+    }
+
+    /**
+     * Reads a large generated file and checks the reader never reads more than its buffer ahead of
+     * the record it returns, so the memory it needs doesn't grow with the file
+     */
+    @Test
+    public void readsLargeFileInBoundedMemory() throws IOException {
+        final int rows = 200000;
+        GeneratedCsv csv = new GeneratedCsv(rows);
+        CsvReader reader = new CsvReader(csv, ',');
+        List<String> fields = new ArrayList<>();
+        long start = System.nanoTime();
+        int read = 0;
+        while (reader.readRecord(fields)) {
+            assertEquals(4, fields.size());
+            assertEquals("a, b\nc", fields.get(1));
+            assertEquals(read, Integer.parseInt(fields.get(3)));
+            assertTrue(csv.mCharsRead - csv.charsBefore(read + 1) <= 8192);
+            read++;
+        }
+        long nanos = System.nanoTime() - start;
+        assertEquals(rows, read);
+        System.out.println("CsvReader: " + rows * 1000000000L / Math.max(nanos, 1) + " rows/s");
+    }
+
+    private static List<String> readOnly(String csv) throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(csv), ',');
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertFalse(reader.readRecord(new ArrayList<String>()));
+        return fields;
+    }
+
+    /**
+     * A CSV file of rows of the same length, generated while it is read
+     */
+    private static final class GeneratedCsv extends Reader {
+
+        /**
+         * Every row is this one with the digits of its index, so generating it costs next to nothing
+         */
+        private static final String TEMPLATE = "\"item 000000\",\"a, b\nc\",000000,000000\n";
+        private static final int[] DIGITS_END = {12, 29, 36};
+
+        private final int mRows;
+        private final char[] mRow = TEMPLATE.toCharArray();
+        private int mRowIndex;
+        private int mRowPosition = mRow.length;
+        long mCharsRead;
+
+        GeneratedCsv(int rows) {
+            mRows = rows;
+        }
+
+        /**
+         * Returns the number of characters in the rows before the given row
+         */
+        long charsBefore(int row) {
+            return (long) row * TEMPLATE.length();
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            int count = 0;
+            while (count < length) {
+                if (mRowPosition == mRow.length) {
+                    if (mRowIndex == mRows) {
+                        break;
+                    }
+                    for (int end : DIGITS_END) {
+                        int value = mRowIndex;
+                        for (int i = end - 1; i >= end - 6; i--) {
+                            mRow[i] = (char) ('0' + value % 10);
+                            value /= 10;
+                        }
+                    }
+                    mRowIndex++;
+                    mRowPosition = 0;
+                }
+                buffer[offset + count++] = mRow[mRowPosition++];
+            }
+            mCharsRead += count;
+            return count == 0 ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package eu.id2go.stock2go.data;
+
+import org.junit.Test;
+
+import eu.id2go.stock2go.data.StockContract.StockItemEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test of how the stock item import reads the fields of a row
+ */
+public class StockCsvImporterTest {
+
+    @Test
+    public void trimsText() {
+        assertEquals("Bread, white", StockCsvImporter.parseValue(StockItemEntry.COLUMN_NAME, "  Bread, white "));
+        // An empty text is kept, the provider decides whether it is allowed
+        assertEquals("", StockCsvImporter.parseValue(StockItemEntry.COLUMN_BRAND, " "));
+    }
+
+    @Test
+    public void readsWholeNumbers() {
+        assertEquals(250, StockCsvImporter.parseValue(StockItemEntry.COLUMN_PRICE, " 250"));
+        assertEquals(-3, StockCsvImporter.parseValue(StockItemEntry.COLUMN_STOCK_QTY, "-3"));
+    }
+
+    @Test
+    public void leavesOutEmptyNumbers() {
+        assertNull(StockCsvImporter.parseValue(StockItemEntry.COLUMN_REORDER_LEVEL, ""));
+        assertNull(StockCsvImporter.parseValue(StockItemEntry.COLUMN_SECTION, "  "));
+    }
+
+    @Test
+    public void rejectsOtherNumbers() {
+        String[] invalid = {"2.50", "12 pieces", "99999999999"};
+        for (String field : invalid) {
+            try {
+                StockCsvImporter.parseValue(StockItemEntry.COLUMN_PRICE, field);
+                fail(field + " is not a whole number");
+            } catch (NumberFormatException expected) {
+                // The row is rejected with the column and the field
+            }
+        }
+    }
+}